@@ -0,0 +1,140 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Loopback benchmark of {@link Acceptors} in a connection storm,
+ * like after a restart of many nodes. Concurrent dialers open and
+ * close connections to a server with one, two and four acceptors
+ * and with the default backlog of the JDK. Every accepted connection
+ * gets a reading thread like a {@link Application} client handler.
+ * Dials slower than a second were dropped from a full backlog and
+ * repeated by the kernel.
+ *
+ * Example:
+ * "java -cp messenger.jar com.messenger.AcceptBenchmark 5000 500 1024"</p>
+ */
+public class AcceptBenchmark {
+
+    /**
+     * <p>Connections accepted by the server of the current run.</p>
+     */
+    private static final AtomicInteger accepted = new AtomicInteger();
+
+    /**
+     * <p>Runs all measurements.</p>
+     * @param args  expecting (int) connections, (int) concurrent dialers, (int) backlog, optional
+     * @throws IOException  when a benchmark server can not be started
+     * @throws InterruptedException when interrupted while waiting for the dialers
+     */
+    public static void main (String[] args) throws IOException, InterruptedException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int dialers = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int backlog = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+        System.out.println(connections + " connections, " + dialers + " concurrent dialers, " +
+                Runtime.getRuntime().availableProcessors() + " processors");
+        System.out.println(String.format("%-9s %7s %-9s | %10s %9s %9s %9s %6s %6s", "acceptors", "backlog", "socket",
+                "accepts/s", "p50", "p99", "max", "slow", "failed"));
+
+        // warm up threads and code paths
+        run(connections / 5, dialers, 1, backlog, false);
+
+        run(connections, dialers, 1, 0, true);
+        for (int count : new int[] {1, 2, 4}) {
+            run(connections, dialers, count, backlog, true);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * <p>Dials a new server with all dialers, until all
+     * connections were accepted.</p>
+     * @param connections   number of connections
+     * @param dialers       number of concurrent dialers
+     * @param count         number of acceptors
+     * @param backlog       backlog, 0 for the default
+     * @param print         print the result
+     * @throws IOException  when the server can not be started
+     * @throws InterruptedException when interrupted while waiting for the dialers
+     */
+    private static void run (int connections, int dialers, int count, int backlog, boolean print) throws IOException, InterruptedException {
+        Acceptors acceptors = new Acceptors(new InetSocketAddress("127.0.0.1", 0), count, backlog);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", acceptors.getPort());
+        accepted.set(0);
+
+        Thread server = new Thread(() -> acceptors.run(AcceptBenchmark::handle, "acceptor"), "acceptor-0");
+        server.setDaemon(true);
+        server.start();
+
+        long[] latencies = new long[connections];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(dialers);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < dialers; i++) {
+            pool.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < connections) {
+                    long begin = System.nanoTime();
+                    try {
+                        SocketChannel socket = SocketChannel.open(address);
+                        latencies[index] = System.nanoTime() - begin;
+                        socket.close();
+                    } catch (IOException e) {
+                        latencies[index] = System.nanoTime() - begin;
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+
+        // failed dials are never accepted
+        while (accepted.get() < connections - failed.get()) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        acceptors.close();
+
+        if (print) {
+            Arrays.sort(latencies);
+            long slow = Arrays.stream(latencies).filter(latency -> latency >= TimeUnit.SECONDS.toNanos(1)).count();
+            System.out.println(String.format("%-9d %7s %-9s | %10.0f %6.2f ms %6.2f ms %6.0f ms %6d %6d", count,
+                    backlog > 0 ? String.valueOf(backlog) : "default", acceptors.isReusePort() ? "reuseport" : "shared",
+                    accepted.get() / seconds, latencies[connections / 2] / 1e6, latencies[connections * 99 / 100] / 1e6,
+                    latencies[connections - 1] / 1e6, slow, failed.get()));
+        }
+    }
+
+    /**
+     * <p>Reads an accepted connection until it is
+     * closed by the dialer.</p>
+     * @param socket    accepted connection
+     */
+    private static void handle (SocketChannel socket) {
+        accepted.incrementAndGet();
+        Thread reader = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            try (SocketChannel channel = socket) {
+                while (channel.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // closed by dialer
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
@@ -0,0 +1,167 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * <p>Listening sockets of a node with one accepting thread each.
+ * When many nodes restart at once, a single thread calling
+ * {@link ServerSocketChannel#accept()} is the bottleneck, so more
+ * than one socket can be bound to the same port with
+ * {@link StandardSocketOptions#SO_REUSEPORT}, and the kernel spreads
+ * new connections over them. Where the option is not supported,
+ * all threads accept from one socket.</p>
+ * <p>The backlog is the number of connections, the kernel keeps
+ * until they are accepted. Connections beyond it are dropped and
+ * dialed again by the client after a second.</p>
+ */
+public class Acceptors {
+
+    /**
+     * <p>Listening sockets, one per thread or
+     * one for all threads.</p>
+     */
+    private final ArrayList<ServerSocketChannel> sockets = new ArrayList<>();
+
+    /**
+     * <p>Number of accepting threads.</p>
+     */
+    private final int count;
+
+    /**
+     * <p>Sockets are bound with {@link StandardSocketOptions#SO_REUSEPORT}.</p>
+     */
+    private final boolean reusePort;
+
+    /**
+     * <p>Status of the accepting threads.</p>
+     */
+    private volatile boolean _terminate = false;
+
+    /**
+     * <p>Binds the listening sockets.</p>
+     * @param address   address to bind, port 0 for any free port
+     * @param count     number of accepting threads
+     * @param backlog   maximum number of connections, that wait to be accepted, 0 for the default
+     * @throws IOException  when the address can not be bound
+     */
+    public Acceptors (InetSocketAddress address, int count, int backlog) throws IOException {
+        this.count = Math.max(1, count);
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        reusePort = this.count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        try {
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(address, backlog);
+            sockets.add(first);
+
+            // a free port is only known after the first bind
+            InetSocketAddress bound = (InetSocketAddress) first.getLocalAddress();
+            for (int i = 1; reusePort && i < this.count; i++) {
+                ServerSocketChannel socket = ServerSocketChannel.open();
+                sockets.add(socket);
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(bound, backlog);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Accepts connections with all threads, until the
+     * sockets are closed. The calling thread is the first
+     * accepting thread.</p>
+     * @param handler   takes the accepted connections, called by all threads
+     * @param name      prefix of the thread names
+     */
+    public void run (Consumer<SocketChannel> handler, String name) {
+        for (int i = 1; i < count; i++) {
+            ServerSocketChannel socket = sockets.get(reusePort ? i : 0);
+            Thread thread = new Thread(() -> accept(socket, handler), name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        accept(sockets.get(0), handler);
+    }
+
+    /**
+     * <p>Accepts connections of a socket, until it is closed.
+     * A failed accept, like one without free file descriptors,
+     * does not stop the thread.</p>
+     * @param socket    listening socket
+     * @param handler   takes the accepted connections
+     */
+    private void accept (ServerSocketChannel socket, Consumer<SocketChannel> handler) {
+        while (!_terminate) {
+            try {
+                handler.accept(socket.accept());
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (_terminate || !socket.isOpen()) {
+                    return;
+                }
+
+                System.err.println("> [" + new Date().toString() + "] Can not accept connection: " + e.getMessage());
+                try {
+                    // the cause, like a full file table, needs time to go away
+                    Thread.sleep(10);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Closes all sockets, so the accepting
+     * threads end.</p>
+     */
+    public void close () {
+        _terminate = true;
+        for (ServerSocketChannel socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error: Server socket couldn't be closed properly.");
+            }
+        }
+    }
+
+    /**
+     * <p>Gets the bound port.</p>
+     * @return  port
+     * @throws IOException  when the sockets are closed
+     */
+    public int getPort () throws IOException {
+        return ((InetSocketAddress) sockets.get(0).getLocalAddress()).getPort();
+    }
+
+    /**
+     * <p>Gets {@link Acceptors#count}.</p>
+     * @return  {@link Acceptors#count}
+     */
+    public int getCount () {
+        return count;
+    }
+
+    /**
+     * <p>Gets {@link Acceptors#reusePort}.</p>
+     * @return  {@link Acceptors#reusePort}
+     */
+    public boolean isReusePort () {
+        return reusePort;
+    }
+}
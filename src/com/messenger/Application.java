@@ -1,13 +1,28 @@
 package com.messenger;
 
 import com.messenger.console.DefaultConsole;
+import com.messenger.console.Renderer;
+import com.messenger.jfr.DispatchEvent;
+import com.messenger.jfr.ForwardEvent;
+import com.messenger.jfr.ParseEvent;
+import com.messenger.jfr.ReceiveEvent;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * <p>Represents the main application. Here we start our server,
@@ -17,12 +32,54 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class Application {
 
+    /**
+     * <p>Interval of {@link Application#refresh()} in
+     * milliseconds.</p>
+     */
+    static final long REFRESH_INTERVAL = 30000;
+
+    /**
+     * <p>Text of a JOIN message, that asks for
+     * a PEERLIST.</p>
+     */
+    private static final String PEERS_REQUEST = "peers";
+
+    /**
+     * <p>Maximum number of peers in one PEERLIST frame.</p>
+     */
+    private static final int PEERLIST_SIZE = 512;
+
+    /**
+     * <p>Time in milliseconds, a DISCONNECT is remembered
+     * to correct peers, that did not get it.</p>
+     */
+    private static final long DEPARTED_TTL = 2 * REFRESH_INTERVAL;
+
+    /**
+     * <p>Time in milliseconds, expired peers are asked to
+     * join again, so both sides of a healed partition
+     * find each other.</p>
+     */
+    private static final long EXPIRED_TTL = 3600000;
+
     /**
      * <p>Represents the own {@link Peer} with
      * ip address, port and name.</p>
      */
     public Peer me;
 
+    /**
+     * <p>Start time of this node in milliseconds, sent on
+     * JOIN, POKE and DISCONNECT, so peers tell a restarted
+     * node from the one that departed.</p>
+     */
+    private long incarnation;
+
+    /**
+     * <p>Canonical instances of the peers, this node knows.</p>
+     */
+    private final PeerCache peerCache = new PeerCache();
+
     /**
      * <p>Server to listen for messages. Runs in
      * a separate thread.</p>
@@ -41,6 +98,175 @@ public class Application {
      */
     private LinkedBlockingQueue<Connection> connections;
 
+    /**
+     * <p>Routing table of the overlay mode. When the overlay
+     * mode is disabled (default) the table is {@code null} and
+     * every peer gets connected to every other peer.</p>
+     */
+    private RoutingTable routingTable;
+
+    /**
+     * <p>Limit of open connections. Least recently used
+     * connections are suspended, when the limit is reached.
+     * {@code null} when there is no limit (default).</p>
+     */
+    private ConnectionCache connectionCache;
+
+    /**
+     * <p>Received sequence numbers and pending
+     * acknowledgements of MESSAGE frames.</p>
+     */
+    private DeliveryTracker deliveries = new DeliveryTracker();
+
+    /**
+     * <p>Peers, that are added to peer list right now.</p>
+     */
+    private final Set<Peer> adding = ConcurrentHashMap.newKeySet();
+
+    /**
+     * <p>Node sent a JOIN with a request for peers since
+     * the last refresh, its peer list may be incomplete.</p>
+     */
+    private volatile boolean joining = false;
+
+    /**
+     * <p>Peers, that asked for our peers while we were
+     * joining. They get the PEERLIST frames we receive,
+     * until the next refresh.</p>
+     */
+    private final Set<Peer> newcomers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * <p>Peers, that got a JOIN from us and did not answer
+     * with a POKE yet. They are listed in our PEERLIST frames
+     * like peers of peer list, until the next refresh.</p>
+     */
+    private final Set<Peer> invited = ConcurrentHashMap.newKeySet();
+
+    /**
+     * <p>Peers, we asked for their peers by a JOIN or a step
+     * of a DIGEST, with the time we asked. A PEERLIST is only
+     * accepted from these peers, for one refresh interval.</p>
+     */
+    private final ConcurrentHashMap<Peer, Long> asked = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Writer of the temporary connections, that send the
+     * JOIN frames to the peers of a PEERLIST, with up to
+     * {@code join.threads} threads on nodes, so a join does
+     * not open hundreds of sockets at once. Runs them on the
+     * calling thread on simulated nodes, where connects and
+     * writes never block.</p>
+     */
+    private final Executor joinWriters;
+
+    /**
+     * <p>Writers of all other connections.</p>
+     */
+    private final Executor writers;
+
+    /**
+     * <p>Source of the epochs of send windows, seeded
+     * by the network on simulated nodes.</p>
+     */
+    private final Random random;
+
+    /**
+     * <p>Peers, that sent a DISCONNECT, with the time
+     * it was received and the departed incarnation.</p>
+     */
+    private final ConcurrentHashMap<Peer, Departure> departed = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Peers, that were removed by the liveness check,
+     * with the time of removal.</p>
+     */
+    private final ConcurrentHashMap<Peer, Long> expired = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Number of digests sent, selects the peer
+     * of the next digest.</p>
+     */
+    private int digests;
+
+    /**
+     * <p>Number of expired peers asked to join again,
+     * selects the next one.</p>
+     */
+    private int rejoins;
+
+    /**
+     * <p>Prints a delivery receipt for acknowledged messages,
+     * when enabled. {@code null} when disabled (default).</p>
+     */
+    private DeliveryListener receipts;
+
+    /**
+     * <p>Latency of received frames, when tracing is
+     * enabled. {@code null} when disabled (default).</p>
+     */
+    private LatencyTracker latency;
+
+    /**
+     * <p>HTTP endpoint for metrics and the peer list, when
+     * {@code http.port} is set. {@code null} otherwise.</p>
+     */
+    private MetricsServer metrics;
+
+    /**
+     * <p>Opens the channels of all connections.</p>
+     */
+    private final Transport transport;
+
+    /**
+     * <p>Time source of the liveness checks.</p>
+     */
+    private final Clock clock;
+
+    /**
+     * <p>File of known peers, that is read at start and written
+     * by the timer and on exit. {@code null} when disabled by an
+     * empty {@code peers.file} and on simulated nodes.</p>
+     */
+    private PeerStore peerStore;
+
+    /**
+     * <p>Messages for peers, that are offline. {@code null}
+     * when disabled by an empty {@code journal.dir} and on
+     * simulated nodes.</p>
+     */
+    private Journal journal;
+
+    /**
+     * <p>Received and sent messages. Only recorded, when
+     * enabled by {@code history.dir}, never on simulated
+     * nodes, otherwise {@code null}.</p>
+     */
+    private History history;
+
+    /**
+     * <p>Trace of the traffic of this node. Only recorded,
+     * when enabled by {@code capture}, never on simulated
+     * nodes, otherwise {@code null}.</p>
+     */
+    private Capture capture;
+
+    /**
+     * <p>Limits of the frames of inbound connections.</p>
+     */
+    private final RateLimiter rateLimiter = new RateLimiter();
+
+    /**
+     * <p>Peers, whose journal is delivered right now.</p>
+     */
+    private final Set<Peer> draining = ConcurrentHashMap.newKeySet();
+
+    /**
+     * <p>Journal records, that were sent and are not
+     * acknowledged yet, by the message they were sent as.</p>
+     */
+    private final Map<Message, Journal.Record> journaled = Collections.synchronizedMap(new IdentityHashMap<>());
+
     /**
      * <p>Main constructor of whole application. Peer list gets
      * initiated, Server and Timer are started and the console
@@ -49,21 +275,111 @@ public class Application {
      * @param name  own name
      */
     public Application (int port, String name) {
+        // nodes of this JVM are connected without sockets, when enabled
+        transport = Configuration.getBoolean("local", true) ? new LocalTransport(Transport.SOCKET) : Transport.SOCKET;
+        clock = Clock.SYSTEM;
+
+        int joinThreads = Configuration.getInt("join.threads", 32);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(joinThreads, joinThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "join");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // threads end, when no peers were joined for a minute
+        pool.allowCoreThreadTimeOut(true);
+        joinWriters = pool;
+        writers = Connection.WRITERS;
+        random = new Random();
+
         try {
-            me = new Peer(InetAddress.getLocalHost().getHostAddress(), port, name);
-            // init synchronized peer list
-            connections = new LinkedBlockingQueue<>();
+            me = peerCache.intern(InetAddress.getLocalHost().getHostAddress(), port, name);
+            init();
+
+            String peerFile = Configuration.getString("peers.file", "messenger-" + port + ".peers");
+            if (!peerFile.isEmpty()) {
+                peerStore = new PeerStore(Paths.get(peerFile), peerCache);
+            }
+
+            String journalDir = Configuration.getString("journal.dir", "messenger-" + port + ".journal");
+            if (!journalDir.isEmpty()) {
+                try {
+                    journal = new Journal(Paths.get(journalDir), Configuration.getInt("journal.segment", 1 << 20),
+                            Configuration.getInt("journal.max", 64) * (1L << 20), Configuration.getInt("journal.ttl", 86400) * 1000L, peerCache);
+                } catch (IOException e) {
+                    System.err.println("> [" + new Date().toString() + "] Journal " + journalDir + " can not be opened, " +
+                            "messages to offline peers are dropped: " + e.getMessage());
+                }
+            }
+
+            // message contents are only kept on disk, when asked for
+            String historyDir = Configuration.getString("history.dir", "");
+            if (!historyDir.isEmpty()) {
+                try {
+                    history = new History(Paths.get(historyDir), Configuration.getInt("history.segment", 16) << 20,
+                            Configuration.getInt("history.max", 1024) * (1L << 20), Configuration.getInt("history.age", 30) * 86400000L,
+                            Configuration.getBoolean("history.search", true));
+                } catch (IOException e) {
+                    System.err.println("> [" + new Date().toString() + "] History " + historyDir + " can not be opened, " +
+                            "messages are not recorded: " + e.getMessage());
+                }
+            }
+
+            String captureFile = Configuration.getString("capture", "");
+            if (!captureFile.isEmpty()) {
+                try {
+                    capture = Capture.start(Paths.get(captureFile), me);
+                } catch (IOException e) {
+                    System.err.println("> [" + new Date().toString() + "] Capture " + captureFile + " can not be started, " +
+                            "traffic is not recorded: " + e.getMessage());
+                }
+            }
+
+            // load key material before listening, so a broken key store fails at start
+            if (TlsContext.isEnabled()) {
+                try {
+                    TlsContext.shared();
+                } catch (IOException e) {
+                    System.err.println("Fatal Error: Can not init TLS.\n" + e.getMessage());
+                    System.exit(1);
+                }
+            }
 
             // run server
             server = new Server(this, port);
             server.start();
 
+            if (transport instanceof LocalTransport) {
+                LocalTransport.register(this);
+            }
+
             // run timer
             timer = new Timer(this);
             timer.start();
 
+            // serve metrics, when configured
+            int httpPort = Configuration.getInt("http.port", 0);
+            if (httpPort > 0) {
+                try {
+                    metrics = new MetricsServer(this, Configuration.getString("http.host", "127.0.0.1"),
+                            httpPort, Configuration.getInt("http.threads", 2));
+                    metrics.start();
+                } catch (IOException e) {
+                    System.err.println("> [" + new Date().toString() + "] Metrics can not be served on port " + httpPort + ".");
+                }
+            }
+
             System.out.println("> [" + new Date().toString() + "] You are logged in as " + name + " and listening on " + me.getHostName() + ":" + me.getPort() + ".");
 
+            // rejoin the peers of the last run, in parallel like the peers of a PEERLIST
+            if (peerStore != null) {
+                List<Peer> cached = peerStore.load();
+                if (!cached.isEmpty()) {
+                    System.out.println("> [" + new Date().toString() + "] Rejoining " + cached.size() + " peers of " + peerStore.getPath() + ".");
+                    joinPeers(cached);
+                }
+            }
+
             // init a console associated with this application
             DefaultConsole console = new DefaultConsole(this);
             console.start();
@@ -75,155 +391,1229 @@ public class Application {
     }
 
     /**
-     * <p>Remove a connection from peer list. This is necessary,
-     * because connection will be closed and removed from the
-     * synchronized list.</p>
-     * @param c connection to remove
+     * <p>Creates a node without server, timer and console,
+     * driven by a {@link SimulatedNetwork}. Frames are passed
+     * in with {@link Application#deliver(String)} and the timer
+     * procedure is run with {@link Application#refresh()}.</p>
+     * @param me        own peer
+     * @param transport opens the channels of all connections
+     * @param clock     time source
+     * @param executor  runs the writers of all connections, {@code Runnable::run} keeps a run reproducible
+     * @param random    source of the epochs of send windows
+     */
+    Application (Peer me, Transport transport, Clock clock, Executor executor, Random random) {
+        this.me = me;
+        this.transport = transport;
+        this.clock = clock;
+        this.joinWriters = executor;
+        this.writers = executor;
+        this.random = random;
+        init();
+    }
+
+    /**
+     * <p>Inits peer list and the optional parts of the
+     * application from the configuration.</p>
+     */
+    private void init () {
+        // 0 means unknown on the wire
+        incarnation = Math.max(1, clock.millis());
+
+        // init synchronized peer list
+        connections = new LinkedBlockingQueue<>();
+
+        // limit open connections, when configured
+        int maxConnections = Configuration.getInt("connections.max", 0);
+        if (maxConnections > 0) {
+            connectionCache = new ConnectionCache(maxConnections);
+        }
+
+        // print delivery receipts, when configured
+        if (Configuration.getBoolean("receipts", false)) {
+            receipts = (peer, message) -> Renderer.status("> [" + new Date().toString() + "] " +
+                    peer.getName() + " received: " + message.getText());
+        }
+
+        // stamp outgoing frames and record latency, when configured
+        if (Configuration.getBoolean("trace", false)) {
+            latency = new LatencyTracker();
+        }
+
+        // init routing table, when running in overlay mode
+        if (Configuration.getBoolean("overlay", false)) {
+            routingTable = new RoutingTable(me, Configuration.getInt("overlay.k", 8));
+        }
+    }
+
+    /**
+     * <p>Sends a JOIN to a peer without adding it to the
+     * peer list. The peer answers with its own POKE, when
+     * it adds us to its peer list, and with a PEERLIST of
+     * all its peers, which we connect to in parallel.</p>
+     * @param peer  peer to connect to
+     */
+    public void connect (Peer peer) {
+        joining = true;
+        asked.put(peer, clock.millis());
+        Connection temp = temporary(peer, writers);
+        temp.sendMessage(stamp(new Message("JOIN", me, PEERS_REQUEST)));
+        temp.finish();
+    }
+
+    /**
+     * <p>Adds a peer to peer list. Only one thread adds a
+     * peer, other threads handling a POKE of the same peer at
+     * the same time see it as known.</p>
+     * @param peer          new peer
+     * @param clientHandler client handler, can be null
+     * @return  new connection or {@code null}, when the peer is known
+     */
+    private Connection addPeer (Peer peer, ClientHandler clientHandler) {
+        if (getConnection(peer) != null || !adding.add(peer)) {
+            return null;
+        }
+
+        try {
+            // the peer might have been added between both checks
+            if (getConnection(peer) != null) {
+                return null;
+            }
+
+            Connection newPeer = new Connection(peer, clientHandler, connectionCache, transport, clock, random, writers);
+            newPeer.setCapture(capture);
+            newPeer.setDeliveryListener(this::delivered);
+            newPeer.setStallListener(this::stalled);
+            // add peer to peer list
+            connections.add(newPeer);
+            invited.remove(peer);
+            departed.remove(peer);
+
+            Renderer.status("> [" + new Date().toString() + "] " + peer.getName() + " (" + peer.getHostName() + ":" + peer.getPort() + ") is online.");
+
+            if (expired.remove(peer) != null && routingTable == null) {
+                // the peer was cut off, its peer list may have changed since
+                sendDigest(newPeer);
+            }
+            return newPeer;
+        } finally {
+            adding.remove(peer);
+        }
+    }
+
+    /**
+     * <p>Deletes an acknowledged message from the journal,
+     * when it was sent from there, and prints the receipt,
+     * when enabled.</p>
+     * @param peer      receiving peer
+     * @param message   acknowledged message
+     */
+    private void delivered (Peer peer, Message message) {
+        Journal.Record record = journaled.remove(message);
+        if (record != null) {
+            journal.acknowledge(peer, record);
+        }
+
+        if (receipts != null) {
+            receipts.delivered(peer, message);
+        }
+    }
+
+    /**
+     * <p>Removes a peer, that did not read until the send
+     * deadline. Its unacknowledged messages are written to the
+     * journal, they are delivered, when it pokes us again or
+     * is rejoined as an expired peer.</p>
+     * @param c connection, whose channel was closed
+     */
+    private void stalled (Connection c) {
+        if (!connections.contains(c)) {
+            return;
+        }
+
+        List<Message> pending = c.takePending();
+        int total = pending.size();
+        // messages of the journal are still in there
+        pending.removeIf(journaled::containsKey);
+        int spilled = total - pending.size();
+
+        // found by name for new messages and rejoined like a cut off peer
+        expired.put(c.getPeer(), clock.millis());
+        removeConnection(c);
+
+        for (Message message : pending) {
+            if (journal != null && message.hasText() && journal.append(c.getPeer(), message.getText())) {
+                spilled++;
+            }
+        }
+
+        System.err.println("> [" + new Date().toString() + "] " + c.getPeer().toString() + " removed from peer list, " +
+                spilled + " of " + total + " unacknowledged messages queued.");
+    }
+
+    /**
+     * <p>Gets the peers of peer list.</p>
+     * @return  peers of peer list in order of the list
+     */
+    private LinkedHashSet<Peer> getPeers () {
+        LinkedHashSet<Peer> peers = new LinkedHashSet<>();
+        for (Connection c : connections) {
+            peers.add(c.getPeer());
+        }
+
+        return peers;
+    }
+
+    /**
+     * <p>Sends peers to a peer, split into PEERLIST frames of
+     * {@link Application#PEERLIST_SIZE} peers. Every peer is
+     * written as name, ip address and port.</p>
+     * @param peer          receiving peer
+     * @param connection    connection of receiving peer, can be null
+     * @param peers         peers to send
+     */
+    private void sendPeerList (Peer peer, Connection connection, Collection<Peer> peers) {
+        ArrayList<Message> frames = new ArrayList<>();
+        StringBuilder list = new StringBuilder();
+        int count = 0;
+        for (Peer listed : peers) {
+            if (listed.equals(peer)) {
+                continue;
+            }
+
+            if (count > 0) {
+                list.append(' ');
+            }
+            list.append(listed.hasName() ? listed.getName() : "-").append(' ')
+                    .append(listed.getHostName()).append(' ').append(listed.getPort());
+
+            if (++count == PEERLIST_SIZE) {
+                frames.add(new Message("PEERLIST", me, list.toString()));
+                list.setLength(0);
+                count = 0;
+            }
+        }
+
+        if (count > 0) {
+            frames.add(new Message("PEERLIST", me, list.toString()));
+        }
+
+        if (!frames.isEmpty()) {
+            sendFrames(peer, connection, frames);
+        }
+    }
+
+    /**
+     * <p>Creates a temporary connection to a peer, that is
+     * not in peer list or does not get the frame through its
+     * connection. Its frames are recorded by the capture.</p>
+     * @param peer      peer
+     * @param executor  runs the writer of the connection
+     * @return  new connection, closed by {@link Connection#finish()}
+     */
+    private Connection temporary (Peer peer, Executor executor) {
+        Connection temp = new Connection(peer, null, null, transport, clock, random, executor);
+        temp.setCapture(capture);
+        return temp;
+    }
+
+    /**
+     * <p>Sends frames to a peer through its connection or
+     * a temporary connection.</p>
+     * @param peer          peer
+     * @param connection    connection of peer, can be null
+     * @param frames        frames to send
+     */
+    private void sendFrames (Peer peer, Connection connection, List<Message> frames) {
+        // new peers outside of our routing table get the list through a temporary connection
+        Connection target = connection != null ? connection : temporary(peer, writers);
+        for (Message frame : frames) {
+            target.sendMessage(stamp(frame));
+        }
+        if (connection == null) {
+            target.finish();
+        }
+    }
+
+    /**
+     * <p>Parses the text of a PEERLIST message.</p>
+     * @param text  names, ip addresses and ports
+     * @return  listed peers
+     */
+    private List<Peer> parsePeerList (String text) {
+        ArrayList<Peer> peers = new ArrayList<>();
+        String[] parts = text.split(" ");
+        try {
+            for (int i = 0; i + 2 < parts.length; i += 3) {
+                peers.add(peerCache.intern(parts[i + 1], Integer.parseInt(parts[i + 2]), parts[i].equals("-") ? null : parts[i]));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: PEERLIST expects name, ip address and port of every peer.");
+        }
+
+        return peers;
+    }
+
+    /**
+     * <p>Sends a JOIN to all listed peers, that are not in peer
+     * list yet. They are added, when they answer with a POKE, like
+     * after CONNECT, so peers that do not keep us in their routing
+     * table are not kept either. Connections are opened in parallel
+     * by up to {@code join.threads} threads, so the join takes about
+     * one round trip instead of one per peer.</p>
+     * @param peers listed peers
+     */
+    private void joinPeers (List<Peer> peers) {
+        ArrayList<Peer> unknown = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (!peer.equals(me) && getConnection(peer) == null && !departed.containsKey(peer) &&
+                    (routingTable == null || routingTable.accepts(peer))) {
+                unknown.add(peer);
+            }
+        }
+
+        if (unknown.isEmpty()) {
+            return;
+        }
+
+        invited.addAll(unknown);
+        for (Peer peer : unknown) {
+            Connection temp = temporary(peer, joinWriters);
+            temp.sendMessage(stamp(new Message("JOIN", me)));
+            temp.finish();
+        }
+    }
+
+    /**
+     * <p>Pokes all active peers, retransmits unacknowledged
+     * messages of idle connections and removes inactive peers
+     * from peer list. Run by {@link Timer} every
+     * {@link Application#REFRESH_INTERVAL} milliseconds.</p>
+     */
+    void refresh () {
+        // peer lists of earlier joins are complete by now
+        joining = false;
+        newcomers.clear();
+        invited.clear();
+
+        // init buffer, to store inactive peers
+        ArrayDeque<Connection> buffer = new ArrayDeque<>();
+        // same poke for every peer, encoded once
+        Frame poke = new Frame(stamp(new Message("POKE", me)));
+
+        // iterate peer list
+        for (Connection c : connections) {
+            if (c.isInactive()) {
+                // add inactive peers to buffer
+                buffer.add(c);
+            } else if (c.isHeartbeatDue()) {
+                // poke active peers, idle connections less often,
+                // every heartbeat costs them a temporary socket
+                c.sendFrame(poke);
+                // retransmit unacknowledged messages of idle connections
+                c.resume();
+            }
+        }
+
+        // remove all inactive peers from peer list
+        for (Connection c : buffer) {
+            c.recordExpiry(true);
+            removeConnection(c);
+            expired.put(c.getPeer(), clock.millis());
+        }
+
+        if (peerStore != null) {
+            peerStore.save(getPeers());
+        }
+
+        if (journal != null) {
+            journal.expire();
+        }
+
+        long now = clock.millis();
+        departed.values().removeIf(departure -> departure.time + DEPARTED_TTL < now);
+        expired.values().removeIf(time -> time + EXPIRED_TTL < now);
+        asked.values().removeIf(time -> time + REFRESH_INTERVAL < now);
+
+        // anti-entropy, every interval one peer in turn compares its peer list with ours,
+        // in overlay mode peer lists differ by design and routing reaches everybody
+        ArrayList<Connection> active = new ArrayList<>(connections);
+        if (routingTable == null && !active.isEmpty()) {
+            sendDigest(active.get(Math.floorMod(digests++, active.size())));
+        }
+
+        // expired peers answer again, when a partition is healed
+        ArrayList<Peer> lost = new ArrayList<>(expired.keySet());
+        if (!lost.isEmpty()) {
+            joinPeers(Collections.singletonList(lost.get(Math.floorMod(rejoins++, lost.size()))));
+        }
+    }
+
+    /**
+     * <p>Gets the digest of peer list and this node.</p>
+     * @return  digest
+     */
+    private MembershipDigest digest () {
+        LinkedHashSet<Peer> peers = getPeers();
+        peers.add(me);
+        return new MembershipDigest(peers);
+    }
+
+    /**
+     * <p>Starts the comparison of peer lists with a peer by
+     * sending the root hash of our {@link MembershipDigest}.</p>
+     * @param connection    connection of peer
+     */
+    private void sendDigest (Connection connection) {
+        connection.sendMessage(stamp(new Message("DIGEST", me, "root " + Long.toHexString(digest().getRoot()))));
+    }
+
+    /**
+     * <p>Handles a step of the comparison of peer lists, that
+     * costs one small frame, while the lists are equal:</p>
+     * <p>root: the root hash of the peer. When it differs from
+     * ours, we answer with the hashes of all buckets.<br>
+     * buckets: the bucket hashes of the peer. We send our peers
+     * of all different buckets in a PEERLIST and ask for the
+     * peer's with pull.<br>
+     * pull: buckets, the peer asks for. We send our peers of
+     * these buckets in a PEERLIST.</p>
+     * <p>Both sides join the unknown peers of a received PEERLIST.
+     * Peers, we know to be departed, are answered by their
+     * DISCONNECT.</p>
+     * @param message   DIGEST message
+     */
+    private void reconcile (Message message) {
+        Peer peer = message.getPeer();
+        String[] parts = message.getText().split(" ");
+        MembershipDigest own = digest();
+        try {
+            switch (parts[0]) {
+                case "root": {
+                    if (Long.parseUnsignedLong(parts[1], 16) != own.getRoot()) {
+                        // the peer answers a difference with a PEERLIST
+                        asked.put(peer, clock.millis());
+                        sendFrames(peer, getConnection(peer),
+                                Collections.singletonList(new Message("DIGEST", me, "buckets " + own.encode())));
+                    }
+                    break;
+                }
+
+                case "buckets": {
+                    List<Integer> diff = own.diff(MembershipDigest.parse(parts, 1));
+                    if (diff.isEmpty()) {
+                        break;
+                    }
+
+                    StringBuilder pull = new StringBuilder("pull");
+                    for (int bucket : diff) {
+                        pull.append(' ').append(bucket);
+                    }
+                    asked.put(peer, clock.millis());
+                    sendFrames(peer, getConnection(peer),
+                            Collections.singletonList(new Message("DIGEST", me, pull.toString())));
+                    sendPeerList(peer, getConnection(peer), getPeers(diff));
+                    break;
+                }
+
+                case "pull": {
+                    ArrayList<Integer> buckets = new ArrayList<>();
+                    for (int i = 1; i < parts.length; i++) {
+                        buckets.add(Integer.parseInt(parts[i]));
+                    }
+                    sendPeerList(peer, getConnection(peer), getPeers(buckets));
+                    break;
+                }
+
+                default: {
+                    System.err.println("Error: DIGEST expects root, buckets or pull.");
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Error: DIGEST " + parts[0] + " is malformed.");
+        }
+    }
+
+    /**
+     * <p>Gets the peers of peer list and this node,
+     * that are in the given buckets.</p>
+     * @param buckets   buckets of a {@link MembershipDigest}
+     * @return  peers in the given buckets
+     */
+    private List<Peer> getPeers (Collection<Integer> buckets) {
+        LinkedHashSet<Peer> peers = getPeers();
+        peers.add(me);
+
+        ArrayList<Peer> selected = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (buckets.contains(MembershipDigest.bucket(peer))) {
+                selected.add(peer);
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * <p>Handles frames a {@link SimulatedNetwork} delivers
+     * to this node, like a {@link ClientHandler} would.</p>
+     * @param line  received line
+     */
+    void deliver (String line) {
+        receiveMessage(line, null);
+        sendAcknowledgements();
+    }
+
+    /**
+     * <p>Handles a line a {@link CaptureReplay} feeds in. Like
+     * a {@link ClientHandler}, lines of one read are acknowledged
+     * together after the last one.</p>
+     * @param line  captured line
+     * @param last  last line of a read
+     */
+    void replay (String line, boolean last) {
+        receiveMessage(line, null);
+        if (last) {
+            sendAcknowledgements();
+        }
+    }
+
+    /**
+     * <p>Handles messages a {@link LocalTransport} hands
+     * over and acknowledges them at once.</p>
+     * @param messages  received messages
+     */
+    void deliver (List<Message> messages) {
+        for (Message message : messages) {
+            if (capture != null) {
+                capture.received(message);
+            }
+            dispatch(message, null, 0);
+        }
+        sendAcknowledgements();
+    }
+
+    /**
+     * <p>Handles the end of the stream of a peer, that poked
+     * us through a connection with more than one frame, unlike
+     * a temporary socket. The peer closed its idle connection
+     * to us, so it pokes us less often, until it opens it
+     * again. Called by {@link ClientHandler}, a
+     * {@link LocalTransport} and a {@link SimulatedNetwork}.</p>
+     * @param peer  peer, that closed its connection
+     */
+    void linkClosed (Peer peer) {
+        Connection c = getConnection(peer);
+        if (c != null) {
+            c.setQuiet();
+        }
+    }
+
+    /**
+     * <p>Remove a connection from peer list. This is necessary,
+     * because connection will be closed and removed from the
+     * synchronized list.</p>
+     * @param c connection to remove
+     */
+    private void removeConnection (Connection c) {
+        // closing given connection
+        c.close();
+
+        // removing connection from peer list
+        connections.remove(c);
+        peerCache.evict(c.getPeer());
+
+        // unacknowledged records of the journal are sent again on the next connection
+        if (journal != null) {
+            journaled.values().removeIf(record -> record.getPeer().equals(c.getPeer()));
+            journal.rewind(c.getPeer());
+        }
+        deliveries.forget(c.getPeer());
+        if (latency != null) {
+            latency.forget(c.getPeer());
+        }
+
+        // free bucket space for new peers
+        if (routingTable != null) {
+            routingTable.remove(c.getPeer());
+        }
+    }
+
+    /**
+     * <p>Clear whole peer list by sending DISCONNECT messages
+     * to everyone and clearing {@link Application#connections}.
+     * The messages are sent in parallel, so dead peers do not
+     * hold up the others. Connections, that could not be
+     * notified within {@code shutdown.timeout} milliseconds,
+     * are closed anyway.</p>
+     * @return  number of notified peers
+     */
+    public int removeAll () {
+        long timeout = Configuration.getInt("shutdown.timeout", 5000);
+        long deadline = System.currentTimeMillis() + timeout;
+
+        // take peers out of the list first, so the timer stops poking them
+        ArrayList<Connection> peers = new ArrayList<>(connections);
+        connections.clear();
+
+        // queue all frames first, their writers send them in parallel
+        Frame disconnect = new Frame(stamp(new Message("DISCONNECT", me)));
+        ArrayList<Connection> queued = new ArrayList<>();
+        for (Connection c : peers) {
+            if (c.sendLast(disconnect)) {
+                queued.add(c);
+            }
+        }
+
+        int count = 0;
+        for (Connection c : queued) {
+            if (c.awaitLast(deadline)) {
+                count++;
+            }
+        }
+
+        for (Connection c : peers) {
+            c.close();
+            peerCache.evict(c.getPeer());
+            deliveries.forget(c.getPeer());
+        }
+
+        // clear list
+        if (routingTable != null) {
+            routingTable.clear();
+        }
+
+        if (count < peers.size()) {
+            System.out.println("> [" + new Date().toString() + "] Disconnected from all peers, " + count + " of " +
+                    peers.size() + " notified within " + timeout + " ms.");
+        } else {
+            System.out.println("> [" + new Date().toString() + "] Disconnected from all peers.");
+        }
+        return count;
+    }
+
+    /**
+     * <p>Shutdown server and timer thread. Closes the server
+     * socket and all client sockets, so no thread stays blocked
+     * in accept or read.</p>
+     */
+    public void exit () {
+        // pending lines go before the shutdown messages
+        Renderer.flush();
+
+        // store peer list, before it is cleared
+        if (peerStore != null) {
+            peerStore.save(getPeers());
+        }
+
+        // disconnect from all peers
+        removeAll();
+
+        // nodes of a simulated network have no threads
+        if (server == null) {
+            return;
+        }
+
+        // links to this node fail from now on
+        if (transport instanceof LocalTransport) {
+            LocalTransport.unregister(this);
+        }
+
+        // shutdown server
+        server.terminate();
+        System.out.println("> [" + new Date().toString() + "] Server shutdown.");
+
+        // terminate timer
+        timer.terminate();
+        System.out.println("> [" + new Date().toString() + "] Timer terminated.");
+
+        // stop metrics endpoint
+        if (metrics != null) {
+            metrics.stop();
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        if (history != null) {
+            history.close();
+        }
+
+        if (capture != null) {
+            capture.stop();
+        }
+    }
+
+    /**
+     * <p>Handles messages the server receives.
+     * Forwards POKE and DISCONNECT messages and
+     * prints MESSAGE messages.</p>
+     * @param input raw     input message
+     * @param clientHandler client handler
+     */
+    private void receiveMessage (String input, ClientHandler clientHandler) {
+        // catch null messages
+        if (input != null) {
+            // generating message from input string
+            ParseEvent parse = new ParseEvent();
+            parse.begin();
+            Message message = new Message(input, peerCache);
+            parse.end();
+            if (parse.shouldCommit()) {
+                parse.setMessage(message);
+                parse.bytes = input.getBytes(StandardCharsets.UTF_8).length;
+                parse.commit();
+            }
+
+            if (message.getCommand() == null) {
+                // invalid message, error is already printed
+                return;
+            }
+
+            // the sender of a poke or join is the peer of the connection
+            if (clientHandler != null && (message.getCommand().equals("POKE") || message.getCommand().equals("JOIN"))) {
+                clientHandler.limit.identify(message.getPeer());
+                if (message.getCommand().equals("POKE")) {
+                    clientHandler.sender = message.getPeer();
+                }
+            }
+            if (clientHandler != null) {
+                clientHandler.frames++;
+            }
+
+            dispatch(message, clientHandler, parse.bytes);
+        }
+    }
+
+    /**
+     * <p>Handles a received message, that was parsed from
+     * a line or handed over by a {@link LocalTransport}.</p>
+     * @param message       received message
+     * @param clientHandler client handler, can be null
+     * @param bytes         length of the encoded message, 0 when it was not encoded
+     */
+    private void dispatch (Message message, ClientHandler clientHandler, long bytes) {
+        if (latency != null && message.hasTimestamp()) {
+            latency.record(message);
+        }
+
+        DispatchEvent dispatch = new DispatchEvent();
+        dispatch.begin();
+
+        // behaviour by command
+        switch (message.getCommand()) {
+            case "POKE": {
+                // check if peer is already in peer list
+                Connection known = getConnection(message.getPeer());
+                if (known != null) {
+                    // reset last poke time
+                    known.resetLastPoke();
+                    known.setIncarnation(message.getIncarnation());
+                    break;
+                }
+
+                if (message.getPeer().equals(me) || isDeparted(message)) {
+                    break;
+                }
+
+                // in overlay mode we only connect to peers that fit into
+                // our routing table, everybody else is reached by routing
+                if (routingTable != null && !routingTable.offer(message.getPeer())) {
+                    break;
+                }
+
+                Connection newPeer = addPeer(message.getPeer(), clientHandler);
+                if (newPeer != null) {
+                    newPeer.setIncarnation(message.getIncarnation());
+                    // send poke to the new connection
+                    newPeer.poke(this);
+                }
+                break;
+            }
+
+            case "JOIN": {
+                // like POKE, new peers are announced by JOIN and PEERLIST instead of forwarded pokes
+                Connection known = getConnection(message.getPeer());
+                if (known != null) {
+                    known.resetLastPoke();
+                    known.setIncarnation(message.getIncarnation());
+                    // only peers, that do not list us, send a JOIN
+                    known.poke(this);
+                } else if (isDeparted(message)) {
+                    // a late JOIN of the departed incarnation
+                    break;
+                } else if (!message.getPeer().equals(me) && (routingTable == null || routingTable.offer(message.getPeer()))) {
+                    known = addPeer(message.getPeer(), clientHandler);
+                    if (known != null) {
+                        known.setIncarnation(message.getIncarnation());
+                        known.poke(this);
+                    }
+                }
+
+                if (message.getText().equals(PEERS_REQUEST)) {
+                    LinkedHashSet<Peer> peers = getPeers();
+                    peers.addAll(invited);
+                    sendPeerList(message.getPeer(), known, peers);
+                    if (joining) {
+                        // our own list is still incomplete, the rest follows with our PEERLIST frames
+                        newcomers.add(message.getPeer());
+                    }
+
+                    // announce the new peer to our peers, in case they are not in the list it gets
+                    Message joined = new Message("JOIN", message.getPeer());
+                    joined.setIncarnation(message.getIncarnation());
+                    broadcast(forwarded(joined));
+                }
+                break;
+            }
+
+            case "PEERLIST": {
+                // a PEERLIST, nobody asked for, would make us connect to arbitrary addresses
+                if (!asked.containsKey(message.getPeer())) {
+                    System.err.println("> [" + new Date().toString() + "] Ignored PEERLIST of " +
+                            message.getPeer().getName() + ", that was not asked for.");
+                    break;
+                }
+
+                for (Peer newcomer : newcomers) {
+                    sendFrames(newcomer, getConnection(newcomer),
+                            Collections.singletonList(new Message("PEERLIST", me, message.getText())));
+                }
+
+                List<Peer> peers = parsePeerList(message.getText());
+                for (Peer peer : peers) {
+                    Departure departure = departed.get(peer);
+                    if (departure != null) {
+                        // the sender missed the DISCONNECT of a listed peer, it ignores
+                        // the DISCONNECT, when it knows a newer incarnation of the peer
+                        Message disconnect = new Message("DISCONNECT", peer);
+                        disconnect.setIncarnation(departure.incarnation);
+                        sendFrames(message.getPeer(), getConnection(message.getPeer()),
+                                Collections.singletonList(forwarded(disconnect)));
+                    }
+                }
+                joinPeers(peers);
+                break;
+            }
+
+            case "DIGEST": {
+                reconcile(message);
+                break;
+            }
+
+            case "DISCONNECT": {
+                // a DISCONNECT of an earlier incarnation of a restarted peer
+                Connection known = getConnection(message.getPeer());
+                if (known != null && message.hasIncarnation() && message.getIncarnation() < known.getIncarnation()) {
+                    break;
+                }
+
+                forwarded(message);
+                if (!message.getPeer().equals(me)) {
+                    departed.put(message.getPeer(), new Departure(clock.millis(), message.getIncarnation()));
+                }
+                // check if peer is in peer list
+                for (Iterator<Connection> it = connections.iterator(); it.hasNext();) {
+                    Connection c = it.next();
+                    if (c.getPeer().equals(message.getPeer())) {
+                        Renderer.status("> [" + new Date().toString() + "] " + c.getPeer().getName() + " (" + c.getPeer().getHostName() +
+                                ":" + c.getPeer().getPort() + ") disconnected.");
+
+                        // remove him from peer list
+                        c.close();
+                        it.remove();
+                        peerCache.evict(c.getPeer());
+                        deliveries.forget(c.getPeer());
+                        if (latency != null) {
+                            latency.forget(c.getPeer());
+                        }
+                        if (routingTable != null) {
+                            routingTable.remove(c.getPeer());
+                        }
+
+                        // forward disconnect message to all peers
+                        broadcast(message);
+                    }
+                }
+
+                break;
+            }
+
+            case "MESSAGE": {
+                // drop retransmitted messages, that were already shown
+                if (message.hasSequence() && !deliveries.accept(message)) {
+                    break;
+                }
+
+                // show received message with timestamp, name and text
+                Renderer.message(message.getPeer().getName(),
+                        "> [" + new Date().toString() + "] " + message.getPeer().getName() + " -> You: " + message.getText());
+                if (history != null) {
+                    history.received(message.getPeer(), message.getText());
+                }
+                break;
+            }
+
+            case "ACK": {
+                // the epoch of the ACK selects the right connection
+                for (Connection c : connections) {
+                    if (c.getPeer().equals(message.getPeer())) {
+                        c.acknowledge(message);
+                    }
+                }
+                break;
+            }
+
+            case "ROUTE": {
+                // text starts with ip address and port of the destination
+                String[] parts = message.getText().split(" ", 3);
+                try {
+                    Peer destination = new Peer(parts[0], Integer.parseInt(parts[1]));
+                    if (destination.equals(me)) {
+                        Renderer.message(message.getPeer().getName(),
+                                "> [" + new Date().toString() + "] " + message.getPeer().getName() + " -> You: " + (parts.length > 2 ? parts[2] : ""));
+                        if (history != null) {
+                            history.received(message.getPeer(), parts.length > 2 ? parts[2] : "");
+                        }
+                    } else if (!route(destination, forwarded(message))) {
+                        System.err.println("> [" + new Date().toString() + "] Can not route message from " + message.getPeer().getName() +
+                                " to " + destination.getHostName() + ":" + destination.getPort() + ".");
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.err.println("Error: ROUTE expects destination ip address and port.");
+                }
+                break;
+            }
+
+            default: {
+                System.err.println("Valid command expected, but "
+                        + message.getCommand()+ " found instead. Message not handled.");
+            }
+        }
+
+        // messages, that were written while the peer was offline, follow its POKE
+        if (journal != null && (message.getCommand().equals("POKE") || message.getCommand().equals("JOIN")) &&
+                journal.hasUntaken(message.getPeer())) {
+            drain(message.getPeer());
+        }
+
+        dispatch.end();
+        if (dispatch.shouldCommit()) {
+            dispatch.setMessage(message);
+            dispatch.bytes = bytes;
+            dispatch.commit();
+        }
+    }
+
+    /**
+     * <p>Sends the cumulative ACKs for all MESSAGE frames received
+     * since the last call. Called by {@link ClientHandler}, when
+     * it read everything available, so a burst of messages is
+     * acknowledged once instead of once per message.</p>
+     */
+    private void sendAcknowledgements () {
+        if (!deliveries.hasPending()) {
+            return;
+        }
+
+        for (Map.Entry<Peer, Message> ack : deliveries.drain(me).entrySet()) {
+            Connection c = getConnection(ack.getKey());
+            if (c != null) {
+                c.sendMessage(ack.getValue());
+            } else {
+                // sender is not in peer list, answer through a temporary connection
+                Connection temp = temporary(ack.getKey(), writers);
+                temp.sendMessage(ack.getValue());
+                temp.finish();
+            }
+        }
+    }
+
+    /**
+     * <p>Sets the time of creation on a message, that
+     * originates from this node, when tracing is enabled.
+     * JOIN, POKE and DISCONNECT get the incarnation.</p>
+     * @param message   new message
+     * @return  given message
+     */
+    Message stamp (Message message) {
+        if (latency != null) {
+            message.setTimestamp(LatencyTracker.now(), 0);
+        }
+
+        switch (message.getCommand()) {
+            case "JOIN":
+            case "POKE":
+            case "DISCONNECT": {
+                message.setIncarnation(incarnation);
+                break;
+            }
+        }
+
+        return message;
+    }
+
+    /**
+     * <p>Counts a forward of a traced message, before it
+     * is sent on to other peers.</p>
+     * @param message   received message
+     * @return  given message
+     */
+    private Message forwarded (Message message) {
+        if (message.hasTimestamp()) {
+            message.setTimestamp(message.getTimestamp(), message.getHops() + 1);
+        }
+
+        return message;
+    }
+
+    /**
+     * <p>Finds the connection of a peer in peer list.</p>
+     * @param peer  peer
+     * @return  connection or {@code null}, when peer is not in peer list
+     */
+    private Connection getConnection (Peer peer) {
+        for (Connection c : connections) {
+            if (c.getPeer().equals(peer)) {
+                return c;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * <p>Checking if peer, you want to send a message
+     * to, is in peer list and sends the message if so.
+     * Otherwise throws a exception.</p>
+     * @param peer      peer to send the message to
+     * @param message   message
+     */
+    public void sendMessage (Peer peer, Message message) {
+        stamp(message);
+
+        // messages of the journal go first, new ones are queued behind them
+        if (isQueuing(peer, message) && queue(peer, message, getConnection(peer) == null)) {
+            drain(peer);
+            return;
+        }
+
+        boolean peerFound = false;
+        Peer temp = null;
+        for (Connection c : connections) {
+            if (c.getPeer().equals(peer) && c.valid) {
+                c.sendMessage(message);
+                peerFound = true;
+                temp = c.getPeer();
+            }
+        }
+
+        // in overlay mode peers we are not connected to are reached hop by hop
+        if (!peerFound && routingTable != null && message.getCommand().equals("MESSAGE")) {
+            Message routed = new Message("ROUTE", message.getPeer(),
+                    peer.getHostName() + " " + peer.getPort() + " " + message.getText());
+            routed.setTimestamp(message.getTimestamp(), 0);
+            peerFound = route(peer, routed);
+            temp = peer;
+        }
+
+        if (!peerFound && message.getCommand().equals("MESSAGE") && queue(peer, message, true)) {
+            return;
+        }
+
+        if (!peerFound) {
+            System.err.println("> [" + new Date().toString() + "] Valid adress expected. " +
+                    "The client you tried to message may have gone offline.");
+        } else {
+            if (message.hasText() && temp.hasName()) {
+                Renderer.echo("> [" + new Date().toString() + "] You -> " + temp.getName() + ": " + message.getText());
+            }
+
+            if (message.hasText() && history != null && message.getCommand().equals("MESSAGE")) {
+                history.sent(temp, message.getText());
+            }
+        }
+
+    }
+
+    /**
+     * <p>Checks if a message has to be queued behind the journal
+     * of a peer, that is not delivered completely.</p>
+     * @param peer      receiving peer
+     * @param message   message
+     * @return  {@code true} if the journal of the peer has records or is delivered right now
      */
-    private void removeConnection (Connection c) {
-        // closing given connection
-        c.close();
-
-        // removing connection from peer list
-        connections.remove(c);
+    private boolean isQueuing (Peer peer, Message message) {
+        return journal != null && message.getCommand().equals("MESSAGE") && message.hasText() &&
+                (draining.contains(peer) || journal.has(peer));
     }
 
     /**
-     * <p>Clear whole peer list by sending DISCONNECT messages
-     * to everyone and clearing {@link Application#connections}.</p>
+     * <p>Writes a message for an offline peer to the journal.
+     * It is delivered, when the peer pokes us again. Messages
+     * for peers, whose journal is not delivered yet, are
+     * written there as well, so they keep their order.</p>
+     * @param peer      receiving peer
+     * @param message   MESSAGE message
+     * @param offline   peer is not in peer list
+     * @return  {@code true} if the message was written
      */
-    public void removeAll () {
-        for (Connection c : connections) {
-            c.sendMessage(new Message("DISCONNECT", me));
-            c.close();
+    private boolean queue (Peer peer, Message message, boolean offline) {
+        if (journal == null || !message.hasText() || peer.equals(me)) {
+            return false;
         }
 
-        // clear list
-        connections.clear();
-        System.out.println("> [" + new Date().toString() + "] Disconnected from all peers.");
+        if (!journal.append(peer, message.getText())) {
+            System.err.println("> [" + new Date().toString() + "] Journal is full, message to " +
+                    peer.getHostName() + ":" + peer.getPort() + " is dropped.");
+            return false;
+        }
+
+        Renderer.echo("> [" + new Date().toString() + "] You -> " + (peer.hasName() ? peer.getName() : peer.getHostName() + ":" + peer.getPort()) +
+                (offline ? " (offline, queued): " : ": ") + message.getText());
+        if (history != null) {
+            history.sent(peer, message.getText());
+        }
+        return true;
     }
 
     /**
-     * <p>Shutdown server and timer thread.</p>
+     * <p>Finds a peer, that is not in peer list, by name. Expired
+     * and departed peers and peers with queued messages are known.</p>
+     * @param name  name of peer
+     * @return  peer or {@code null}, when no such peer is known
      */
-    public void exit () {
-        // disconnect from all peers
-        removeAll();
+    private Peer findOffline (String name) {
+        ArrayList<Peer> known = new ArrayList<>(expired.keySet());
+        known.addAll(departed.keySet());
+        if (journal != null) {
+            known.addAll(journal.getPeers());
+        }
 
-        // shutdown server
-        server.terminate();
-        System.out.println("> [" + new Date().toString() + "] Server shutdown.");
+        for (Peer peer : known) {
+            if (name.equals(peer.getName())) {
+                return peer;
+            }
+        }
 
-        // terminate timer
-        timer.terminate();
-        System.out.println("> [" + new Date().toString() + "] Timer terminated.");
+        return null;
     }
 
     /**
-     * <p>Handles messages the server receives.
-     * Forwards POKE and DISCONNECT messages and
-     * prints MESSAGE messages.</p>
-     * @param input raw     input message
-     * @param clientHandler client handler
+     * <p>Delivers the journal of a peer in order, in a separate
+     * thread. Records are taken, while the send window of the
+     * connection has room, so the journal is not moved into
+     * memory at once.</p>
+     * @param peer  peer, that poked us
      */
-    private void receiveMessage (String input, ClientHandler clientHandler) {
-        // catch null messages
-        if (input != null) {
-            // generating message from input string
-            Message message = new Message(input);
-
-            // behaviour by command
-            statement:
-            switch (message.getCommand()) {
-                case "POKE": {
-                    // check if peer is already in peer list
-                    for (Connection c : connections) {
-                        if (c.getPeer().equals(message.getPeer())) {
-                            // reset last poke time
-                            c.resetLastPoke();
-                            // end switch statement
-                            break statement;
-                        }
-                    }
+    private void drain (Peer peer) {
+        Connection connection = getConnection(peer);
+        if (connection == null || !draining.add(peer)) {
+            return;
+        }
 
-                    // forward poke to whole peer list
-                    for (Connection c : connections) {
-                        c.sendMessage(message);
+        int window = Configuration.getInt("window", 64);
+        Thread thread = new Thread(() -> {
+            int count = 0;
+            try {
+                while (connection.valid) {
+                    if (connection.getPending() > window) {
+                        Thread.sleep(10);
+                        continue;
                     }
 
-                    Connection newPeer = new Connection(message.getPeer(), clientHandler);
-                    // send poke to the new connection
-                    newPeer.poke(this);
-                    // add peer to peer list
-                    connections.add(newPeer);
-
-                    System.out.println("> [" + new Date().toString() + "] " + newPeer.getPeer().getName() + " (" + newPeer.getPeer().getHostName() + ":" + newPeer.getPeer().getPort() + ") is online.");
-                    break;
+                    List<Journal.Record> records = journal.take(peer, window);
+                    if (records.isEmpty()) {
+                        break;
+                    }
+                    for (Journal.Record record : records) {
+                        // deleted from the journal, when it is acknowledged
+                        Message message = stamp(new Message("MESSAGE", me, record.getText()));
+                        journaled.put(message, record);
+                        connection.sendMessage(message);
+                    }
+                    count += records.size();
                 }
+            } catch (InterruptedException e) {
+                System.err.println("> [" + new Date().toString() + "] Error: Journal delivery interrupted.");
+            } finally {
+                draining.remove(peer);
+            }
 
-                case "DISCONNECT": {
-                    // check if peer is in peer list
-                    for (Iterator<Connection> it = connections.iterator(); it.hasNext();) {
-                        Connection c = it.next();
-                        if (c.getPeer().equals(message.getPeer())) {
-                            System.out.println("> [" + new Date().toString() + "] " + c.getPeer().getName() + " (" + c.getPeer().getHostName() +
-                                    ":" + c.getPeer().getPort() + ") disconnected.");
-
-                            // remove him from peer list
-                            c.close();
-                            it.remove();
+            // a message was queued behind the journal after the last take
+            if (connection.valid && journal.hasUntaken(peer)) {
+                drain(peer);
+            }
 
-                            // forward disconnect message to all peers
-                            for (Connection g : connections) {
-                                g.sendMessage(message);
-                            }
-                        }
-                    }
+            if (count > 0) {
+                Renderer.status("> [" + new Date().toString() + "] " + count + " queued messages delivered to " +
+                        (peer.hasName() ? peer.getName() : peer.getHostName() + ":" + peer.getPort()) + ".");
+            }
+        }, "journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-                    break;
-                }
+    /**
+     * <p>Forwards a ROUTE message one hop towards its destination,
+     * to the peer of our routing table that is closest to it.</p>
+     * @param destination   final destination of message
+     * @param message       ROUTE message
+     * @return  {@code true} if there was a next hop
+     */
+    private boolean route (Peer destination, Message message) {
+        ForwardEvent event = new ForwardEvent();
+        event.begin();
 
-                case "MESSAGE": {
-                    // show received message with timestamp, name and text
-                    System.out.println("> [" + new Date().toString() + "] " + message.getPeer().getName() + " -> You: " + message.getText());
+        Peer next = routingTable != null ? routingTable.closest(NodeId.of(destination)) : null;
+        Connection hop = null;
+        if (next != null) {
+            for (Connection c : connections) {
+                if (c.getPeer().equals(next)) {
+                    c.sendMessage(message);
+                    hop = c;
                     break;
                 }
-
-                default: {
-                    System.err.println("Valid command expected, but "
-                            + message.getCommand()+ " found instead. Message not handled.");
-                }
             }
         }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.setMessage(message);
+            event.targets = hop != null ? 1 : 0;
+            event.commit();
+        }
+
+        return hop != null;
     }
 
     /**
-     * <p>Checking if peer, you want to send a message
-     * to, is in peer list and sends the message if so.
-     * Otherwise throws a exception.</p>
-     * @param peer      peer to send the message to
-     * @param message   message
+     * <p>Sends a message to the whole peer list. The message
+     * is encoded once and the same bytes are written to
+     * every connection.</p>
+     * @param message   message to forward
      */
-    public void sendMessage (Peer peer, Message message) {
-        boolean peerFound = false;
-        Peer temp = null;
+    private void broadcast (Message message) {
+        ForwardEvent event = new ForwardEvent();
+        event.begin();
+
+        Frame frame = new Frame(message);
+        int targets = 0;
         for (Connection c : connections) {
-            if (c.getPeer().equals(peer)) {
-                c.sendMessage(message);
-                peerFound = true;
-                temp = c.getPeer();
+            // a peer never gets its own message back
+            if (!c.getPeer().equals(message.getPeer())) {
+                c.sendFrame(frame);
+                targets++;
             }
         }
 
-        if (!peerFound) {
-            System.err.println("> [" + new Date().toString() + "] Valid adress expected. " +
-                    "The client you tried to message may have gone offline.");
-        } else {
-            if (message.hasText() && temp.hasName()) {
-                System.out.println("> [" + new Date().toString() + "] You -> " + temp.getName() + ": " + message.getText());
-            }
+        event.end();
+        if (event.shouldCommit()) {
+            event.setMessage(message);
+            event.bytes = frame.getBytes().length;
+            event.targets = targets;
+            event.commit();
         }
-
     }
 
     /**
@@ -234,18 +1624,45 @@ public class Application {
      * @param message   message
      */
     public void sendMessagesByName (String name, Message message) {
+        stamp(message);
         boolean peerFound = false;
+        boolean sent = false;
+        Frame frame = null;
         for (Connection c : connections) {
-            if (c.getPeer().getName().equals(name)) {
-                c.sendMessage(message);
+            if (!c.getPeer().getName().equals(name)) {
+                continue;
+            }
+
+            // queued messages are echoed by queue
+            if (isQueuing(c.getPeer(), message)) {
+                if (queue(c.getPeer(), message, false)) {
+                    drain(c.getPeer());
+                    peerFound = true;
+                }
+            } else {
+                // encode only once for all peers with this name
+                if (frame == null) {
+                    frame = new Frame(message);
+                }
+
+                c.sendFrame(frame);
                 peerFound = true;
+                sent = true;
+                if (history != null && message.hasText()) {
+                    history.sent(c.getPeer(), message.getText());
+                }
             }
         }
 
+        Peer offline = peerFound ? null : findOffline(name);
+        if (offline != null && queue(offline, message, true)) {
+            return;
+        }
+
         if (!peerFound) {
             System.err.println("> [" + new Date().toString() + "] No peer with name '" + name + "' found.");
-        } else {
-            System.out.println("> [" + new Date().toString() + "] You -> " + name + ": " + message.getText());
+        } else if (sent) {
+            Renderer.echo("> [" + new Date().toString() + "] You -> " + name + ": " + message.getText());
         }
     }
 
@@ -257,6 +1674,93 @@ public class Application {
         return connections;
     }
 
+    /**
+     * <p>Gets {@link Application#latency}.</p>
+     * @return  {@link Application#latency}, null when tracing is disabled
+     */
+    public LatencyTracker getLatencyTracker () {
+        return latency;
+    }
+
+    /**
+     * <p>Gets {@link Application#rateLimiter}.</p>
+     * @return  {@link Application#rateLimiter}
+     */
+    public RateLimiter getRateLimiter () {
+        return rateLimiter;
+    }
+
+    /**
+     * <p>Gets {@link Application#history}.</p>
+     * @return  {@link Application#history}, null when disabled
+     */
+    public History getHistory () {
+        return history;
+    }
+
+    /**
+     * <p>Gets {@link Application#capture}.</p>
+     * @return  {@link Application#capture}, null when disabled
+     */
+    public Capture getCapture () {
+        return capture;
+    }
+
+    /**
+     * <p>Gets {@link Application#connectionCache}.</p>
+     * @return  {@link Application#connectionCache}, can be null
+     */
+    public ConnectionCache getConnectionCache () {
+        return connectionCache;
+    }
+
+    /**
+     * <p>Gets {@link Application#peerCache}.</p>
+     * @return  {@link Application#peerCache}
+     */
+    public PeerCache getPeerCache () {
+        return peerCache;
+    }
+
+    /**
+     * <p>Checks if a JOIN or POKE was sent by the incarnation
+     * of a peer, that departed since. Messages without an
+     * incarnation are never taken as departed.</p>
+     * @param message   received JOIN or POKE
+     * @return  {@code true}, when the incarnation departed
+     */
+    private boolean isDeparted (Message message) {
+        Departure departure = departed.get(message.getPeer());
+        return departure != null && message.hasIncarnation() && message.getIncarnation() <= departure.incarnation;
+    }
+
+    /**
+     * <p>DISCONNECT of a peer, that is remembered
+     * for {@link Application#DEPARTED_TTL}.</p>
+     */
+    private static final class Departure {
+
+        /**
+         * <p>Time the DISCONNECT was received.</p>
+         */
+        private final long time;
+
+        /**
+         * <p>Incarnation, that departed, 0 when unknown.</p>
+         */
+        private final long incarnation;
+
+        /**
+         * <p>Creates a departure.</p>
+         * @param time          time of the DISCONNECT
+         * @param incarnation   incarnation of the DISCONNECT
+         */
+        private Departure (long time, long incarnation) {
+            this.time = time;
+            this.incarnation = incarnation;
+        }
+    }
+
     /**
      * <p>Represents the server that is listening for new
      * connections and takes care of them.</p>
@@ -266,7 +1770,7 @@ public class Application {
         /**
          * <p>Status of thread.</p>
          */
-        private boolean _terminate = false;
+        private volatile boolean _terminate = false;
 
         /**
          * <p>Application the server should work on.</p>
@@ -278,6 +1782,25 @@ public class Application {
          */
         private int port;
 
+        /**
+         * <p>Listening sockets, closed on terminate to
+         * unblock {@link ServerSocketChannel#accept()}.</p>
+         */
+        private volatile Acceptors acceptors;
+
+        /**
+         * <p>Running client handlers, terminated
+         * together with the server.</p>
+         */
+        private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+
+        /**
+         * <p>Number of sockets, that were closed right after
+         * accept, because {@code connections.inbound} sockets
+         * were open.</p>
+         */
+        private final AtomicLong rejected = new AtomicLong();
+
         /**
          * <p>Creates a server with an application and
          * the port it should listen on.</p>
@@ -290,35 +1813,71 @@ public class Application {
         }
 
         /**
-         * <p>Runs the server on {@link Server#port} and accepts
-         * connection/parses them to a new {@link ClientHandler} thread.</p>
+         * <p>Runs the server on {@link Server#port} with
+         * {@code server.acceptors} accepting threads and the
+         * backlog {@code server.backlog}, and parses accepted
+         * connections to a new {@link ClientHandler} thread.</p>
          */
         @Override
         public void run () {
+            int count = Configuration.getInt("server.acceptors", 1);
             try {
-                // open server
-                ServerSocket socket = new ServerSocket();
-                // binding port
-                socket.bind(new InetSocketAddress(port));
-
-                while (!_terminate) {
-                    // listen for new messages
-                    Socket client = socket.accept();
-                    ClientHandler clientHandler = new ClientHandler(application, client);
-                    clientHandler.start();
-                }
+                acceptors = new Acceptors(new InetSocketAddress(port), count, Configuration.getInt("server.backlog", 1024));
             } catch (IOException e) {
                 System.err.println("Fatal Error: Can not start server.");
                 System.exit(1);
             }
+
+            if (count > 1 && !acceptors.isReusePort()) {
+                System.err.println("> [" + new Date().toString() + "] SO_REUSEPORT is not supported, " + count + " acceptors share one socket.");
+            }
+
+            // terminated before the sockets were bound
+            if (_terminate) {
+                acceptors.close();
+                return;
+            }
+
+            int maxInbound = Configuration.getInt("connections.inbound", 1024);
+            acceptors.run(client -> {
+                // every socket costs a thread, peers retry later
+                if (maxInbound > 0 && handlers.size() >= maxInbound) {
+                    // logged for the 1st, 2nd, 4th, ... refused socket
+                    long refused = rejected.incrementAndGet();
+                    if (Long.bitCount(refused) == 1) {
+                        System.err.println("> [" + new Date().toString() + "] " + maxInbound + " inbound connections are open, " +
+                                refused + " connections were refused.");
+                    }
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                        System.err.println("Error: Connection couldn't be refused properly.");
+                    }
+                    return;
+                }
+
+                ClientHandler clientHandler = new ClientHandler(application, client);
+                handlers.add(clientHandler);
+                clientHandler.start();
+            }, "acceptor");
         }
 
         /**
          * <p>Terminate thread, by ending the loop in
-         * {@link Server#run()}.</p>
+         * {@link Server#run()} and closing the server socket
+         * and the sockets of all client handlers.</p>
          */
         void terminate () {
             _terminate = true;
+
+            Acceptors acceptors = this.acceptors;
+            if (acceptors != null) {
+                acceptors.close();
+            }
+
+            for (ClientHandler handler : handlers) {
+                handler.terminate();
+            }
         }
     }
 
@@ -328,6 +1887,18 @@ public class Application {
      */
     class ClientHandler extends Thread {
 
+        /**
+         * <p>Size of the buffer borrowed from
+         * {@link BufferPool}, while data is read.</p>
+         */
+        private static final int READ_BUFFER = 8192;
+
+        /**
+         * <p>Maximum length of a line. Longer lines are
+         * skipped up to their end, without buffering them.</p>
+         */
+        private static final int MAX_LINE = 1 << 20;
+
         /**
          * <p>Status of thread.</p>
          */
@@ -343,51 +1914,268 @@ public class Application {
          * <p>Open connection to the client, can
          * receive messages.</p>
          */
-        private Socket socket;
+        private SocketChannel channel;
+
+        /**
+         * <p>Decrypted stream of {@link ClientHandler#channel},
+         * when TLS is enabled. Otherwise the channel itself.</p>
+         */
+        private ByteChannel input;
+
+        /**
+         * <p>Start of a line, that was split between two
+         * reads. Null, when there is no such line.</p>
+         */
+        private byte[] pending;
+
+        /**
+         * <p>Number of valid bytes in {@link ClientHandler#pending}.</p>
+         */
+        private int pendingLength;
+
+        /**
+         * <p>Number of bytes of a line longer than {@link ClientHandler#MAX_LINE},
+         * that are skipped until its end. 0, when no line is skipped.</p>
+         */
+        private long skipped;
+
+        /**
+         * <p>Token buckets of this connection.</p>
+         */
+        private final RateLimiter.Limit limit;
+
+        /**
+         * <p>Peer, that poked us through this socket.
+         * Told about the end of the stream.</p>
+         */
+        private volatile Peer sender;
+
+        /**
+         * <p>Number of received frames. A temporary socket
+         * carries a single frame, its end is not told.</p>
+         */
+        private long frames;
 
         /**
          * <p>Creates a handler that is receiving messages
          * from a specific socket (simplex) and parsing them
          * to the application.</p>
          * @param application   application
-         * @param socket        connection
+         * @param channel       connection
          */
-        ClientHandler (Application application, Socket socket) {
+        ClientHandler (Application application, SocketChannel channel) {
             this.application = application;
-            this.socket = socket;
+            this.channel = channel;
+            this.limit = application.rateLimiter.open();
         }
 
         /**
          * <p>Listen for new messages from a specific socket and
-         * parsing them to {@link Application#receiveMessage(String, ClientHandler)}.</p>
+         * parsing them to {@link Application#receiveMessage(String, ClientHandler)}.
+         * While waiting for data, the handler only holds a single
+         * byte. A buffer is borrowed from {@link BufferPool} when
+         * data arrives and returned, when the socket is drained.</p>
          */
         @Override
         public void run () {
+            BufferPool pool = BufferPool.shared();
+            ByteBuffer probe = ByteBuffer.allocateDirect(1);
+
+            try {
+                // handshake in this thread, so a slow peer never blocks accept
+                input = TlsContext.wrapServer(channel);
+            } catch (IOException e) {
+                if (!_terminate) {
+                    System.err.println("> [" + new Date().toString() + "] TLS handshake with peer failed: " + e.getMessage());
+                }
+                server.handlers.remove(this);
+                limit.close();
+                return;
+            }
+
             try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(
-                        socket.getInputStream()));
-
-                // constantly read messages from socket
-                String last = "";
-                while (!_terminate && last != null) {
-                    if ((last = reader.readLine()) != null) {
-                        application.receiveMessage(last, this);
+                boolean open = true;
+                while (!_terminate && open) {
+                    // block until data arrives
+                    probe.clear();
+                    if (input.read(probe) < 0) {
+                        open = false;
+                        break;
+                    }
+
+                    ReceiveEvent event = new ReceiveEvent();
+                    event.begin();
+                    long bytes = 1;
+                    int lines = 0;
+
+                    ByteBuffer buffer = pool.acquire(READ_BUFFER);
+                    try {
+                        probe.flip();
+                        buffer.put(probe);
+
+                        // drain everything that is available right now
+                        channel.configureBlocking(false);
+                        int read;
+                        do {
+                            read = input.read(buffer);
+                            bytes += Math.max(read, 0);
+                            buffer.flip();
+                            lines += readLines(buffer);
+                            buffer.clear();
+                        } while (read > 0 && !_terminate && limit.getDelay() == 0);
+
+                        open = read >= 0;
+                    } finally {
+                        pool.release(buffer);
                     }
+
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.remote = String.valueOf(channel.getRemoteAddress());
+                        event.bytes = bytes;
+                        event.lines = lines;
+                        event.commit();
+                    }
+
+                    // acknowledge everything read at once
+                    application.sendAcknowledgements();
+
+                    // frames over the rate limit, that were not dropped,
+                    // are paid by not reading, so TCP slows the peer down
+                    long delay;
+                    while (!_terminate && (delay = limit.getDelay()) > 0) {
+                        LockSupport.parkNanos(Math.min(delay, TimeUnit.MILLISECONDS.toNanos(100)));
+                    }
+
+                    if (open) {
+                        channel.configureBlocking(true);
+                    }
+                }
+
+                // the peer closed its connection, not us
+                if (!open && !_terminate && sender != null && frames > 1) {
+                    application.linkClosed(sender);
                 }
 
                 // closing socket when terminated
-                socket.close();
+                channel.close();
             } catch (IOException e) {
-                System.err.println("> [" + new Date().toString() + "] Lost connection to peer.");
+                // socket is closed on terminate
+                if (!_terminate) {
+                    System.err.println("> [" + new Date().toString() + "] Lost connection to peer.");
+                }
+            } finally {
+                server.handlers.remove(this);
+                limit.close();
+            }
+        }
+
+        /**
+         * <p>Parses all complete lines of the buffer to the
+         * application and keeps the start of an incomplete line.</p>
+         * @param buffer    buffer with received bytes
+         * @return  number of complete lines
+         */
+        private int readLines (ByteBuffer buffer) {
+            int lines = 0;
+            int start = buffer.position();
+            for (int i = start; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    append(buffer, start, i);
+                    if (skipped > 0) {
+                        System.err.println("> [" + new Date().toString() + "] Dropped message with " + skipped + " bytes.");
+                        skipped = 0;
+                        start = i + 1;
+                        lines++;
+                        continue;
+                    }
+
+                    Capture capture = application.capture;
+                    if (capture != null) {
+                        capture.received(channel, pending, pendingLength);
+                    }
+
+                    if (!limit.acquire(pending, pendingLength)) {
+                        // membership frame dropped without decoding, data frames are delayed
+                        pending = null;
+                        pendingLength = 0;
+                    } else {
+                        application.receiveMessage(decodePending(), this);
+                    }
+                    start = i + 1;
+                    lines++;
+                }
+            }
+
+            // keep incomplete line for next read
+            append(buffer, start, buffer.limit());
+            return lines;
+        }
+
+        /**
+         * <p>Appends bytes of the buffer to {@link ClientHandler#pending}.
+         * A line, that gets longer than {@link ClientHandler#MAX_LINE},
+         * is freed and the rest of it is only counted.</p>
+         * @param buffer    buffer with received bytes
+         * @param from      first byte (inclusive)
+         * @param to        last byte (exclusive)
+         */
+        private void append (ByteBuffer buffer, int from, int to) {
+            int length = to - from;
+            if (length == 0) {
+                return;
+            }
+
+            if (skipped > 0 || (long) pendingLength + length > MAX_LINE) {
+                skipped += pendingLength + length;
+                pending = null;
+                pendingLength = 0;
+                return;
+            }
+
+            if (pending == null) {
+                pending = new byte[Math.max(length, 128)];
+                pendingLength = 0;
+            } else if (pendingLength + length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+            }
+
+            buffer.position(from);
+            buffer.get(pending, pendingLength, length);
+            pendingLength += length;
+        }
+
+        /**
+         * <p>Decodes {@link ClientHandler#pending} as one line
+         * and frees it.</p>
+         * @return  line
+         */
+        private String decodePending () {
+            int length = pendingLength;
+            // lines sent with a windows line separator
+            if (length > 0 && pending[length - 1] == '\r') {
+                length--;
             }
+
+            String line = pending == null ? "" : new String(pending, 0, length, StandardCharsets.UTF_8);
+            pending = null;
+            pendingLength = 0;
+            return line;
         }
 
         /**
          * <p>Terminate thread, by ending the loop in
-         * {@link ClientHandler#run()}.</p>
+         * {@link ClientHandler#run()} and closing the
+         * socket, the thread might be blocked on.</p>
          */
         void terminate () {
             _terminate = true;
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error: Client handler couldn't be terminated properly.");
+            }
         }
     }
 
@@ -424,40 +2212,27 @@ public class Application {
         public void run () {
             while (!_terminate) {
                 try {
-                    // init buffer, to store inactive peers
-                    ArrayDeque<Connection> buffer = new ArrayDeque<>();
-
-                    // iterate peer list
-                    for (Connection c : application.getConnections()) {
-                        if (c.isInactive()) {
-                            // add inactive peers to buffer
-                            buffer.add(c);
-                        } else {
-                            // poke active peers
-                            c.poke(application);
-                        }
-                    }
-
-                    // remove all inactive peers from peer list
-                    for (Connection c : buffer) {
-                        application.removeConnection(c);
-                    }
+                    application.refresh();
 
                     // wait 30 seconds before executing again
-                    sleep(30000);
+                    sleep(REFRESH_INTERVAL);
                 } catch (InterruptedException e) {
-                    System.err.println("Error: Thread interrupted.");
-                    System.exit(1);
+                    // interrupted on terminate
+                    if (!_terminate) {
+                        System.err.println("Error: Thread interrupted.");
+                        System.exit(1);
+                    }
                 }
             }
         }
 
         /**
          * <p>Terminate thread, by ending the loop in
-         * {@link Timer#run()}.</p>
+         * {@link Timer#run()} and waking it up.</p>
          */
         void terminate () {
             _terminate = true;
+            interrupt();
         }
     }
 }
\ No newline at end of file
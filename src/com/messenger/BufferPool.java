@@ -0,0 +1,191 @@
+package com.messenger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Pool of direct {@link ByteBuffer}s for socket I/O, sorted
+ * into size classes. Connections borrow a buffer only while they
+ * have data in flight and return it afterwards, so idle
+ * connections hold no I/O buffers.</p>
+ */
+public class BufferPool {
+
+    /**
+     * <p>Capacities of the size classes.</p>
+     */
+    private static final int[] SIZES = {1024, 8192, 65536};
+
+    /**
+     * <p>Pool shared by all connections of this process.</p>
+     */
+    private static final BufferPool shared = new BufferPool(Configuration.getInt("pool.retain", 64));
+
+    /**
+     * <p>Free buffers per size class.</p>
+     */
+    private final ArrayList<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<>();
+
+    /**
+     * <p>Number of free buffers per size class.</p>
+     */
+    private final AtomicInteger[] retained = new AtomicInteger[SIZES.length];
+
+    /**
+     * <p>Maximum number of free buffers kept per size class.</p>
+     */
+    private final int maxRetained;
+
+    /**
+     * <p>Number of borrowed buffers.</p>
+     */
+    private final AtomicLong acquired = new AtomicLong();
+
+    /**
+     * <p>Number of borrowed buffers, that were
+     * taken from the pool instead of being allocated.</p>
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * <p>Number of buffers borrowed right now.</p>
+     */
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    /**
+     * <p>Highest value of {@link BufferPool#inUse}.</p>
+     */
+    private final AtomicInteger peak = new AtomicInteger();
+
+    /**
+     * <p>Creates an empty pool.</p>
+     * @param maxRetained   maximum number of free buffers kept per size class
+     */
+    public BufferPool (int maxRetained) {
+        this.maxRetained = maxRetained;
+        for (int i = 0; i < SIZES.length; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+            retained[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * <p>Gets the pool shared by all connections.</p>
+     * @return  shared pool
+     */
+    public static BufferPool shared () {
+        return shared;
+    }
+
+    /**
+     * <p>Borrows a cleared buffer with at least the given
+     * capacity. Requests larger than the biggest size class
+     * get a buffer that is not pooled.</p>
+     * @param size  minimum capacity
+     * @return  buffer, must be returned by {@link BufferPool#release(ByteBuffer)}
+     */
+    public ByteBuffer acquire (int size) {
+        acquired.incrementAndGet();
+        int current = inUse.incrementAndGet();
+        peak.accumulateAndGet(current, Math::max);
+
+        int index = sizeClass(size);
+        if (index < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer buffer = free.get(index).poll();
+        if (buffer != null) {
+            retained[index].decrementAndGet();
+            hits.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        return ByteBuffer.allocateDirect(SIZES[index]);
+    }
+
+    /**
+     * <p>Returns a borrowed buffer to the pool.</p>
+     * @param buffer    borrowed buffer
+     */
+    public void release (ByteBuffer buffer) {
+        inUse.decrementAndGet();
+
+        for (int i = 0; i < SIZES.length; i++) {
+            if (buffer.capacity() == SIZES[i]) {
+                if (retained[i].incrementAndGet() <= maxRetained) {
+                    free.get(i).offer(buffer);
+                } else {
+                    // pool is full, leave buffer to garbage collector
+                    retained[i].decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * <p>Index of the smallest size class that fits.</p>
+     * @param size  minimum capacity
+     * @return  index or -1, when no size class fits
+     */
+    private static int sizeClass (int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * <p>Share of borrowed buffers that were taken from the pool.</p>
+     * @return  hit rate between 0 and 1
+     */
+    public double getHitRate () {
+        long total = acquired.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    /**
+     * <p>Gets {@link BufferPool#acquired}.</p>
+     * @return  {@link BufferPool#acquired}
+     */
+    public long getAcquired () {
+        return acquired.get();
+    }
+
+    /**
+     * <p>Gets {@link BufferPool#inUse}.</p>
+     * @return  {@link BufferPool#inUse}
+     */
+    public int getInUse () {
+        return inUse.get();
+    }
+
+    /**
+     * <p>Gets {@link BufferPool#peak}.</p>
+     * @return  {@link BufferPool#peak}
+     */
+    public int getPeak () {
+        return peak.get();
+    }
+
+    /**
+     * <p>Number of free buffers in the pool.</p>
+     * @return  number of free buffers
+     */
+    public int getRetained () {
+        int sum = 0;
+        for (AtomicInteger count : retained) {
+            sum += count.get();
+        }
+
+        return sum;
+    }
+}
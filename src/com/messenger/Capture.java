@@ -0,0 +1,706 @@
+package com.messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Binary trace of the wire traffic of a node, enabled with
+ * {@code -Dmessenger.capture=<file>}. Every line a client handler
+ * reads and every frame a {@link Connection} writes is recorded
+ * with the time it was read or written, and can be fed into a
+ * fresh node by {@link CaptureReplay}.</p>
+ * <p>A capture starts with the magic {@code MCAP}, a version byte,
+ * the start time in milliseconds and the node as label. Records
+ * start with their type. Labels name the connections of the later
+ * records, so every connection is named once:</p>
+ * <pre>
+ * LABEL     0 | id | length | "in 10.0.0.2:51234" or "out Bob 10.0.0.2 7002"
+ * RECEIVED  1 | microseconds since last record | id | length | line
+ * SENT      2 | microseconds since last record | id | length | line
+ * </pre>
+ * <p>Numbers are encoded with 7 bits per byte, like the
+ * {@link SearchIndex}, lines without their line separator.</p>
+ * <p>Lines are queued and written by a thread of their own, so a
+ * slow disk never holds up a connection. Lines that do not fit
+ * into the queue are dropped and counted. The capture stops at
+ * {@code capture.max} MiB.</p>
+ * <p>Every {@link Application} owns its capture, so nodes of the
+ * same JVM record their traffic into files of their own.</p>
+ */
+public class Capture {
+
+    /**
+     * <p>First bytes of a capture.</p>
+     */
+    private static final byte[] MAGIC = {'M', 'C', 'A', 'P'};
+
+    /**
+     * <p>Version of the format.</p>
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * <p>Type of a record, that names a connection.</p>
+     */
+    public static final int LABEL = 0;
+
+    /**
+     * <p>Type of a record of a received line.</p>
+     */
+    public static final int RECEIVED = 1;
+
+    /**
+     * <p>Type of a record of a sent frame.</p>
+     */
+    public static final int SENT = 2;
+
+    /**
+     * <p>Source of lines, that nodes of the same
+     * JVM hand over without sockets.</p>
+     */
+    private static final String LOCAL = "local";
+
+    /**
+     * <p>Lines are recorded, until the capture is
+     * stopped or reached its maximum size.</p>
+     */
+    private volatile boolean running = true;
+
+    /**
+     * <p>Lines waiting to be written.</p>
+     */
+    private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(Configuration.getInt("capture.queue", 65536));
+
+    /**
+     * <p>Ids of the named connections. Sockets are
+     * removed, when they are not used anymore.</p>
+     */
+    private final WeakHashMap<Object, Integer> ids = new WeakHashMap<>();
+
+    /**
+     * <p>Buffered stream of the file.</p>
+     */
+    private final DataOutputStream out;
+
+    /**
+     * <p>Path of the file.</p>
+     */
+    private final Path path;
+
+    /**
+     * <p>Maximum size of the file in bytes.</p>
+     */
+    private final long max;
+
+    /**
+     * <p>Number of written records.</p>
+     */
+    private final AtomicLong records = new AtomicLong();
+
+    /**
+     * <p>Number of dropped lines.</p>
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * <p>Written bytes.</p>
+     */
+    private volatile long size;
+
+    /**
+     * <p>Time of the last record in nanoseconds.</p>
+     */
+    private long last;
+
+    /**
+     * <p>Next id of a connection.</p>
+     */
+    private int next;
+
+    /**
+     * <p>Thread, that writes the queued lines.</p>
+     */
+    private final Writer writer = new Writer();
+
+    /**
+     * <p>Creates the file and writes its header.</p>
+     * @param path  file
+     * @param me    captured node
+     * @param max   maximum size in bytes
+     * @throws IOException  when the file can not be created
+     */
+    private Capture (Path path, Peer me, long max) throws IOException {
+        this.path = path;
+        this.max = max;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        writeBytes(me.toString().getBytes(StandardCharsets.UTF_8));
+        last = System.nanoTime();
+    }
+
+    /**
+     * <p>Starts the capture of a node.</p>
+     * @param path  file, an existing file is replaced
+     * @param me    captured node
+     * @return  running capture
+     * @throws IOException  when the file can not be created
+     */
+    static Capture start (Path path, Peer me) throws IOException {
+        // the written bytes are counted as int
+        long max = Math.min(Configuration.getInt("capture.max", 1024) * (1L << 20), Integer.MAX_VALUE);
+        Capture capture = new Capture(path, me, max);
+        capture.writer.start();
+        return capture;
+    }
+
+    /**
+     * <p>Stops the capture, after the
+     * queued lines are written.</p>
+     */
+    void stop () {
+        running = false;
+        writer.terminate();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            System.err.println("> [" + new Date().toString() + "] Error: Capture was not written completely.");
+        }
+    }
+
+    /**
+     * <p>Checks if lines are still recorded.</p>
+     * @return  {@code false} after stop, at the maximum size or after a write error
+     */
+    public boolean isRunning () {
+        return running;
+    }
+
+    /**
+     * <p>Records a line a client handler read.</p>
+     * @param channel   socket of the client handler
+     * @param line      bytes of the line, can be null for an empty line
+     * @param length    number of bytes
+     */
+    void received (SocketChannel channel, byte[] line, int length) {
+        offer(RECEIVED, channel, line == null ? new byte[0] : Arrays.copyOf(line, length));
+    }
+
+    /**
+     * <p>Records a message, that a node of the
+     * same JVM handed over.</p>
+     * @param message   received message
+     */
+    void received (Message message) {
+        offer(RECEIVED, LOCAL, encode(message, null));
+    }
+
+    /**
+     * <p>Records a frame written to a peer.</p>
+     * @param peer      peer of the connection
+     * @param bytes     encoded frame with line separator
+     * @param length    number of bytes
+     */
+    void sent (Peer peer, byte[] bytes, int length) {
+        offer(SENT, peer, Arrays.copyOf(bytes, length > 0 && bytes[length - 1] == '\n' ? length - 1 : length));
+    }
+
+    /**
+     * <p>Records a message handed over to a node of the
+     * same JVM, which is not encoded otherwise.</p>
+     * @param peer      peer of the connection
+     * @param message   sent message
+     * @param frame     encoded message, can be null
+     */
+    void sent (Peer peer, Message message, Frame frame) {
+        offer(SENT, peer, encode(message, frame));
+    }
+
+    /**
+     * <p>Encodes a message without line separator.</p>
+     * @param message   message
+     * @param frame     encoded message, can be null
+     * @return  bytes of the line
+     */
+    private static byte[] encode (Message message, Frame frame) {
+        byte[] bytes;
+        int length;
+        if (frame != null) {
+            bytes = frame.getBytes();
+            length = bytes.length;
+        } else {
+            FrameEncoder encoder = FrameEncoder.local();
+            encoder.encode(message);
+            bytes = encoder.getBuffer();
+            length = encoder.getLength();
+        }
+
+        return Arrays.copyOf(bytes, length > 0 && bytes[length - 1] == '\n' ? length - 1 : length);
+    }
+
+    /**
+     * <p>Queues a line, drops it when the queue is full.</p>
+     * @param type      type of the record
+     * @param source    connection
+     * @param line      bytes of the line
+     */
+    private void offer (int type, Object source, byte[] line) {
+        if (!running) {
+            return;
+        }
+
+        if (!queue.offer(new Record(type, System.nanoTime(), source, line))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>Writes queued records, names their
+     * connections on first use.</p>
+     * @param batch records
+     * @throws IOException  when writing fails
+     */
+    private void write (ArrayList<Record> batch) throws IOException {
+        for (Record record : batch) {
+            Integer id = ids.get(record.source);
+            if (id == null) {
+                id = next++;
+                ids.put(record.source, id);
+                out.writeByte(LABEL);
+                writeNumber(id);
+                writeBytes(label(record).getBytes(StandardCharsets.UTF_8));
+            }
+
+            // records of different threads are queued slightly out of order
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(record.time - last));
+            last = Math.max(last, record.time);
+
+            out.writeByte(record.type);
+            writeNumber(micros);
+            writeNumber(id);
+            writeBytes(record.line);
+            records.incrementAndGet();
+        }
+
+        size = out.size();
+    }
+
+    /**
+     * <p>Names the connection of a record.</p>
+     * @param record    first record of the connection
+     * @return  label
+     */
+    private static String label (Record record) {
+        if (record.source instanceof SocketChannel) {
+            try {
+                return "in " + ((SocketChannel) record.source).getRemoteAddress();
+            } catch (IOException e) {
+                return "in closed";
+            }
+        }
+
+        return (record.type == RECEIVED ? "in " : "out ") + record.source;
+    }
+
+    /**
+     * <p>Writes a number with 7 bits per byte.</p>
+     * @param value positive number
+     * @throws IOException  when writing fails
+     */
+    private void writeNumber (long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * <p>Writes bytes with their length.</p>
+     * @param bytes bytes
+     * @throws IOException  when writing fails
+     */
+    private void writeBytes (byte[] bytes) throws IOException {
+        writeNumber(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * <p>Gets {@link Capture#path}.</p>
+     * @return  {@link Capture#path}
+     */
+    public Path getPath () {
+        return path;
+    }
+
+    /**
+     * <p>Gets the number of written records.</p>
+     * @return  number of records
+     */
+    public long getRecords () {
+        return records.get();
+    }
+
+    /**
+     * <p>Gets the size of the file.</p>
+     * @return  size in bytes
+     */
+    public long getSize () {
+        return size;
+    }
+
+    /**
+     * <p>Gets the number of lines, that did
+     * not fit into the queue.</p>
+     * @return  number of dropped lines
+     */
+    public long getDropped () {
+        return dropped.get();
+    }
+
+    /**
+     * <p>Line of a connection, that waits
+     * to be written.</p>
+     */
+    private static final class Record {
+
+        /**
+         * <p>{@link Capture#RECEIVED} or {@link Capture#SENT}.</p>
+         */
+        final int type;
+
+        /**
+         * <p>Time in nanoseconds.</p>
+         */
+        final long time;
+
+        /**
+         * <p>Socket, peer or {@link Capture#LOCAL}.</p>
+         */
+        final Object source;
+
+        /**
+         * <p>Bytes of the line.</p>
+         */
+        final byte[] line;
+
+        /**
+         * <p>Creates a record.</p>
+         * @param type      type
+         * @param time      time in nanoseconds
+         * @param source    connection
+         * @param line      bytes of the line
+         */
+        Record (int type, long time, Object source, byte[] line) {
+            this.type = type;
+            this.time = time;
+            this.source = source;
+            this.line = line;
+        }
+    }
+
+    /**
+     * <p>Thread, that writes queued records.</p>
+     */
+    private class Writer extends Thread {
+
+        /**
+         * <p>Status of thread.</p>
+         */
+        private volatile boolean _terminate = false;
+
+        /**
+         * <p>Creates the writer.</p>
+         */
+        Writer () {
+            super("capture");
+            setDaemon(true);
+        }
+
+        /**
+         * <p>Writes records in batches and flushes the file,
+         * when the queue is empty, until terminated or the
+         * file reached its maximum size.</p>
+         */
+        @Override
+        public void run () {
+            ArrayList<Record> batch = new ArrayList<>();
+            try {
+                while (!_terminate || !queue.isEmpty()) {
+                    try {
+                        Record record = queue.poll(1, TimeUnit.SECONDS);
+                        if (record != null) {
+                            batch.add(record);
+                            queue.drainTo(batch);
+                            write(batch);
+                            batch.clear();
+                        }
+                    } catch (InterruptedException e) {
+                        // interrupted by terminate, the queue is still written
+                        if (!_terminate) {
+                            break;
+                        }
+                    }
+
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+
+                    if (size >= max) {
+                        System.err.println("> [" + new Date().toString() + "] Capture " + path + " reached " +
+                                (max >> 20) + " MiB and was stopped.");
+                        running = false;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("> [" + new Date().toString() + "] Capture " + path + " can not be written: " + e.getMessage());
+                running = false;
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    System.err.println("Error: Capture " + path + " couldn't be closed properly.");
+                }
+            }
+        }
+
+        /**
+         * <p>Terminate thread, after the queued
+         * records are written.</p>
+         */
+        void terminate () {
+            _terminate = true;
+            interrupt();
+        }
+    }
+
+    /**
+     * <p>Reads the records of a capture in order.</p>
+     */
+    public static class Reader implements Closeable {
+
+        /**
+         * <p>Buffered stream of the file.</p>
+         */
+        private final DataInputStream in;
+
+        /**
+         * <p>Start time of the capture in milliseconds.</p>
+         */
+        private final long start;
+
+        /**
+         * <p>Captured node as "name ip port".</p>
+         */
+        private final String node;
+
+        /**
+         * <p>Labels of the connections by id.</p>
+         */
+        private final ArrayList<String> labels = new ArrayList<>();
+
+        /**
+         * <p>Type of the current record.</p>
+         */
+        private int type;
+
+        /**
+         * <p>Time of the current record in microseconds
+         * since the start of the capture.</p>
+         */
+        private long time;
+
+        /**
+         * <p>Connection id of the current record.</p>
+         */
+        private int connection;
+
+        /**
+         * <p>Bytes of the current record.</p>
+         */
+        private byte[] line;
+
+        /**
+         * <p>Opens a capture and reads its header.</p>
+         * @param path  file
+         * @throws IOException  when the file can not be read or is no capture
+         */
+        public Reader (Path path) throws IOException {
+            InputStream stream = Files.newInputStream(path);
+            in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException(path + " is no capture");
+                }
+
+                int version = in.readUnsignedByte();
+                if (version != VERSION) {
+                    throw new IOException(path + " has unknown version " + version);
+                }
+
+                start = in.readLong();
+                node = new String(readBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * <p>Reads the next line, labels are
+         * read on the way.</p>
+         * @return  {@code false} at the end of the capture
+         * @throws IOException  when the file can not be read or is damaged
+         */
+        public boolean next () throws IOException {
+            while (true) {
+                int read = in.read();
+                if (read < 0) {
+                    return false;
+                }
+
+                try {
+                    if (read == LABEL) {
+                        int id = (int) readNumber();
+                        String label = new String(readBytes(), StandardCharsets.UTF_8);
+                        while (labels.size() <= id) {
+                            labels.add(null);
+                        }
+                        labels.set(id, label);
+                        continue;
+                    }
+
+                    if (read != RECEIVED && read != SENT) {
+                        throw new IOException("unknown record type " + read);
+                    }
+
+                    type = read;
+                    time += readNumber();
+                    connection = (int) readNumber();
+                    line = readBytes();
+                    return true;
+                } catch (EOFException e) {
+                    // the last record of a capture, that was not stopped
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * <p>Reads a number with 7 bits per byte.</p>
+         * @return  number
+         * @throws IOException  when the file can not be read
+         */
+        private long readNumber () throws IOException {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = in.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            return value;
+        }
+
+        /**
+         * <p>Reads bytes with their length.</p>
+         * @return  bytes
+         * @throws IOException  when the file can not be read
+         */
+        private byte[] readBytes () throws IOException {
+            byte[] bytes = new byte[(int) readNumber()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        /**
+         * <p>Gets {@link Reader#start}.</p>
+         * @return  {@link Reader#start}
+         */
+        public long getStart () {
+            return start;
+        }
+
+        /**
+         * <p>Gets {@link Reader#node}.</p>
+         * @return  {@link Reader#node}
+         */
+        public String getNode () {
+            return node;
+        }
+
+        /**
+         * <p>Gets the type of the current record.</p>
+         * @return  {@link Capture#RECEIVED} or {@link Capture#SENT}
+         */
+        public int getType () {
+            return type;
+        }
+
+        /**
+         * <p>Gets the time of the current record.</p>
+         * @return  microseconds since the start of the capture
+         */
+        public long getTime () {
+            return time;
+        }
+
+        /**
+         * <p>Gets the connection id of the current record.</p>
+         * @return  connection id
+         */
+        public int getConnection () {
+            return connection;
+        }
+
+        /**
+         * <p>Gets the label of a connection.</p>
+         * @param id    connection id
+         * @return  label or null, when unknown
+         */
+        public String getLabel (int id) {
+            return id < labels.size() ? labels.get(id) : null;
+        }
+
+        /**
+         * <p>Gets the bytes of the current record.</p>
+         * @return  line without line separator
+         */
+        public byte[] getLine () {
+            return line;
+        }
+
+        /**
+         * <p>Closes the file.</p>
+         * @throws IOException  when closing fails
+         */
+        @Override
+        public void close () throws IOException {
+            in.close();
+        }
+    }
+}
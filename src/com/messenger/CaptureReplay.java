@@ -0,0 +1,262 @@
+package com.messenger;
+
+import com.messenger.console.Renderer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Feeds the received lines of a {@link Capture} into a fresh
+ * node with the address of the captured one, at the original
+ * speed, a multiple of it or as fast as possible. Lines are handled
+ * one after the other by the calling thread, like a client handler
+ * would, and lines of one read are acknowledged together. Frames
+ * the node sends go to channels, that discard them, so a replay
+ * never reaches the peers of the capture. The rate limiter is not
+ * applied, it would drop most lines of a fast replay.</p>
+ * <p>Reports the throughput, the time it took to handle a line
+ * and, when paced, how late lines were handled after their time.
+ * Output of the node is discarded, unless {@code replay.verbose}
+ * is set.
+ *
+ * Example:
+ * "java -cp messenger.jar com.messenger.CaptureReplay node.cap 10"</p>
+ */
+public class CaptureReplay {
+
+    /**
+     * <p>Maximum time in microseconds between two lines of
+     * the same connection, that were read at once.</p>
+     */
+    private static final long READ_GAP = 1000;
+
+    /**
+     * <p>Frames sent by the replayed node.</p>
+     */
+    private static final AtomicLong frames = new AtomicLong();
+
+    /**
+     * <p>Bytes sent by the replayed node.</p>
+     */
+    private static final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * <p>Runs the replay.</p>
+     * @param args  expecting (String) capture, (String) speed factor or "max", optional
+     * @throws IOException  when the capture can not be read
+     */
+    public static void main (String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Error: CaptureReplay expects a capture and a speed.\n" +
+                    "Example: CaptureReplay node.cap 1, CaptureReplay node.cap 10, CaptureReplay node.cap max");
+            System.exit(1);
+        }
+
+        String speedArg = args.length > 1 ? args[1] : "1";
+        double speed = speedArg.equalsIgnoreCase("max") ? 0 : Double.parseDouble(speedArg);
+
+        try (Capture.Reader reader = new Capture.Reader(Paths.get(args[0]))) {
+            Peer me = parse(reader.getNode());
+            System.out.println("Replaying capture of " + me + " from " + new Date(reader.getStart()) +
+                    " at " + (speed > 0 ? speed + "x speed" : "maximum speed"));
+
+            PrintStream out = System.out;
+            PrintStream err = System.err;
+            if (!Configuration.getBoolean("replay.verbose", false)) {
+                PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+                System.setOut(discard);
+                System.setErr(discard);
+            }
+
+            LatencyHistogram service = new LatencyHistogram();
+            LatencyHistogram lag = new LatencyHistogram();
+            long lines = 0;
+            long received = 0;
+            long captured = 0;
+            long first = -1;
+            long duration = 0;
+            long start;
+            try {
+                Application node = new Application(me, peer -> new Sink(), Clock.SYSTEM, Runnable::run, new Random());
+
+                start = System.nanoTime();
+
+                // a line is handled, when the next one is known, so lines of one read are acknowledged together
+                byte[] line = null;
+                long time = 0;
+                int connection = -1;
+                while (true) {
+                    boolean more = reader.next();
+                    if (more && reader.getType() == Capture.SENT) {
+                        captured++;
+                        continue;
+                    }
+
+                    if (line != null) {
+                        boolean last = !more || reader.getConnection() != connection || reader.getTime() - time > READ_GAP;
+
+                        long due = start;
+                        if (speed > 0) {
+                            due += (long) (TimeUnit.MICROSECONDS.toNanos(time - first) / speed);
+                            waitUntil(due);
+                        }
+
+                        int length = line.length;
+                        // lines sent with a windows line separator
+                        if (length > 0 && line[length - 1] == '\r') {
+                            length--;
+                        }
+
+                        long begin = System.nanoTime();
+                        node.replay(new String(line, 0, length, StandardCharsets.UTF_8), last);
+                        long end = System.nanoTime();
+
+                        service.record(end - begin);
+                        if (speed > 0) {
+                            lag.record(end - due);
+                        }
+                        lines++;
+                        received += line.length + 1;
+                        duration = time - first;
+                    }
+
+                    if (!more) {
+                        break;
+                    }
+
+                    // the capture starts long before the first line
+                    if (first < 0) {
+                        first = reader.getTime();
+                    }
+                    line = reader.getLine();
+                    time = reader.getTime();
+                    connection = reader.getConnection();
+                }
+            } finally {
+                // lines of the node are still rendered to the discarded output
+                Renderer.flush();
+                System.setOut(out);
+                System.setErr(err);
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%d lines (%.1f MB) of %.1f s capture in %.2f s: %.0f lines/s, %.1f MB/s",
+                    lines, received / 1e6, duration / 1e6, seconds, lines / seconds, received / 1e6 / seconds));
+            System.out.println(String.format("handling   p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us",
+                    service.percentile(50) / 1e3, service.percentile(99) / 1e3, service.percentile(99.9) / 1e3, service.getMax() / 1e3));
+            if (speed > 0) {
+                System.out.println(String.format("lateness   p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us",
+                        lag.percentile(50) / 1e3, lag.percentile(99) / 1e3, lag.percentile(99.9) / 1e3, lag.getMax() / 1e3));
+            }
+            System.out.println(String.format("sent %d frames (%.1f MB), the captured node sent %d frames",
+                    frames.get(), bytes.get() / 1e6, captured));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * <p>Parses the node of a capture.</p>
+     * @param node  node as "name ip port" or "ip port"
+     * @return  peer
+     * @throws IOException  when the node is malformed
+     */
+    private static Peer parse (String node) throws IOException {
+        String[] parts = node.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("capture of unknown node " + node);
+        }
+
+        try {
+            int port = Integer.parseInt(parts[parts.length - 1]);
+            String name = String.join(" ", Arrays.copyOf(parts, parts.length - 2));
+            return new Peer(parts[parts.length - 2], port, name);
+        } catch (NumberFormatException e) {
+            throw new IOException("capture of unknown node " + node);
+        }
+    }
+
+    /**
+     * <p>Waits until the time of a line. Sleeps for long waits
+     * and spins for the last fraction of a millisecond.</p>
+     * @param due   time in nanoseconds
+     */
+    private static void waitUntil (long due) {
+        long rest;
+        while ((rest = due - System.nanoTime()) > 0) {
+            if (rest > TimeUnit.MILLISECONDS.toNanos(1)) {
+                LockSupport.parkNanos(rest - TimeUnit.MICROSECONDS.toNanos(500));
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * <p>Channel to a peer of the capture, that
+     * counts and discards all frames.</p>
+     */
+    private static class Sink implements ByteChannel {
+
+        /**
+         * <p>Whether the channel is open.</p>
+         */
+        private boolean open = true;
+
+        /**
+         * <p>Discards the bytes and counts
+         * complete frames.</p>
+         * @param source    bytes to write
+         * @return  number of bytes
+         */
+        @Override
+        public int write (ByteBuffer source) {
+            int length = source.remaining();
+            for (int i = source.position(); i < source.limit(); i++) {
+                if (source.get(i) == '\n') {
+                    frames.incrementAndGet();
+                }
+            }
+            source.position(source.limit());
+            bytes.addAndGet(length);
+            return length;
+        }
+
+        /**
+         * <p>Channels are simplex, nothing is read.</p>
+         * @param target    buffer
+         * @return  end of stream
+         */
+        @Override
+        public int read (ByteBuffer target) {
+            return -1;
+        }
+
+        /**
+         * <p>Checks if the channel is open.</p>
+         * @return  {@code true} until closed
+         */
+        @Override
+        public boolean isOpen () {
+            return open;
+        }
+
+        /**
+         * <p>Closes the channel.</p>
+         */
+        @Override
+        public void close () {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.messenger;
+
+/**
+ * <p>Source of the current time for liveness checks.
+ * Nodes use the wall clock, a {@link SimulatedNetwork}
+ * replaces it with virtual time.</p>
+ */
+public interface Clock {
+
+    /**
+     * <p>Wall clock of the system.</p>
+     */
+    Clock SYSTEM = System::currentTimeMillis;
+
+    /**
+     * <p>Gets the current time.</p>
+     * @return  milliseconds since the epoch
+     */
+    long millis ();
+}
@@ -0,0 +1,70 @@
+package com.messenger;
+
+/**
+ * <p>Optional settings of the messenger. Settings are read
+ * from java system properties, so they can be passed on the
+ * command line without changing the expected parameters of
+ * {@link Main}.
+ *
+ * Example:
+ * "java -Dmessenger.overlay=true -jar messenger.jar Jon 6734"</p>
+ */
+public final class Configuration {
+
+    /**
+     * <p>Prefix of all messenger system properties.</p>
+     */
+    private static final String PREFIX = "messenger.";
+
+    /**
+     * <p>Only static access.</p>
+     */
+    private Configuration () {
+
+    }
+
+    /**
+     * <p>Reads a string setting.</p>
+     * @param key           setting name without prefix
+     * @param defaultValue  value, when setting is missing
+     * @return  setting value
+     */
+    public static String getString (String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+
+    /**
+     * <p>Reads a number setting. Invalid numbers are reported
+     * and replaced by the default value.</p>
+     * @param key           setting name without prefix
+     * @param defaultValue  value, when setting is missing or invalid
+     * @return  setting value
+     */
+    public static int getInt (String key, int defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Error: Setting " + PREFIX + key + " must be a valid number.");
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * <p>Reads a boolean setting.</p>
+     * @param key           setting name without prefix
+     * @param defaultValue  value, when setting is missing
+     * @return  setting value
+     */
+    public static boolean getBoolean (String key, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value != null) {
+            return Boolean.parseBoolean(value.trim());
+        }
+
+        return defaultValue;
+    }
+}
@@ -1,12 +1,22 @@
 package com.messenger;
 
+import com.messenger.jfr.ConnectionCloseEvent;
+import com.messenger.jfr.ConnectionOpenEvent;
+import com.messenger.jfr.LivenessExpiredEvent;
+import com.messenger.jfr.SendEvent;
+
+import javax.net.ssl.SSLException;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Represents a connection with a peer. You
@@ -24,8 +34,8 @@ public class Connection {
     public boolean valid;
 
     /**
-     * <p>Status of the connection, is updated every
-     * 60 seconds by timer class.</p>
+     * <p>Status of the connection, cleared by
+     * {@link Connection#setInactive()}.</p>
      */
     private boolean active = true;
 
@@ -35,12 +45,6 @@ public class Connection {
      */
     private long lastPoke;
 
-    /**
-     * <p>Timer procedure is executed every 60 seconds
-     * and updates the status.</p>
-     */
-    private Timer timer;
-
     /**
      * <p>Ip address, port and name of this connection
      * or peer.</p>
@@ -48,15 +52,11 @@ public class Connection {
     private Peer peer;
 
     /**
-     * <p>Socket of this connection.</p>
-     */
-    private Socket socket;
-
-    /**
-     * <p>Writer to communicate with the peer, created
-     * from socket.</p>
+     * <p>Socket channel of this connection, encrypted when
+     * TLS is enabled. Null, when
+     * connection is suspended.</p>
      */
-    private PrintWriter writer;
+    private ByteChannel channel;
 
     /**
      * <p>ClientHandler that is responsible for
@@ -65,6 +65,167 @@ public class Connection {
      */
     private Application.ClientHandler clientHandler;
 
+    /**
+     * <p>Limit of open connections this connection
+     * counts against. Can be null.</p>
+     */
+    private ConnectionCache cache;
+
+    /**
+     * <p>Sequence numbers and unacknowledged
+     * MESSAGE frames of this connection.</p>
+     */
+    private final SendWindow window;
+
+    /**
+     * <p>Notified about acknowledged messages.
+     * Can be null.</p>
+     */
+    private DeliveryListener deliveryListener;
+
+    /**
+     * <p>Frames waiting for the writer, control
+     * frames before data frames.</p>
+     */
+    private final PriorityLanes lanes = new PriorityLanes();
+
+    /**
+     * <p>A thread is writing to the channel and takes
+     * all frames queued in {@link Connection#lanes}.</p>
+     */
+    private boolean draining;
+
+    /**
+     * <p>The writer opens the channel, before it takes the
+     * next frame. Set for new and reopened connections.</p>
+     */
+    private boolean connecting;
+
+    /**
+     * <p>The connection was suspended, while the writer
+     * was connecting. The writer closes the new channel
+     * instead of using it.</p>
+     */
+    private boolean suspendRequested;
+
+    /**
+     * <p>The writer closes the connection, after it
+     * wrote all queued frames.</p>
+     */
+    private boolean closing;
+
+    /**
+     * <p>Failures before {@link Connection#sendLast(Frame)}.</p>
+     */
+    private long failuresBeforeLast;
+
+    /**
+     * <p>The channel was closed by {@link Connection#suspend()},
+     * because the connection is idle, not because it failed. The
+     * peer read the end of the stream and waits longer for our
+     * heartbeat.</p>
+     */
+    private boolean idle;
+
+    /**
+     * <p>Sequence number of the oldest unacknowledged
+     * frame at the last {@link Connection#resume()}.</p>
+     */
+    private long oldest;
+
+    /**
+     * <p>Heartbeats, that were skipped since the last
+     * one of an idle connection.</p>
+     */
+    private int skipped;
+
+    /**
+     * <p>The peer closed its idle connection to us and pokes
+     * us only every {@link Connection#IDLE_HEARTBEAT} refresh
+     * intervals.</p>
+     */
+    private volatile boolean quiet;
+
+    /**
+     * <p>Newest incarnation of the peer, that was seen on
+     * its JOIN or POKE. 0, until the peer sent one.</p>
+     */
+    private volatile long incarnation;
+
+    /**
+     * <p>Number of refresh intervals between two heartbeats of
+     * an idle connection. Each of them costs a temporary socket.</p>
+     */
+    static final int IDLE_HEARTBEAT = Math.max(1, Configuration.getInt("idle.heartbeat", 10));
+
+    /**
+     * <p>Number of failed writes to the channel.</p>
+     */
+    private long failures;
+
+    /**
+     * <p>Start of the write in progress in nanoseconds,
+     * valid while {@link Connection#writing} is set.</p>
+     */
+    private volatile long writeStart;
+
+    /**
+     * <p>A thread is blocked in a write to the channel.</p>
+     */
+    private volatile boolean writing;
+
+    /**
+     * <p>A write blocked longer than {@link SendWatchdog#STALL}.
+     * Only MESSAGE frames are taken, until it finishes.</p>
+     */
+    private volatile boolean degraded;
+
+    /**
+     * <p>Number of frames dropped, while the
+     * connection was degraded.</p>
+     */
+    private long shed;
+
+    /**
+     * <p>Notified, when the channel is closed at the
+     * send deadline. Can be null.</p>
+     */
+    private StallListener stallListener;
+
+    /**
+     * <p>Capture of the node, that records the written
+     * frames. Can be null.</p>
+     */
+    private volatile Capture capture;
+
+    /**
+     * <p>Opens {@link Connection#channel}.</p>
+     */
+    private final Transport transport;
+
+    /**
+     * <p>Time source of the liveness checks.</p>
+     */
+    private final Clock clock;
+
+    /**
+     * <p>Runs the writer of this connection, that opens the
+     * channel and writes all queued frames, so threads, that
+     * send frames, never wait for the network.</p>
+     */
+    private final Executor writer;
+
+    /**
+     * <p>Writers of all connections of nodes. Threads are
+     * started on demand, end after a minute without frames
+     * and never keep the JVM running.</p>
+     */
+    static final Executor WRITERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * <p>Used to just send messages to peer,
      * when no connection is established yet.</p>
@@ -82,70 +243,841 @@ public class Connection {
      * @param clientHandler client connection handler
      */
     public Connection (Peer peer, Application.ClientHandler clientHandler) {
+        this(peer, clientHandler, null);
+    }
+
+    /**
+     * <p>Creates a connection to given peer, that counts
+     * against the limit of open connections of the given
+     * cache.</p>
+     * @param peer          peer to open connection with
+     * @param clientHandler client connection handler
+     * @param cache         open connection limit, can be null
+     */
+    public Connection (Peer peer, Application.ClientHandler clientHandler, ConnectionCache cache) {
+        this(peer, clientHandler, cache, Transport.SOCKET, Clock.SYSTEM, ThreadLocalRandom.current(), WRITERS);
+    }
+
+    /**
+     * <p>Creates a connection to given peer, that is opened
+     * by the given transport and checks liveness against the
+     * given clock. The channel is opened by the writer, when
+     * the first frame is sent.</p>
+     * @param peer          peer to open connection with
+     * @param clientHandler client connection handler, can be null
+     * @param cache         open connection limit, can be null
+     * @param transport     opens the channel
+     * @param clock         time source
+     * @param random        source of the epoch of the send window
+     * @param writer        runs the writer of the connection
+     */
+    public Connection (Peer peer, Application.ClientHandler clientHandler, ConnectionCache cache, Transport transport,
+                       Clock clock, Random random, Executor writer) {
         this.peer = peer;
         this.clientHandler = clientHandler;
+        this.cache = cache;
+        this.transport = transport;
+        this.clock = clock;
+        this.writer = writer;
+        lastPoke = clock.millis() / 1000L;
+        window = new SendWindow(Configuration.getInt("window", 64), Configuration.getInt("window.queue", 1024),
+                random.nextLong(1, Long.MAX_VALUE));
 
-        try {
-            // connect with peer
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(peer.getHostName(), peer.getPort()));
-
-            // start writer, to send messages
-            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        valid = true;
+        connecting = true;
+        if (cache != null) {
+            cache.touch(this);
+        }
+    }
 
-            // start timer
-            timer = new Timer(this);
-            timer.start();
+    /**
+     * <p>Opens a socket channel. Called by the writer
+     * outside of the lock.</p>
+     * @return  channel or {@code null}, if socket could not be opened
+     */
+    private ByteChannel open () {
+        ConnectionOpenEvent event = new ConnectionOpenEvent();
+        event.begin();
 
-            valid = true;
+        ByteChannel opened = null;
+        try {
+            // connect with peer
+            opened = transport.connect(peer);
+        } catch (SSLException e) {
+            System.err.println("> [" + new Date().toString() + "] TLS handshake with " + peer.getHostName() + ":" + peer.getPort() +
+                " failed: " + e.getMessage());
         } catch (IOException e) {
             System.err.println("> [" + new Date().toString() + "] Connection to " + peer.getHostName() + ":" + peer.getPort() +
                 " couldn't be initiated properly. Maybe there is no peer listening.");
-            valid = false;
         }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.setPeer(peer);
+            event.success = opened != null;
+            event.commit();
+        }
+
+        return opened;
     }
 
     /**
-     * <p>Sending a message to given connection.</p>
+     * <p>Sending a message to given connection. The message is
+     * encoded into the reusable buffer of the current thread.</p>
      * @param message   {@link Message} to send
      */
     public void sendMessage (Message message) {
-        if (valid) {
-            writer.println(message.toString());
+        send(message, null);
+    }
+
+    /**
+     * <p>Sending an already encoded message to given connection.
+     * Used to send the same message to many connections.</p>
+     * @param frame     {@link Frame} to send
+     */
+    public void sendFrame (Frame frame) {
+        send(frame.getMessage(), frame);
+    }
+
+    /**
+     * <p>Sending a message to given connection. A suspended
+     * connection is opened again for MESSAGE and ROUTE messages.
+     * All other messages are sent through a temporary socket,
+     * so membership traffic does not reopen idle connections.
+     * MESSAGE frames are numbered by the {@link SendWindow} and
+     * kept until they are acknowledged.</p>
+     * <p>Frames are only queued by the calling thread. They
+     * wait in {@link PriorityLanes}, where POKE, DISCONNECT and
+     * ACK frames overtake queued messages, for the writer of the
+     * connection, that runs on {@link Connection#writer}, so no
+     * caller ever waits for a connect or a peer, that does not
+     * read. A degraded connection drops all frames except
+     * MESSAGE frames, which wait in the send window.</p>
+     * @param message   {@link Message} to send
+     * @param frame     encoded message, can be null
+     * @return  {@code false} if the message could not be queued
+     */
+    private boolean send (Message message, Frame frame) {
+        boolean reliable = message.getCommand().equals("MESSAGE");
+        boolean data = reliable || message.getCommand().equals("ROUTE");
+        boolean claimed;
+        synchronized (this) {
+            // the writer is blocked, queued frames would only pile up
+            if (degraded && !reliable) {
+                shed++;
+                return false;
+            }
+
+            if (!valid) {
+                System.err.println("> [" + new Date().toString() + "] Can not send message: " + message.getText());
+                return false;
+            }
+
+            // lazy reconnect of a suspended connection, other
+            // frames go through a temporary socket instead
+            if (data && channel == null) {
+                connecting = true;
+                // used again, the cache is touched below
+                suspendRequested = false;
+            }
+
+            if (reliable) {
+                if (!window.isOpen()) {
+                    // sent as soon as acknowledgements open the window
+                    if (!window.queue(message)) {
+                        System.err.println("> [" + new Date().toString() + "] Too many unacknowledged messages to " +
+                                peer.getName() + ", can not send message: " + message.getText());
+                        return false;
+                    }
+                    return true;
+                }
+
+                frame = window.add(message);
+                // the writer queues the whole window, when it opens the channel
+                if (channel != null) {
+                    lanes.add(frame);
+                }
+            } else {
+                lanes.add(frame != null ? frame : new Frame(message));
+            }
+
+            claimed = claim();
+        }
+
+        if (claimed) {
+            writer.execute(this::drain);
+        }
+
+        // only payload counts as usage, otherwise heartbeats
+        // would keep every connection open
+        if (data && cache != null) {
+            cache.touch(this);
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>Queues a frame, that is written before the connection
+     * is closed. Used to send DISCONNECT on shutdown, the
+     * caller waits for it with {@link Connection#awaitLast(long)}.</p>
+     * @param frame     {@link Frame} to send
+     * @return  {@code true} if the frame was queued
+     */
+    public boolean sendLast (Frame frame) {
+        synchronized (this) {
+            failuresBeforeLast = failures;
+        }
+
+        return send(frame.getMessage(), frame);
+    }
+
+    /**
+     * <p>Waits until the writer of this connection wrote
+     * the frame of {@link Connection#sendLast(Frame)}.</p>
+     * @param deadline  end of the wait in milliseconds since the epoch
+     * @return  {@code true} if the frame was written in time
+     */
+    public synchronized boolean awaitLast (long deadline) {
+        try {
+            while (draining) {
+                long rest = deadline - System.currentTimeMillis();
+                if (rest <= 0) {
+                    return false;
+                }
+                wait(rest);
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+
+        return failures == failuresBeforeLast;
+    }
+
+    /**
+     * <p>Closes the connection, after the writer wrote
+     * all queued frames. Used for temporary connections,
+     * so the caller does not wait for the writer.</p>
+     */
+    public void finish () {
+        boolean idle;
+        synchronized (this) {
+            closing = true;
+            idle = !draining;
+        }
+
+        if (idle) {
+            close();
+        }
+    }
+
+    /**
+     * <p>Makes the current thread the writer of
+     * this connection, if there is none.</p>
+     * @return  {@code true} if the current thread has to call {@link Connection#drain()}
+     */
+    private synchronized boolean claim () {
+        if (draining) {
+            return false;
+        }
+
+        draining = true;
+        return true;
+    }
+
+    /**
+     * <p>Writes queued frames, until the lanes are empty.
+     * Opens the channel first, when the connection is new
+     * or reopened, and sends frames of a suspended connection
+     * through temporary sockets. Only run by the writer, that
+     * was claimed by {@link Connection#claim()}.</p>
+     */
+    private void drain () {
+        while (true) {
+            Frame next = null;
+            ByteChannel target = null;
+            boolean connect;
+            boolean finished = false;
+            synchronized (this) {
+                connect = connecting;
+                if (!connect) {
+                    next = lanes.poll();
+                    if (next == null) {
+                        draining = false;
+                        // wake up threads in awaitLast
+                        notifyAll();
+                        finished = closing;
+                    }
+                    target = channel;
+                }
+            }
+
+            if (connect) {
+                reopen();
+            } else if (next == null) {
+                if (finished) {
+                    close();
+                }
+                return;
+            } else if (target == null) {
+                sendTransient(next.getMessage(), next);
+            } else {
+                write(target, next.getMessage(), next);
+            }
+        }
+    }
+
+    /**
+     * <p>Writes a message to the channel outside of the lock,
+     * so queuing frames never waits for the network. Suspends
+     * the connection, when writing fails.</p>
+     * @param target    channel of this connection
+     * @param message   {@link Message} to send
+     * @param frame     encoded message, can be null
+     * @return  {@code true} if message was written
+     */
+    private boolean write (ByteChannel target, Message message, Frame frame) {
+        SendEvent event = new SendEvent();
+        event.begin();
+
+        writeStart = System.nanoTime();
+        writing = true;
+        try {
+            event.bytes = writeTo(target, peer, message, frame);
+            commit(event, message, true);
+            writing = false;
+            if (degraded) {
+                recover();
+            }
+            return true;
+        } catch (IOException e) {
+            writing = false;
+            commit(event, message, false);
+            synchronized (this) {
+                failures++;
+                // channel might have been replaced or closed in the meantime
+                if (channel == target && valid) {
+                    System.err.println("> [" + new Date().toString() + "] Lost connection to " + peer.getHostName() + ":" + peer.getPort() + ".");
+                    // next message opens the connection again and
+                    // retransmits unacknowledged messages
+                    suspend(false);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * <p>Gets the time the current write is blocked.</p>
+     * @param now   current time in nanoseconds
+     * @return  time in nanoseconds, 0 when nothing is written
+     */
+    long getBlocked (long now) {
+        long start = writeStart;
+        return writing ? now - start : 0;
+    }
+
+    /**
+     * <p>Marks the connection as degraded, because
+     * its write is blocked. Called by {@link SendWatchdog}.</p>
+     * @return  {@code true} if the connection was not degraded
+     */
+    synchronized boolean degrade () {
+        if (degraded || !writing) {
+            return false;
+        }
+
+        degraded = true;
+        System.err.println("> [" + new Date().toString() + "] " + peer.toString() + " does not read, " +
+                "connection is degraded.");
+        return true;
+    }
+
+    /**
+     * <p>Ends the degraded state, after the
+     * blocked write finished.</p>
+     */
+    private synchronized void recover () {
+        if (!degraded) {
+            return;
+        }
+
+        degraded = false;
+        System.err.println("> [" + new Date().toString() + "] " + peer.toString() + " reads again, " +
+                shed + " frames were dropped.");
+        shed = 0;
+    }
+
+    /**
+     * <p>Closes the channel of a write, that is blocked
+     * longer than the send deadline, so the writing thread
+     * continues. The {@link StallListener} decides about
+     * the connection, otherwise it is suspended.
+     * Called by {@link SendWatchdog}.</p>
+     * @return  {@code true} if the channel was closed
+     */
+    boolean abort () {
+        StallListener listener;
+        synchronized (this) {
+            if (!writing || channel == null) {
+                return false;
+            }
+
+            System.err.println("> [" + new Date().toString() + "] " + peer.toString() + " did not read for " +
+                    TimeUnit.NANOSECONDS.toMillis(SendWatchdog.DEADLINE) + " ms, connection is closed.");
+            listener = stallListener;
+            degraded = false;
+            suspend(false);
+        }
+
+        if (listener != null) {
+            listener.stalled(this);
+        }
+        return true;
+    }
+
+    /**
+     * <p>Takes all unacknowledged and queued MESSAGE
+     * messages out of the send window, so they can be
+     * kept somewhere else, when the connection is closed.</p>
+     * @return  messages in the order they were sent
+     */
+    public synchronized List<Message> takePending () {
+        return window.clear();
+    }
+
+    /**
+     * <p>Check if a write of the connection is
+     * blocked longer than {@link SendWatchdog#STALL}.</p>
+     * @return  {@link Connection#degraded}
+     */
+    public boolean isDegraded () {
+        return degraded;
+    }
+
+    /**
+     * <p>Sets {@link Connection#stallListener}.</p>
+     * @param stallListener listener, can be null
+     */
+    public synchronized void setStallListener (StallListener stallListener) {
+        this.stallListener = stallListener;
+    }
+
+    /**
+     * <p>Opens the channel of a new or suspended connection
+     * and queues all unacknowledged messages for retransmission
+     * in order. Only called by the writer, the lock is not held
+     * while connecting. A connection, that can not be opened,
+     * is no longer valid. A connection, that was suspended
+     * while connecting, stays suspended and its queued frames
+     * go through temporary sockets. An opened channel is
+     * counted by the {@link ConnectionCache}.</p>
+     */
+    private void reopen () {
+        ByteChannel opened = open();
+        boolean discard;
+        boolean installed = false;
+        synchronized (this) {
+            connecting = false;
+            discard = !valid || suspendRequested;
+            suspendRequested = false;
+            if (valid) {
+                if (opened == null) {
+                    valid = false;
+                    failures++;
+                    lanes.clear();
+                } else if (!discard) {
+                    channel = opened;
+                    installed = true;
+                    SendWatchdog.watch(this);
+                    for (Frame unacknowledged : window.getUnacknowledged()) {
+                        lanes.add(unacknowledged);
+                    }
+                }
+            }
+        }
+
+        // the cache only knows connections, that are open, also the ones of resume
+        if (installed && cache != null) {
+            cache.touch(this);
+        }
+
+        // closed or suspended while connecting
+        if (discard && opened != null) {
+            try {
+                opened.close();
+            } catch (IOException e) {
+                System.err.println("Error: Connection couldn't be terminated properly.");
+            }
+        }
+    }
+
+    /**
+     * <p>Opens a suspended connection, that still has
+     * unacknowledged messages, to retransmit them. An open
+     * connection retransmits them, when the oldest one was not
+     * acknowledged since the last call, because the peer drops
+     * all frames after a missing one. Called by the timer
+     * procedure of the application.</p>
+     */
+    public void resume () {
+        boolean claimed;
+        synchronized (this) {
+            long previous = oldest;
+            oldest = window.getOldest();
+            if (!valid || connecting || window.pending() == 0) {
+                return;
+            }
+
+            if (channel == null) {
+                connecting = true;
+            } else if (oldest != 0 && oldest == previous && lanes.isEmpty() && !writing) {
+                for (Frame unacknowledged : window.getUnacknowledged()) {
+                    lanes.add(unacknowledged);
+                }
+            } else {
+                return;
+            }
+
+            claimed = claim();
+        }
+
+        if (claimed) {
+            writer.execute(this::drain);
+        }
+
+        if (cache != null) {
+            cache.touch(this);
+        }
+    }
+
+    /**
+     * <p>Handles a cumulative ACK of the peer. Acknowledged
+     * messages are removed from the window, queued messages
+     * are sent and the {@link DeliveryListener} is notified.</p>
+     * @param ack   ACK message
+     */
+    public void acknowledge (Message ack) {
+        ArrayList<Message> delivered = new ArrayList<>();
+        ArrayList<Frame> released = new ArrayList<>();
+        synchronized (this) {
+            window.acknowledge(ack.getEpoch(), ack.getSequence(), delivered, released);
+
+            // suspended connections retransmit released frames on reopen
+            if (channel != null) {
+                for (Frame frame : released) {
+                    lanes.add(frame);
+                }
+            }
+        }
+
+        if (!released.isEmpty() && claim()) {
+            writer.execute(this::drain);
+        }
+
+        if (deliveryListener != null) {
+            for (Message message : delivered) {
+                deliveryListener.delivered(peer, message);
+            }
+        }
+    }
+
+    /**
+     * <p>Number of sent or queued MESSAGE frames, that are
+     * not acknowledged yet.</p>
+     * @return  number of unacknowledged messages
+     */
+    public synchronized int getPending () {
+        return window.pending();
+    }
+
+    /**
+     * <p>Number of frames waiting for the writer.</p>
+     * @return  number of queued frames
+     */
+    public synchronized int getQueued () {
+        return lanes.size();
+    }
+
+    /**
+     * <p>Sets {@link Connection#deliveryListener}.</p>
+     * @param deliveryListener  listener, can be null
+     */
+    public void setDeliveryListener (DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
+    /**
+     * <p>Sets {@link Connection#capture}.</p>
+     * @param capture   capture of the node, can be null
+     */
+    public void setCapture (Capture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * <p>Sends a single message through a temporary socket,
+     * that is closed right after sending. Only called by
+     * the writer.</p>
+     * @param message   {@link Message} to send
+     * @param frame     encoded message, can be null
+     * @return  {@code true} if message was written
+     */
+    private boolean sendTransient (Message message, Frame frame) {
+        SendEvent event = new SendEvent();
+        event.begin();
+        event.temporary = true;
+
+        try (ByteChannel temp = transport.connect(peer)) {
+            event.bytes = writeTo(temp, peer, message, frame);
+            commit(event, message, true);
+            return true;
+        } catch (IOException e) {
+            commit(event, message, false);
+            synchronized (this) {
+                failures++;
+            }
+            System.err.println("> [" + new Date().toString() + "] Can not send message to " + peer.getHostName() + ":" + peer.getPort() + ".");
+            return false;
+        }
+    }
+
+    /**
+     * <p>Writes a message to a channel through a pooled direct
+     * buffer, that is only borrowed for this write. Links of a
+     * {@link LocalTransport} get the message itself.</p>
+     * @param target    channel to write to
+     * @param peer      peer of the channel, recorded by the {@link Connection#capture}
+     * @param message   {@link Message} to send
+     * @param frame     encoded message, can be null
+     * @return  number of written bytes
+     * @throws IOException  when writing fails
+     */
+    private int writeTo (ByteChannel target, Peer peer, Message message, Frame frame) throws IOException {
+        Capture capture = this.capture;
+        if (target instanceof LocalTransport.Link) {
+            // node of the same JVM, the message is handed over without encoding
+            ((LocalTransport.Link) target).send(frame != null ? frame.getMessage() : message);
+            if (capture != null) {
+                capture.sent(peer, message, frame);
+            }
+            return 0;
+        }
+
+        byte[] bytes;
+        int length;
+        if (frame != null) {
+            bytes = frame.getBytes();
+            length = bytes.length;
         } else {
-            System.err.println("> [" + new Date().toString() + "] Can not send message: " + message.getText());
+            FrameEncoder encoder = FrameEncoder.local();
+            encoder.encode(message);
+            bytes = encoder.getBuffer();
+            length = encoder.getLength();
+        }
+
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer = pool.acquire(length);
+        try {
+            buffer.put(bytes, 0, length);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+
+        if (capture != null) {
+            capture.sent(peer, bytes, length);
+        }
+        return length;
+    }
+
+    /**
+     * <p>Ends and commits a {@link SendEvent}, when
+     * it is enabled by a recording.</p>
+     * @param event     started event
+     * @param message   sent message
+     * @param written   message was written
+     */
+    private void commit (SendEvent event, Message message, boolean written) {
+        event.end();
+        if (event.shouldCommit()) {
+            // receiver instead of the sender of the message
+            event.setPeer(peer);
+            event.command = message.getCommand();
+            event.written = written;
+            event.commit();
+        }
+    }
+
+    /**
+     * <p>Records a {@link ConnectionCloseEvent}, when it
+     * is enabled by a recording.</p>
+     * @param suspended connection is only suspended
+     */
+    private void recordClose (boolean suspended) {
+        ConnectionCloseEvent event = new ConnectionCloseEvent();
+        if (event.isEnabled()) {
+            event.setPeer(peer);
+            event.suspended = suspended;
+            event.pending = window.pending();
+            event.commit();
+        }
+    }
+
+    /**
+     * <p>Records a {@link LivenessExpiredEvent}, when it
+     * is enabled by a recording.</p>
+     * @param removed   connection is removed from peer list
+     */
+    void recordExpiry (boolean removed) {
+        LivenessExpiredEvent event = new LivenessExpiredEvent();
+        if (event.isEnabled()) {
+            event.setPeer(peer);
+            event.lastPoke = lastPoke * 1000L;
+            event.silence = clock.millis() - event.lastPoke;
+            event.removed = removed;
+            event.commit();
+        }
+    }
+
+    /**
+     * <p>Closes the socket of an idle connection, but keeps
+     * the peer in peer list. The connection is opened again with
+     * the next MESSAGE sent to it.</p>
+     */
+    public void suspend () {
+        suspend(true);
+    }
+
+    /**
+     * <p>Closes the socket, but keeps the peer in peer list.</p>
+     * @param idle  closed for being idle, not because writing failed
+     */
+    private synchronized void suspend (boolean idle) {
+        // the writer is opening the channel right now, it
+        // closes the channel again and keeps the queued frames
+        if (connecting && channel == null) {
+            suspendRequested = true;
+            this.idle = idle;
+            return;
+        }
+
+        // unacknowledged messages stay in the window
+        lanes.clear();
+        SendWatchdog.forget(this);
+
+        if (channel != null) {
+            recordClose(true);
+            this.idle = idle;
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error: Connection couldn't be suspended properly.");
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * <p>Check if connection is suspended by
+     * {@link Connection#suspend()}.</p>
+     * @return  is socket closed
+     */
+    public synchronized boolean isSuspended () {
+        return valid && channel == null && !connecting;
+    }
+
+    /**
+     * <p>Checks if a heartbeat is due. Connections, that were
+     * suspended for being idle, send one only every
+     * {@link Connection#IDLE_HEARTBEAT} refresh intervals, the
+     * peer saw the end of the stream and waits that long. When
+     * the peer closed its idle connection too, nobody else
+     * keeps the liveness and every heartbeat is sent.</p>
+     * @return  {@code true} if the connection has to be poked
+     */
+    public synchronized boolean isHeartbeatDue () {
+        if (!(valid && channel == null && !connecting && idle) || quiet || ++skipped >= IDLE_HEARTBEAT) {
+            skipped = 0;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>Marks the peer as quiet, because it closed its
+     * idle connection to us.</p>
+     */
+    public void setQuiet () {
+        quiet = true;
+    }
+
+    /**
+     * <p>Records the incarnation of a JOIN or POKE of the
+     * peer, older incarnations are ignored.</p>
+     * @param incarnation   incarnation of the message, 0 when not set
+     */
+    public synchronized void setIncarnation (long incarnation) {
+        if (incarnation > this.incarnation) {
+            this.incarnation = incarnation;
         }
     }
 
+    /**
+     * <p>Gets {@link Connection#incarnation}.</p>
+     * @return  {@link Connection#incarnation}
+     */
+    public long getIncarnation () {
+        return incarnation;
+    }
+
     /**
      * <p>Sending a poke to this connection
      * with my own peer data.</p>
      * @param application   application
      */
     public void poke (Application application) {
-        Message me = new Message("POKE", application.me);
+        Message me = application.stamp(new Message("POKE", application.me));
         sendMessage(me);
     }
 
     /**
-     * <p>Terminate timer thread and close socket
-     * connection.</p>
+     * <p>Close socket connection and terminate
+     * the client handler.</p>
      */
     public void close () {
-        // terminate thread
-        timer.terminate();
+        if (cache != null) {
+            cache.forget(this);
+        }
+
+        synchronized (this) {
+            // never reopened after close
+            if (valid) {
+                recordClose(false);
+            }
+            valid = false;
+            lanes.clear();
+            SendWatchdog.forget(this);
+
+            try {
+                // close socket connection
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error: Connection couldn't be terminated properly.");
+            }
+        }
 
         // terminate client handler
         if (clientHandler != null) {
             clientHandler.terminate();
         }
-
-        try {
-            // close socket connection
-            socket.close();
-        } catch (IOException e) {
-            System.err.println("Error: Connection couldn't be terminated properly.");
-        }
     }
 
     /**
@@ -153,7 +1085,8 @@ public class Connection {
      * poke.</p>
      */
     public void resetLastPoke () {
-        lastPoke = System.currentTimeMillis()/1000L;
+        lastPoke = clock.millis()/1000L;
+        quiet = false;
     }
 
     /**
@@ -164,11 +1097,17 @@ public class Connection {
     }
 
     /**
-     * <p>Check if connection is inactive.</p>
-     * @return  not {@link Connection#active}
+     * <p>Check if connection is inactive, because it was set
+     * inactive or the last poke is 60 seconds ago, or longer
+     * by the heartbeats skipped by a quiet peer. Checked by
+     * the timer procedure of the application on nodes and on
+     * virtual time alike, so no thread per connection is
+     * needed.</p>
+     * @return  not {@link Connection#active} or no poke for 60 seconds
      */
-    public boolean isInactive () {
-        return !active;
+    public synchronized boolean isInactive () {
+        long silence = quiet ? 60 + (IDLE_HEARTBEAT - 1) * Application.REFRESH_INTERVAL / 1000L : 60;
+        return !active || lastPoke + silence < clock.millis()/1000L;
     }
 
     /**
@@ -186,64 +1125,4 @@ public class Connection {
     public Peer getPeer () {
         return peer;
     }
-
-    /**
-     * <p>Procedure to check if last poke is
-     * 60 seconds ago. Then set connection to
-     * inactive.</p>
-     */
-    private class Timer extends Thread {
-
-        /**
-         * <p>Status of thread.</p>
-         */
-        private boolean _terminate = false;
-
-        /**
-         * <p>Connection to work at.</p>
-         */
-        private Connection con;
-
-        /**
-         * <p>Creates a timer. Resetting last poke
-         * and applying connection to timer class.</p>
-         * @param con   connection
-         */
-        Timer (Connection con) {
-            lastPoke = System.currentTimeMillis() / 1000L;
-            this.con = con;
-        }
-
-        /**
-         * <p>Constantly check if connection is
-         * inactive and eventually terminate thread
-         * and set connection status.</p>
-         */
-        @Override
-        public void run () {
-            while (!_terminate) {
-                try {
-                    // last poke was 60+ seconds ago
-                    if (con.getLastPoke() + 60 < System.currentTimeMillis()/1000L) {
-                        // declare connection as inactive
-                        con.setInactive();
-                        // terminate thread
-                        terminate();
-                    }
-
-                    sleep(60000);
-                } catch (InterruptedException e) {
-                    System.err.println("Error: Thread interrupted.");
-                }
-            }
-        }
-
-        /**
-         * <p>Terminate thread, by ending the loop in
-         * {@link Timer#run()}.</p>
-         */
-        void terminate () {
-            _terminate = true;
-        }
-    }
 }
\ No newline at end of file
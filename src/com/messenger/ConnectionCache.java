@@ -0,0 +1,102 @@
+package com.messenger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>Limits the number of open {@link Connection}s. Connections
+ * are kept in least recently used order. When the limit is
+ * exceeded, the least recently used connections are suspended.
+ * Their peers stay in peer list and the connection is opened
+ * again with the next message sent to it.</p>
+ */
+public class ConnectionCache {
+
+    /**
+     * <p>Maximum number of open connections.</p>
+     */
+    private final int capacity;
+
+    /**
+     * <p>Open connections in access order, least
+     * recently used first.</p>
+     */
+    private final LinkedHashMap<Connection, Boolean> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * <p>Number of suspended connections since start.</p>
+     */
+    private long evictions;
+
+    /**
+     * <p>Creates a cache with a maximum number
+     * of open connections.</p>
+     * @param capacity  maximum number of open connections
+     */
+    public ConnectionCache (int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * <p>Marks a connection as used right now and suspends
+     * the least recently used connections, when there are more
+     * open connections than allowed. Must not be called while
+     * holding the lock of a connection.</p>
+     * @param c used connection
+     */
+    public void touch (Connection c) {
+        ArrayList<Connection> victims = new ArrayList<>();
+        synchronized (this) {
+            open.put(c, Boolean.TRUE);
+
+            for (Iterator<Connection> it = open.keySet().iterator(); it.hasNext() && open.size() > capacity;) {
+                Connection eldest = it.next();
+                if (eldest != c) {
+                    it.remove();
+                    victims.add(eldest);
+                }
+            }
+
+            evictions += victims.size();
+        }
+
+        // suspend outside of the lock, suspending takes
+        // the lock of the connection
+        for (Connection victim : victims) {
+            victim.suspend();
+        }
+    }
+
+    /**
+     * <p>Removes a closed connection from the cache.</p>
+     * @param c closed connection
+     */
+    public synchronized void forget (Connection c) {
+        open.remove(c);
+    }
+
+    /**
+     * <p>Number of open connections.</p>
+     * @return  number of open connections
+     */
+    public synchronized int size () {
+        return open.size();
+    }
+
+    /**
+     * <p>Gets {@link ConnectionCache#evictions}.</p>
+     * @return  {@link ConnectionCache#evictions}
+     */
+    public synchronized long getEvictions () {
+        return evictions;
+    }
+
+    /**
+     * <p>Gets {@link ConnectionCache#capacity}.</p>
+     * @return  {@link ConnectionCache#capacity}
+     */
+    public int getCapacity () {
+        return capacity;
+    }
+}
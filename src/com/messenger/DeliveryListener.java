@@ -0,0 +1,15 @@
+package com.messenger;
+
+/**
+ * <p>Gets notified, when a peer acknowledged
+ * a MESSAGE sent by a {@link Connection}.</p>
+ */
+public interface DeliveryListener {
+
+    /**
+     * <p>Called for every acknowledged MESSAGE.</p>
+     * @param peer      receiving peer
+     * @param message   acknowledged message
+     */
+    void delivered (Peer peer, Message message);
+}
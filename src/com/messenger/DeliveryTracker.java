@@ -0,0 +1,132 @@
+package com.messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Receiving side of the acknowledgements. Remembers the
+ * highest sequence number received in order per sender, drops
+ * retransmitted duplicates and frames after a gap and collects
+ * cumulative ACKs, that are sent once per read instead of once
+ * per message.</p>
+ */
+public class DeliveryTracker {
+
+    /**
+     * <p>Last received frame per sender.</p>
+     */
+    private final HashMap<Peer, State> senders = new HashMap<>();
+
+    /**
+     * <p>Senders that need an ACK.</p>
+     */
+    private final ArrayList<State> dirty = new ArrayList<>();
+
+    /**
+     * <p>Registers a numbered MESSAGE. Only the next frame in
+     * order is delivered. A frame after a gap is dropped, the
+     * cumulative ACK stays before the gap, so the sender sends
+     * the missing frame and all after it again.</p>
+     * @param message   received MESSAGE with sequence number
+     * @return  {@code true} if the message is new and has to be delivered
+     */
+    public synchronized boolean accept (Message message) {
+        State state = senders.get(message.getPeer());
+        if (state == null || state.epoch != message.getEpoch()) {
+            // first message of a new connection of the sender, or of a sender we
+            // forgot, the oldest unacknowledged frame is always written first
+            state = new State(message.getPeer(), message.getEpoch());
+            state.sequence = message.getSequence() - 1;
+            senders.put(message.getPeer(), state);
+        }
+
+        if (!state.dirty) {
+            state.dirty = true;
+            dirty.add(state);
+        }
+
+        if (message.getSequence() <= state.sequence) {
+            // retransmission, acknowledge again but do not deliver
+            return false;
+        }
+
+        if (message.getSequence() != state.sequence + 1) {
+            // a frame is missing, delivering this one would reorder or lose it
+            return false;
+        }
+
+        state.sequence = message.getSequence();
+        return true;
+    }
+
+    /**
+     * <p>Takes all pending acknowledgements as ACK messages.</p>
+     * @param me    own peer, sender of the ACKs
+     * @return  ACK messages by the peer they have to be sent to
+     */
+    public synchronized Map<Peer, Message> drain (Peer me) {
+        HashMap<Peer, Message> acks = new HashMap<>();
+        for (State state : dirty) {
+            Message ack = new Message("ACK", me);
+            ack.setSequence(state.epoch, state.sequence);
+            acks.put(state.peer, ack);
+            state.dirty = false;
+        }
+
+        dirty.clear();
+        return acks;
+    }
+
+    /**
+     * <p>Checks if there are pending acknowledgements.</p>
+     * @return  has pending acknowledgements
+     */
+    public synchronized boolean hasPending () {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * <p>Forgets a sender, that left the network.</p>
+     * @param peer  sender
+     */
+    public synchronized void forget (Peer peer) {
+        senders.remove(peer);
+    }
+
+    /**
+     * <p>Receive state of one sender.</p>
+     */
+    private static class State {
+
+        /**
+         * <p>Sender.</p>
+         */
+        private final Peer peer;
+
+        /**
+         * <p>Epoch of the sending connection.</p>
+         */
+        private final long epoch;
+
+        /**
+         * <p>Highest sequence number received in order.</p>
+         */
+        private long sequence;
+
+        /**
+         * <p>Needs an ACK.</p>
+         */
+        private boolean dirty;
+
+        /**
+         * <p>Creates a state for a new sending connection.</p>
+         * @param peer  sender
+         * @param epoch epoch of the sending connection
+         */
+        State (Peer peer, long epoch) {
+            this.peer = peer;
+            this.epoch = epoch;
+        }
+    }
+}
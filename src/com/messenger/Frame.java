@@ -0,0 +1,57 @@
+package com.messenger;
+
+/**
+ * <p>A {@link Message} that is encoded into the bytes of one
+ * line, when it is written to a socket for the first time. Used
+ * to send the same message to many connections, so it is
+ * encoded only once and not at all, when all connections are
+ * in-JVM links.</p>
+ */
+public final class Frame {
+
+    /**
+     * <p>Message of this frame.</p>
+     */
+    private final Message message;
+
+    /**
+     * <p>Encoded line, including the line feed.
+     * Null, until it is needed.</p>
+     */
+    private volatile byte[] bytes;
+
+    /**
+     * <p>Creates a frame of a message, that must not
+     * be modified afterwards.</p>
+     * @param message   message to encode
+     */
+    public Frame (Message message) {
+        this.message = message;
+    }
+
+    /**
+     * <p>Gets {@link Frame#message}.</p>
+     * @return  {@link Frame#message}
+     */
+    public Message getMessage () {
+        return message;
+    }
+
+    /**
+     * <p>Gets {@link Frame#bytes} and encodes the message
+     * on first use. Must not be modified.</p>
+     * @return  {@link Frame#bytes}
+     */
+    public byte[] getBytes () {
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            // threads racing here encode the same bytes
+            FrameEncoder encoder = FrameEncoder.local();
+            encoder.encode(message);
+            encoded = encoder.toByteArray();
+            bytes = encoded;
+        }
+
+        return encoded;
+    }
+}
@@ -0,0 +1,183 @@
+package com.messenger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Encodes a {@link Message} into the bytes of one line, like
+ * {@link Message#toString()} would produce it, but without building
+ * a string. Command and peer are copied from cached byte arrays,
+ * only the text is encoded. The encoder keeps its buffer, so
+ * encoding into the same encoder again does not allocate.</p>
+ */
+public class FrameEncoder {
+
+    /**
+     * <p>Encoded commands, the commands are
+     * a small fixed set.</p>
+     */
+    private static final ConcurrentHashMap<String, byte[]> commands = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Encoder per thread, used to build {@link Frame}s.</p>
+     */
+    private static final ThreadLocal<FrameEncoder> local = ThreadLocal.withInitial(FrameEncoder::new);
+
+    /**
+     * <p>Reusable buffer, grows with the
+     * longest message encoded.</p>
+     */
+    private byte[] buffer = new byte[256];
+
+    /**
+     * <p>Number of valid bytes in {@link FrameEncoder#buffer}.</p>
+     */
+    private int length;
+
+    /**
+     * <p>Encodes a message into the buffer of this encoder,
+     * terminated by a line feed.</p>
+     * @param message   message to encode
+     */
+    public void encode (Message message) {
+        byte[] command = commands.computeIfAbsent(message.getCommand(),
+                key -> key.toUpperCase().getBytes(StandardCharsets.UTF_8));
+        byte[] peer = message.getPeer().getEncoded();
+
+        length = 0;
+        ensure(command.length + peer.length + 96);
+        put(command);
+        if (message.hasSequence()) {
+            putAttribute('e', message.getEpoch());
+            putAttribute('s', message.getSequence());
+        }
+        if (message.hasTimestamp()) {
+            putAttribute('t', message.getTimestamp());
+            if (message.getHops() > 0) {
+                putAttribute('h', message.getHops());
+            }
+        }
+        if (message.hasIncarnation()) {
+            putAttribute('i', message.getIncarnation());
+        }
+        buffer[length++] = ' ';
+        put(peer);
+
+        if (message.hasText()) {
+            String text = message.getText();
+            // a char needs at most 3 bytes in UTF-8
+            ensure(text.length() * 3 + 2);
+            buffer[length++] = ' ';
+            putText(text);
+        }
+
+        buffer[length++] = '\n';
+    }
+
+    /**
+     * <p>Copies bytes into the buffer.</p>
+     * @param bytes bytes to copy
+     */
+    private void put (byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * <p>Appends an attribute to the command, like
+     * ";s=42". Digits are written without building a string.</p>
+     * @param key   attribute key
+     * @param value positive attribute value
+     */
+    private void putAttribute (char key, long value) {
+        buffer[length++] = ';';
+        buffer[length++] = (byte) key;
+        buffer[length++] = '=';
+
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * <p>Encodes text as UTF-8 directly into the buffer.
+     * The buffer needs space for three bytes per char.</p>
+     * @param text  text to encode
+     */
+    private void putText (String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                buffer[length++] = (byte) (0xf0 | (cp >> 18));
+                buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, same replacement as String.getBytes
+                buffer[length++] = '?';
+            } else {
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * <p>Grows the buffer, so that the given number of
+     * bytes fit behind the current length.</p>
+     * @param additional    number of bytes to fit
+     */
+    private void ensure (int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+    /**
+     * <p>Copy of the encoded bytes.</p>
+     * @return  encoded bytes
+     */
+    public byte[] toByteArray () {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * <p>Gets {@link FrameEncoder#buffer}. Only the first
+     * {@link FrameEncoder#getLength()} bytes are valid.</p>
+     * @return  {@link FrameEncoder#buffer}
+     */
+    public byte[] getBuffer () {
+        return buffer;
+    }
+
+    /**
+     * <p>Gets {@link FrameEncoder#length}.</p>
+     * @return  {@link FrameEncoder#length}
+     */
+    public int getLength () {
+        return length;
+    }
+
+    /**
+     * <p>Gets the encoder of the current thread.</p>
+     * @return  encoder of current thread
+     */
+    static FrameEncoder local () {
+        return local.get();
+    }
+}
@@ -0,0 +1,838 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>History of received and sent messages in numbered segment
+ * files of a fixed size, which are mapped into memory. Records
+ * are appended to the last segment, when it is full a new one
+ * is started. The oldest segments are deleted, when all segments
+ * exceed the maximum size or are older than the maximum age.</p>
+ * <p>Receiving and sending threads only put records into a queue,
+ * a single writer thread appends them, so a slow disk never delays
+ * the receive path. When the queue is full, records are dropped
+ * and counted.</p>
+ * <p>Every segment has a sparse index in memory, the time and
+ * offset of every {@link History#INDEX_INTERVAL}th record, and the
+ * set of peers it has records of. Every index block has a bit mask
+ * of the hashes of its peers. A query skips segments without the
+ * peer and reads the index blocks of the others from the newest one
+ * backwards, skipping blocks without the bit of the peer, until it
+ * has enough records, so it reads only the blocks of the result and
+ * not the whole history.</p>
+ * <p>A record is its length, the time in milliseconds, a flag for
+ * sent messages, the peer as "ip:port name" and the text, both in
+ * UTF-8. The length is written last, a record with length zero ends
+ * the segment.</p>
+ */
+public class History {
+
+    /**
+     * <p>Bytes of a record in front of the peer.</p>
+     */
+    private static final int HEADER = Integer.BYTES + Long.BYTES + Byte.BYTES + Short.BYTES;
+
+    /**
+     * <p>Number of records of an index block.</p>
+     */
+    private static final int INDEX_INTERVAL = 64;
+
+    /**
+     * <p>Maximum number of records, that wait
+     * for the writer.</p>
+     */
+    private static final int QUEUE = 16384;
+
+    /**
+     * <p>File name extension of segments.</p>
+     */
+    private static final String SEGMENT = ".hist";
+
+    /**
+     * <p>Directory of the history.</p>
+     */
+    private final Path directory;
+
+    /**
+     * <p>Size of a segment in bytes.</p>
+     */
+    private final int segmentSize;
+
+    /**
+     * <p>Maximum size of all segments in bytes.</p>
+     */
+    private final long maxSize;
+
+    /**
+     * <p>Time in milliseconds, after that a
+     * segment is deleted.</p>
+     */
+    private final long maxAge;
+
+    /**
+     * <p>Segments from the oldest to the newest one,
+     * the last one is written.</p>
+     */
+    private final ArrayList<Segment> segments = new ArrayList<>();
+
+    /**
+     * <p>Records, that wait for the writer.</p>
+     */
+    private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE);
+
+    /**
+     * <p>Thread, that appends the queued records.</p>
+     */
+    private final Writer writer;
+
+    /**
+     * <p>Words of all records, {@code null}
+     * when search is disabled.</p>
+     */
+    private final SearchIndex search;
+
+    /**
+     * <p>Number of the next segment.</p>
+     */
+    private long next;
+
+    /**
+     * <p>Time of the last record, records get
+     * no earlier time, so the index is sorted.</p>
+     */
+    private long last;
+
+    /**
+     * <p>Size of all segments in bytes.</p>
+     */
+    private long size;
+
+    /**
+     * <p>Number of records in all segments.</p>
+     */
+    private long count;
+
+    /**
+     * <p>Number of records dropped, because the
+     * queue was full.</p>
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * <p>Opens the history in a directory, indexes the segments
+     * of an earlier run and starts the writer.</p>
+     * @param directory     directory of the history
+     * @param segmentSize   size of a segment in bytes
+     * @param maxSize       maximum size of all segments in bytes
+     * @param maxAge        maximum age of segments in milliseconds
+     * @param search        whether the words of records are indexed
+     * @throws IOException  when the directory or a segment can not be read
+     */
+    public History (Path directory, int segmentSize, long maxSize, long maxAge, boolean search) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.search = search ? new SearchIndex() : null;
+
+        Files.createDirectories(directory);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT)) {
+            for (Path file : stream) {
+                String number = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(number.substring(0, number.length() - SEGMENT.length())), file);
+                } catch (NumberFormatException e) {
+                    System.err.println("> [" + new Date().toString() + "] History file " + file + " is ignored.");
+                }
+            }
+        }
+
+        for (Long number : files.keySet()) {
+            // only the last segment is written again
+            Segment segment = new Segment(files.get(number), number, number.equals(files.lastKey()));
+            segment.recover();
+            segments.add(segment);
+            count += segment.records;
+            size += segment.buffer.capacity();
+            last = Math.max(last, segment.last);
+        }
+        next = files.isEmpty() ? 0 : files.lastKey() + 1;
+        expire();
+
+        writer = new Writer();
+        writer.start();
+    }
+
+    /**
+     * <p>Records a received message.</p>
+     * @param peer  sending peer
+     * @param text  text of the message
+     */
+    public void received (Peer peer, String text) {
+        record(new Record(System.currentTimeMillis(), false, peer, text));
+    }
+
+    /**
+     * <p>Records a sent message.</p>
+     * @param peer  receiving peer
+     * @param text  text of the message
+     */
+    public void sent (Peer peer, String text) {
+        record(new Record(System.currentTimeMillis(), true, peer, text));
+    }
+
+    /**
+     * <p>Queues a record for the writer without waiting.</p>
+     * @param record    record
+     */
+    private void record (Record record) {
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>Gets the newest messages with a peer.</p>
+     * @param peer  "ip:port" or name of the peer
+     * @param since earliest time in milliseconds
+     * @param limit maximum number of messages
+     * @return  lines of the messages, the oldest first
+     */
+    public List<String> query (String peer, long since, int limit) {
+        // the writer only appends, so the records below the
+        // limits of a snapshot do not change
+        ArrayList<Snapshot> snapshots = new ArrayList<>();
+        synchronized (this) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment segment = segments.get(i);
+                if (segment.last < since) {
+                    break;
+                }
+
+                if (segment.peers.contains(peer)) {
+                    snapshots.add(new Snapshot(segment));
+                }
+            }
+        }
+
+        long mask = mask(peer);
+        ArrayDeque<String> lines = new ArrayDeque<>();
+        for (Snapshot snapshot : snapshots) {
+            for (int block = snapshot.blocks - 1; block >= 0 && lines.size() < limit; block--) {
+                int end = block + 1 < snapshot.blocks ? snapshot.offsets[block + 1] : snapshot.limit;
+                if (block + 1 < snapshot.blocks && snapshot.times[block + 1] < since) {
+                    break;
+                }
+
+                if ((snapshot.masks[block] & mask) == 0) {
+                    continue;
+                }
+
+                List<String> found = snapshot.scan(snapshot.offsets[block], end, peer, since);
+                for (int i = found.size() - 1; i >= 0 && lines.size() < limit; i--) {
+                    lines.addFirst(found.get(i));
+                }
+            }
+
+            if (lines.size() >= limit) {
+                break;
+            }
+        }
+
+        return new ArrayList<>(lines);
+    }
+
+    /**
+     * <p>Gets the newest messages, that contain all
+     * words of a query.</p>
+     * @param query words to search for
+     * @param limit maximum number of messages
+     * @return  lines of the messages, the oldest first, {@code null} when search is disabled
+     */
+    public List<String> search (String query, int limit) {
+        if (search == null) {
+            return null;
+        }
+
+        ArrayList<Segment> found = new ArrayList<>();
+        long[] positions;
+        synchronized (this) {
+            positions = search.find(query, limit);
+            int index = 0;
+            for (long position : positions) {
+                // positions and segments are both ascending
+                while (index < segments.size() && segments.get(index).number < position >>> 32) {
+                    index++;
+                }
+                found.add(index < segments.size() && segments.get(index).number == position >>> 32 ? segments.get(index) : null);
+            }
+        }
+
+        ArrayList<String> lines = new ArrayList<>();
+        for (int i = 0; i < positions.length; i++) {
+            if (found.get(i) != null) {
+                lines.add(found.get(i).line((int) positions[i]));
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * <p>Appends records to the last segment, starts a new
+     * segment, when it is full. Called by the writer.</p>
+     * @param records   records in the order they were queued
+     */
+    private void append (List<Record> records) {
+        for (Record record : records) {
+            byte[] peer = record.peer.getBytes(StandardCharsets.UTF_8);
+            byte[] text = record.text.getBytes(StandardCharsets.UTF_8);
+            int length = HEADER + peer.length + text.length;
+            if (peer.length > Short.MAX_VALUE || length > segmentSize) {
+                System.err.println("> [" + new Date().toString() + "] Message of " + length + " bytes does not fit into the history.");
+                continue;
+            }
+
+            synchronized (this) {
+                Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                try {
+                    if (segment == null || !segment.writable || segment.limit + length > segment.buffer.capacity()) {
+                        if (segment != null) {
+                            segment.finish();
+                        }
+
+                        segment = new Segment(directory.resolve(String.format("%016d", next) + SEGMENT), next, true);
+                        next++;
+                        segments.add(segment);
+                        size += segment.buffer.capacity();
+                        expire();
+                    }
+                } catch (IOException e) {
+                    System.err.println("> [" + new Date().toString() + "] History segment can not be created: " + e.getMessage());
+                    return;
+                }
+
+                last = Math.max(last, record.time);
+                ByteBuffer buffer = segment.buffer;
+                int offset = segment.limit;
+                buffer.putLong(offset + Integer.BYTES, last);
+                buffer.put(offset + Integer.BYTES + Long.BYTES, (byte) (record.sent ? 1 : 0));
+                buffer.putShort(offset + Integer.BYTES + Long.BYTES + Byte.BYTES, (short) peer.length);
+                buffer.put(offset + HEADER, peer);
+                buffer.put(offset + HEADER + peer.length, text);
+                // a record without length is not read after a crash
+                buffer.putInt(offset, length - Integer.BYTES);
+
+                segment.index(offset, last, record.peer);
+                if (search != null) {
+                    search.add(segment.position(offset), record.text);
+                }
+                segment.limit += length;
+                count++;
+            }
+        }
+    }
+
+    /**
+     * <p>Deletes the oldest segments, while all segments exceed
+     * the maximum size or the oldest one exceeds the maximum
+     * age. The last segment is kept.</p>
+     */
+    private synchronized void expire () {
+        long deadline = System.currentTimeMillis() - maxAge;
+        boolean deleted = false;
+        while (segments.size() > 1 && (size > maxSize
+                || segments.get(0).last < deadline)) {
+            Segment segment = segments.remove(0);
+            deleted = true;
+            count -= segment.records;
+            size -= segment.buffer.capacity();
+            try {
+                // the mapping stays valid for running queries
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.err.println("> [" + new Date().toString() + "] History file " + segment.path + " can not be deleted: " + e.getMessage());
+            }
+        }
+
+        if (deleted && search != null) {
+            search.prune(segments.get(0).position(0));
+        }
+    }
+
+    /**
+     * <p>Gets the bit of a peer in the masks of index blocks.</p>
+     * @param peer  "ip:port" or name of the peer
+     * @return  mask with one bit
+     */
+    private static long mask (String peer) {
+        int hash = peer.hashCode() * 0x9e3779b9;
+        return 1L << (hash >>> 26);
+    }
+
+    /**
+     * <p>Appends the queued records, writes the last segment
+     * to disk and stops the writer.</p>
+     */
+    public void close () {
+        writer.terminate();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (!segments.isEmpty()) {
+                segments.get(segments.size() - 1).finish();
+            }
+        }
+    }
+
+    /**
+     * <p>Gets the number of records in all segments.</p>
+     * @return  number of records
+     */
+    public synchronized long getCount () {
+        return count;
+    }
+
+    /**
+     * <p>Gets the size of all segments in bytes.</p>
+     * @return  size in bytes
+     */
+    public synchronized long getSize () {
+        return size;
+    }
+
+    /**
+     * <p>Gets the number of records dropped, because
+     * the writer was behind.</p>
+     * @return  dropped records
+     */
+    public long getDropped () {
+        return dropped.get();
+    }
+
+    /**
+     * <p>Gets {@link History#search}.</p>
+     * @return  {@link History#search}, null when disabled
+     */
+    public SearchIndex getSearchIndex () {
+        return search;
+    }
+
+    /**
+     * <p>Gets {@link History#directory}.</p>
+     * @return  {@link History#directory}
+     */
+    public Path getDirectory () {
+        return directory;
+    }
+
+    /**
+     * <p>Message, that waits for the writer.</p>
+     */
+    private static final class Record {
+
+        /**
+         * <p>Time the message was received or sent.</p>
+         */
+        final long time;
+
+        /**
+         * <p>Whether the message was sent.</p>
+         */
+        final boolean sent;
+
+        /**
+         * <p>Peer as "ip:port name".</p>
+         */
+        final String peer;
+
+        /**
+         * <p>Text of the message.</p>
+         */
+        final String text;
+
+        /**
+         * <p>Creates a record.</p>
+         * @param time  time in milliseconds
+         * @param sent  whether the message was sent
+         * @param peer  sending or receiving peer
+         * @param text  text of the message
+         */
+        Record (long time, boolean sent, Peer peer, String text) {
+            this.time = time;
+            this.sent = sent;
+            this.peer = peer.getHostName() + ":" + peer.getPort() + (peer.hasName() ? " " + peer.getName() : "");
+            this.text = text != null ? text : "";
+        }
+    }
+
+    /**
+     * <p>Segment file with its index.</p>
+     */
+    private final class Segment {
+
+        /**
+         * <p>Path of the file.</p>
+         */
+        final Path path;
+
+        /**
+         * <p>Number of the segment.</p>
+         */
+        final long number;
+
+        /**
+         * <p>Mapped content of the file.</p>
+         */
+        final MappedByteBuffer buffer;
+
+        /**
+         * <p>Whether records are appended.</p>
+         */
+        boolean writable;
+
+        /**
+         * <p>End of the last record.</p>
+         */
+        int limit;
+
+        /**
+         * <p>Number of records.</p>
+         */
+        int records;
+
+        /**
+         * <p>Time of the last record.</p>
+         */
+        long last = Long.MIN_VALUE;
+
+        /**
+         * <p>Addresses and names of peers
+         * with records in this segment.</p>
+         */
+        final HashSet<String> peers = new HashSet<>();
+
+        /**
+         * <p>Times of the first records of the index blocks.</p>
+         */
+        long[] times = new long[16];
+
+        /**
+         * <p>Offsets of the first records of the index blocks.</p>
+         */
+        int[] offsets = new int[16];
+
+        /**
+         * <p>Peer masks of the index blocks.</p>
+         */
+        long[] masks = new long[16];
+
+        /**
+         * <p>Number of index blocks.</p>
+         */
+        int blocks;
+
+        /**
+         * <p>Maps a segment file, a new file gets the
+         * size of a segment.</p>
+         * @param path      path of the file
+         * @param number    number of the segment
+         * @param writable  whether records are appended
+         * @throws IOException  when the file can not be mapped
+         */
+        Segment (Path path, long number, boolean writable) throws IOException {
+            this.path = path;
+            this.number = number;
+            this.writable = writable;
+
+            if (writable) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+                }
+            } else {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+        }
+
+        /**
+         * <p>Indexes the records of an earlier run, until
+         * a record without length or a cut off record.</p>
+         */
+        void recover () {
+            while (limit + HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(limit);
+                if (length < HEADER - Integer.BYTES || limit + Integer.BYTES + length > buffer.capacity()) {
+                    break;
+                }
+
+                int peerLength = buffer.getShort(limit + Integer.BYTES + Long.BYTES + Byte.BYTES);
+                if (peerLength < 0 || HEADER + peerLength > Integer.BYTES + length) {
+                    break;
+                }
+
+                index(limit, buffer.getLong(limit + Integer.BYTES), string(limit + HEADER, peerLength));
+                if (search != null) {
+                    search.add(position(limit), string(limit + HEADER + peerLength, Integer.BYTES + length - HEADER - peerLength));
+                }
+                limit += Integer.BYTES + length;
+            }
+
+            if (limit + HEADER > buffer.capacity()) {
+                writable = false;
+            }
+        }
+
+        /**
+         * <p>Adds a record to the index.</p>
+         * @param offset    offset of the record
+         * @param time      time of the record
+         * @param peer      peer of the record as "ip:port name"
+         */
+        void index (int offset, long time, String peer) {
+            if (records % INDEX_INTERVAL == 0) {
+                if (blocks == times.length) {
+                    times = Arrays.copyOf(times, blocks * 2);
+                    offsets = Arrays.copyOf(offsets, blocks * 2);
+                    masks = Arrays.copyOf(masks, blocks * 2);
+                }
+                times[blocks] = time;
+                offsets[blocks] = offset;
+                blocks++;
+            }
+
+            int separator = peer.indexOf(' ');
+            if (separator < 0) {
+                peers.add(peer);
+                masks[blocks - 1] |= mask(peer);
+            } else {
+                peers.add(peer.substring(0, separator));
+                peers.add(peer.substring(separator + 1));
+                masks[blocks - 1] |= mask(peer.substring(0, separator)) | mask(peer.substring(separator + 1));
+            }
+
+            records++;
+            last = time;
+        }
+
+        /**
+         * <p>Writes the segment to disk and stops appending.</p>
+         */
+        void finish () {
+            if (writable) {
+                buffer.force();
+                writable = false;
+            }
+        }
+
+        /**
+         * <p>Formats a record like a message line
+         * of the terminal.</p>
+         * @param offset    offset of the record
+         * @return  line
+         */
+        String line (int offset) {
+            int length = buffer.getInt(offset);
+            long time = buffer.getLong(offset + Integer.BYTES);
+            boolean sent = buffer.get(offset + Integer.BYTES + Long.BYTES) != 0;
+            int peerLength = buffer.getShort(offset + Integer.BYTES + Long.BYTES + Byte.BYTES);
+
+            String peer = string(offset + HEADER, peerLength);
+            String text = string(offset + HEADER + peerLength, Integer.BYTES + length - HEADER - peerLength);
+            // the name, when the peer has one
+            String label = peer.substring(peer.indexOf(' ') + 1);
+            return "> [" + new Date(time).toString() + "] " + (sent ? "You -> " + label : label + " -> You") + ": " + text;
+        }
+
+        /**
+         * <p>Gets the position of a record in the
+         * whole history for the search index.</p>
+         * @param offset    offset of the record
+         * @return  number of the segment in the high and offset in the low 32 bits
+         */
+        long position (int offset) {
+            return number << 32 | offset;
+        }
+
+        /**
+         * <p>Decodes UTF-8 bytes of the segment.</p>
+         * @param offset    offset of the first byte
+         * @param length    number of bytes
+         * @return  string
+         */
+        String string (int offset, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * <p>Records and index of a segment at the time of a query.</p>
+     */
+    private static final class Snapshot {
+
+        /**
+         * <p>Segment.</p>
+         */
+        final Segment segment;
+
+        /**
+         * <p>End of the last record.</p>
+         */
+        final int limit;
+
+        /**
+         * <p>Number of index blocks.</p>
+         */
+        final int blocks;
+
+        /**
+         * <p>Times of the index blocks.</p>
+         */
+        final long[] times;
+
+        /**
+         * <p>Offsets of the index blocks.</p>
+         */
+        final int[] offsets;
+
+        /**
+         * <p>Peer masks of the index blocks.</p>
+         */
+        final long[] masks;
+
+        /**
+         * <p>Takes the current state of a segment, while
+         * the history is locked.</p>
+         * @param segment   segment
+         */
+        Snapshot (Segment segment) {
+            this.segment = segment;
+            this.limit = segment.limit;
+            this.blocks = segment.blocks;
+            this.times = segment.times;
+            this.offsets = segment.offsets;
+            this.masks = segment.masks;
+        }
+
+        /**
+         * <p>Reads the records of a peer between two offsets.</p>
+         * @param start start of the first record
+         * @param end   end of the last record
+         * @param peer  "ip:port" or name of the peer
+         * @param since earliest time in milliseconds
+         * @return  lines of the records in order
+         */
+        List<String> scan (int start, int end, String peer, long since) {
+            ArrayList<String> lines = new ArrayList<>();
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = start;
+            while (offset < end) {
+                int length = buffer.getInt(offset);
+                long time = buffer.getLong(offset + Integer.BYTES);
+                int peerLength = buffer.getShort(offset + Integer.BYTES + Long.BYTES + Byte.BYTES);
+
+                if (time >= since) {
+                    String address = segment.string(offset + HEADER, peerLength);
+                    int separator = address.indexOf(' ');
+                    String name = separator < 0 ? null : address.substring(separator + 1);
+                    if (separator >= 0) {
+                        address = address.substring(0, separator);
+                    }
+
+                    if (peer.equals(address) || peer.equals(name)) {
+                        lines.add(segment.line(offset));
+                    }
+                }
+
+                offset += Integer.BYTES + length;
+            }
+
+            return lines;
+        }
+    }
+
+    /**
+     * <p>Thread, that appends queued records and
+     * deletes old segments.</p>
+     */
+    private class Writer extends Thread {
+
+        /**
+         * <p>Status of thread.</p>
+         */
+        private volatile boolean _terminate = false;
+
+        /**
+         * <p>Creates the writer.</p>
+         */
+        Writer () {
+            super("history");
+            setDaemon(true);
+        }
+
+        /**
+         * <p>Appends records in batches, until terminated. Old
+         * segments are also deleted, when no records come.</p>
+         */
+        @Override
+        public void run () {
+            ArrayList<Record> batch = new ArrayList<>();
+            long expired = System.currentTimeMillis();
+            while (!_terminate || !queue.isEmpty()) {
+                try {
+                    Record record = queue.poll(1, TimeUnit.SECONDS);
+                    if (record != null) {
+                        batch.add(record);
+                        queue.drainTo(batch);
+                        append(batch);
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (System.currentTimeMillis() - expired > TimeUnit.MINUTES.toMillis(1)) {
+                    expire();
+                    expired = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * <p>Terminate thread, after the queued records are
+         * appended. The thread is not interrupted, an interrupt
+         * would close the channel of a new segment while it is
+         * mapped, so it notices the flag within the poll timeout.</p>
+         */
+        void terminate () {
+            _terminate = true;
+        }
+    }
+}
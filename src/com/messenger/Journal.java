@@ -0,0 +1,675 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Append-only journal of messages for peers, that are offline.
+ * Every peer has a directory of numbered segment files, records
+ * are appended to the last segment and read from the first one,
+ * so messages are delivered in the order they were written.
+ * Taken records stay in the journal, until the peer acknowledged
+ * them, a record taken by a lost connection is taken again after
+ * {@link Journal#rewind(Peer)}. Acknowledged and expired segments
+ * are deleted as a whole.</p>
+ * <p>A record is the length of the text, the time it was written
+ * in milliseconds and the text in UTF-8. A record, that was cut
+ * off by a crash, ends its segment.</p>
+ * <p>Appends are durable, when {@link Journal#append(Peer, String)}
+ * returns. The thread, that commits first, forces all segments
+ * written since the last commit, so threads appending at the same
+ * time share one force (group commit).</p>
+ */
+public class Journal {
+
+    /**
+     * <p>Bytes of a record in front of the text.</p>
+     */
+    private static final int HEADER = Integer.BYTES + Long.BYTES;
+
+    /**
+     * <p>File name extension of segments.</p>
+     */
+    private static final String SEGMENT = ".seg";
+
+    /**
+     * <p>Directory of the journal.</p>
+     */
+    private final Path directory;
+
+    /**
+     * <p>Size of a segment in bytes, a new one
+     * is started when it is reached.</p>
+     */
+    private final long segmentSize;
+
+    /**
+     * <p>Maximum size of all segments in bytes.</p>
+     */
+    private final long maxSize;
+
+    /**
+     * <p>Time in milliseconds, after that a record
+     * is not delivered any more.</p>
+     */
+    private final long ttl;
+
+    /**
+     * <p>Journal of every peer with records.</p>
+     */
+    private final ConcurrentHashMap<Peer, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Size of all segments in bytes.</p>
+     */
+    private long size;
+
+    /**
+     * <p>Number of appended records.</p>
+     */
+    private long appended;
+
+    /**
+     * <p>Segments written since the last commit.</p>
+     */
+    private final LinkedHashSet<FileChannel> dirty = new LinkedHashSet<>();
+
+    /**
+     * <p>Held while segments are forced, so only
+     * one thread commits at a time.</p>
+     */
+    private final Object commit = new Object();
+
+    /**
+     * <p>Number of appended records, that are forced
+     * to disk. Guarded by {@link Journal#commit}.</p>
+     */
+    private long committed;
+
+    /**
+     * <p>Opens the journal in a directory and recovers
+     * the records of an earlier run.</p>
+     * @param directory     directory of the journal
+     * @param segmentSize   size of a segment in bytes
+     * @param maxSize       maximum size of all segments in bytes
+     * @param ttl           time to live of records in milliseconds
+     * @param cache         cache of known peers, resolves the recovered peers
+     * @throws IOException  when the directory can not be created or read
+     */
+    public Journal (Path directory, long segmentSize, long maxSize, long ttl, PeerCache cache) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> peers = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path path : peers) {
+                Outbox outbox = recover(path, cache);
+                if (outbox != null) {
+                    outboxes.put(outbox.peer, outbox);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Recovers the segments of a peer directory.</p>
+     * @param path  directory named by ip address and port
+     * @param cache cache of known peers
+     * @return  journal of the peer, {@code null} when empty or not a peer
+     * @throws IOException  when the directory can not be read
+     */
+    private Outbox recover (Path path, PeerCache cache) throws IOException {
+        String name = path.getFileName().toString();
+        int separator = name.lastIndexOf('_');
+        if (separator < 0) {
+            return null;
+        }
+
+        Peer peer;
+        try {
+            peer = cache.intern(name.substring(0, separator), Integer.parseInt(name.substring(separator + 1)), null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*" + SEGMENT)) {
+            for (Path file : files) {
+                String number = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(number.substring(0, number.length() - SEGMENT.length())), file);
+                } catch (NumberFormatException e) {
+                    System.err.println("> [" + new Date().toString() + "] Journal file " + file + " is ignored.");
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            return null;
+        }
+
+        Outbox outbox = new Outbox(peer, path);
+        for (Path file : segments.values()) {
+            outbox.segments.add(file);
+            size += Files.size(file);
+        }
+        outbox.next = segments.lastKey() + 1;
+        return outbox;
+    }
+
+    /**
+     * <p>Appends a message for a peer and waits, until
+     * it is on disk.</p>
+     * @param peer  receiving peer
+     * @param text  text of the message
+     * @return  {@code false} when the journal is full or can not be written
+     */
+    public boolean append (Peer peer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + bytes.length);
+        record.putInt(bytes.length).putLong(System.currentTimeMillis()).put(bytes).flip();
+
+        long sequence;
+        synchronized (this) {
+            if (size + record.remaining() > maxSize) {
+                return false;
+            }
+
+            try {
+                Outbox outbox = outboxes.computeIfAbsent(peer, key -> new Outbox(key,
+                        directory.resolve(key.getHostName() + "_" + key.getPort())));
+                FileChannel channel = outbox.writer(record.remaining());
+                int length = record.remaining();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+
+                outbox.writerSize += length;
+                size += length;
+                dirty.add(channel);
+            } catch (IOException e) {
+                System.err.println("> [" + new Date().toString() + "] Journal can not be written: " + e.getMessage());
+                Outbox outbox = outboxes.get(peer);
+                if (outbox != null && outbox.segments.isEmpty()) {
+                    outboxes.remove(peer);
+                }
+                return false;
+            }
+
+            sequence = ++appended;
+        }
+
+        return commit(sequence);
+    }
+
+    /**
+     * <p>Forces all segments written since the last commit,
+     * unless another thread did already for the given record.</p>
+     * @param sequence  number of the appended record
+     * @return  {@code false} when the segments can not be forced
+     */
+    private boolean commit (long sequence) {
+        synchronized (commit) {
+            if (committed >= sequence) {
+                return true;
+            }
+
+            ArrayList<FileChannel> channels;
+            long last;
+            synchronized (this) {
+                channels = new ArrayList<>(dirty);
+                dirty.clear();
+                last = appended;
+            }
+
+            try {
+                for (FileChannel channel : channels) {
+                    try {
+                        channel.force(false);
+                    } catch (ClosedChannelException e) {
+                        // forced by closeWriter
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("> [" + new Date().toString() + "] Journal can not be forced: " + e.getMessage());
+                return false;
+            }
+
+            committed = last;
+            return true;
+        }
+    }
+
+    /**
+     * <p>Checks if there are records for a peer.</p>
+     * @param peer  peer
+     * @return  {@code true} if records are waiting
+     */
+    public boolean has (Peer peer) {
+        return outboxes.containsKey(peer);
+    }
+
+    /**
+     * <p>Gets all peers, that have records.</p>
+     * @return  peers with records
+     */
+    public Set<Peer> getPeers () {
+        return outboxes.keySet();
+    }
+
+    /**
+     * <p>Takes the next records of a peer. Taken records are
+     * not taken again, until {@link Journal#rewind(Peer)}, but
+     * stay on disk, until they are acknowledged. Expired records
+     * are skipped.</p>
+     * @param peer  peer
+     * @param max   maximum number of records
+     * @return  records in order, empty when there are no more
+     */
+    public synchronized List<Record> take (Peer peer, int max) {
+        ArrayList<Record> records = new ArrayList<>();
+        Outbox outbox = outboxes.get(peer);
+        if (outbox == null) {
+            return records;
+        }
+
+        if (outbox.segments.isEmpty()) {
+            return records;
+        }
+
+        // continue after the last taken record
+        Path segment = outbox.cursor != null ? outbox.cursor : outbox.segments.peekFirst();
+        long position = outbox.cursor != null ? outbox.cursorPosition : outbox.position;
+        Iterator<Path> segments = outbox.segments.iterator();
+        while (segments.hasNext() && !segments.next().equals(segment)) {
+            // segments before the cursor are taken
+        }
+
+        long expiry = System.currentTimeMillis() - ttl;
+        try {
+            while (records.size() < max) {
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                    long end = channel.size();
+                    ByteBuffer header = ByteBuffer.allocate(HEADER);
+                    while (records.size() < max) {
+                        header.clear();
+                        if (channel.read(header, position) < HEADER) {
+                            break;
+                        }
+                        header.flip();
+                        int length = header.getInt();
+                        long time = header.getLong();
+
+                        // cut off or corrupted record, ends the segment
+                        if (length < 0 || length > end - position - HEADER) {
+                            break;
+                        }
+
+                        ByteBuffer text = ByteBuffer.allocate(length);
+                        if (channel.read(text, position + HEADER) < length) {
+                            break;
+                        }
+
+                        position += HEADER + length;
+                        if (time >= expiry) {
+                            records.add(new Record(new String(text.array(), StandardCharsets.UTF_8), segment, position, peer));
+                        }
+                    }
+                }
+
+                if (records.size() == max || !segments.hasNext()) {
+                    break;
+                }
+
+                // all records of the segment are taken
+                segment = segments.next();
+                position = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("> [" + new Date().toString() + "] Journal can not be read: " + e.getMessage());
+        }
+
+        outbox.cursor = segment;
+        outbox.cursorPosition = position;
+        return records;
+    }
+
+    /**
+     * <p>Checks if a peer has records, that were not taken.</p>
+     * @param peer  peer
+     * @return  {@code true} if {@link Journal#take(Peer, int)} would read records
+     */
+    public synchronized boolean hasUntaken (Peer peer) {
+        Outbox outbox = outboxes.get(peer);
+        if (outbox == null) {
+            return false;
+        }
+
+        if (outbox.cursor == null || !outbox.cursor.equals(outbox.segments.peekLast())) {
+            return true;
+        }
+
+        try {
+            return outbox.cursorPosition < Files.size(outbox.cursor);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * <p>Deletes all records of a peer up to an acknowledged
+     * record. Segments are deleted, when all their records are
+     * acknowledged, the journal of the peer, when it is empty.</p>
+     * @param peer      peer
+     * @param record    acknowledged record
+     */
+    public synchronized void acknowledge (Peer peer, Record record) {
+        Outbox outbox = outboxes.get(peer);
+        // acknowledged before or expired
+        if (outbox == null || !outbox.segments.contains(record.segment)) {
+            return;
+        }
+
+        try {
+            while (!outbox.segments.peekFirst().equals(record.segment)) {
+                delete(outbox, outbox.segments.pollFirst());
+            }
+            outbox.position = Math.max(outbox.position, record.end);
+
+            if (outbox.position >= Files.size(record.segment)) {
+                delete(outbox, outbox.segments.pollFirst());
+                outbox.position = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("> [" + new Date().toString() + "] Journal can not be deleted: " + e.getMessage());
+        }
+
+        if (outbox.cursor != null && !outbox.segments.contains(outbox.cursor)) {
+            outbox.cursor = null;
+        }
+
+        if (outbox.segments.isEmpty()) {
+            outboxes.remove(peer);
+            outbox.delete();
+        }
+    }
+
+    /**
+     * <p>Takes all records of a peer again, that are not
+     * acknowledged, like after their connection was lost.</p>
+     * @param peer  peer
+     */
+    public synchronized void rewind (Peer peer) {
+        Outbox outbox = outboxes.get(peer);
+        if (outbox != null) {
+            outbox.cursor = null;
+        }
+    }
+
+    /**
+     * <p>Deletes segments, whose newest record is expired,
+     * like after the time to live nobody is waiting for
+     * them any more.</p>
+     */
+    public synchronized void expire () {
+        long expiry = System.currentTimeMillis() - ttl;
+        for (Outbox outbox : new ArrayList<>(outboxes.values())) {
+            try {
+                while (!outbox.segments.isEmpty() &&
+                        Files.getLastModifiedTime(outbox.segments.peekFirst()).toMillis() < expiry) {
+                    delete(outbox, outbox.segments.pollFirst());
+                    outbox.position = 0;
+                }
+            } catch (IOException e) {
+                System.err.println("> [" + new Date().toString() + "] Journal can not be expired: " + e.getMessage());
+            }
+
+            if (outbox.cursor != null && !outbox.segments.contains(outbox.cursor)) {
+                outbox.cursor = null;
+            }
+
+            if (outbox.segments.isEmpty()) {
+                outboxes.remove(outbox.peer);
+                outbox.delete();
+            }
+        }
+    }
+
+    /**
+     * <p>Deletes a segment of a peer.</p>
+     * @param outbox    journal of peer
+     * @param segment   segment to delete
+     * @throws IOException  when the segment can not be deleted
+     */
+    private void delete (Outbox outbox, Path segment) throws IOException {
+        if (outbox.segments.isEmpty()) {
+            // the last segment is written to
+            outbox.closeWriter();
+        }
+
+        long bytes = Files.size(segment);
+        Files.delete(segment);
+        size -= bytes;
+    }
+
+    /**
+     * <p>Gets {@link Journal#size}.</p>
+     * @return  {@link Journal#size}
+     */
+    public synchronized long getSize () {
+        return size;
+    }
+
+    /**
+     * <p>Closes all segments.</p>
+     */
+    public void close () {
+        long last;
+        synchronized (this) {
+            last = appended;
+        }
+        commit(last);
+
+        synchronized (this) {
+            for (Outbox outbox : outboxes.values()) {
+                outbox.closeWriter();
+            }
+        }
+    }
+
+    /**
+     * <p>Record taken from the journal, that is deleted,
+     * when the peer acknowledged it.</p>
+     */
+    public static final class Record {
+
+        /**
+         * <p>Text of the message.</p>
+         */
+        private final String text;
+
+        /**
+         * <p>Segment of the record.</p>
+         */
+        private final Path segment;
+
+        /**
+         * <p>Position after the record in its segment.</p>
+         */
+        private final long end;
+
+        /**
+         * <p>Receiving peer.</p>
+         */
+        private final Peer peer;
+
+        /**
+         * <p>Creates a taken record.</p>
+         * @param text      text of the message
+         * @param segment   segment of the record
+         * @param end       position after the record
+         * @param peer      receiving peer
+         */
+        private Record (String text, Path segment, long end, Peer peer) {
+            this.text = text;
+            this.peer = peer;
+            this.segment = segment;
+            this.end = end;
+        }
+
+        /**
+         * <p>Gets {@link Record#text}.</p>
+         * @return  {@link Record#text}
+         */
+        public String getText () {
+            return text;
+        }
+
+        /**
+         * <p>Gets {@link Record#peer}.</p>
+         * @return  {@link Record#peer}
+         */
+        public Peer getPeer () {
+            return peer;
+        }
+    }
+
+    /**
+     * <p>Segments of one peer.</p>
+     */
+    private class Outbox {
+
+        /**
+         * <p>Receiving peer.</p>
+         */
+        private final Peer peer;
+
+        /**
+         * <p>Directory of the segments.</p>
+         */
+        private final Path path;
+
+        /**
+         * <p>Segments from oldest to newest.</p>
+         */
+        private final ArrayDeque<Path> segments = new ArrayDeque<>();
+
+        /**
+         * <p>Number of the next segment.</p>
+         */
+        private long next;
+
+        /**
+         * <p>Position of the oldest record, that is not
+         * acknowledged, in the oldest segment.</p>
+         */
+        private long position;
+
+        /**
+         * <p>Segment of the next record to take. {@code null},
+         * when the oldest unacknowledged record is next.</p>
+         */
+        private Path cursor;
+
+        /**
+         * <p>Position of the next record to take
+         * in {@link Outbox#cursor}.</p>
+         */
+        private long cursorPosition;
+
+        /**
+         * <p>Newest segment, open for appending.
+         * {@code null} when not opened yet.</p>
+         */
+        private FileChannel writer;
+
+        /**
+         * <p>Size of the newest segment in bytes.</p>
+         */
+        private long writerSize;
+
+        /**
+         * <p>Creates the journal of a peer.</p>
+         * @param peer  receiving peer
+         * @param path  directory of the segments
+         */
+        Outbox (Peer peer, Path path) {
+            this.peer = peer;
+            this.path = path;
+        }
+
+        /**
+         * <p>Gets the segment to append a record to. A new one
+         * is started, when the newest one is full.</p>
+         * @param length    length of the record
+         * @return  open segment
+         * @throws IOException  when the segment can not be opened
+         */
+        FileChannel writer (int length) throws IOException {
+            if (writer != null && writerSize > 0 && writerSize + length > segmentSize) {
+                closeWriter();
+            }
+
+            if (writer == null) {
+                Files.createDirectories(path);
+                Path segment = path.resolve(String.format("%016d", next++) + SEGMENT);
+                writer = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                writerSize = 0;
+                segments.add(segment);
+            }
+
+            return writer;
+        }
+
+        /**
+         * <p>Closes the newest segment, records are
+         * appended to a new one afterwards.</p>
+         */
+        void closeWriter () {
+            if (writer != null) {
+                try {
+                    // records of a closed segment are not forced by a commit any more
+                    synchronized (Journal.this) {
+                        if (dirty.remove(writer)) {
+                            writer.force(false);
+                        }
+                    }
+                    writer.close();
+                } catch (IOException e) {
+                    System.err.println("> [" + new Date().toString() + "] Journal segment can not be closed: " + e.getMessage());
+                }
+                writer = null;
+            }
+        }
+
+        /**
+         * <p>Deletes the empty directory of the peer.</p>
+         */
+        void delete () {
+            closeWriter();
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("> [" + new Date().toString() + "] Journal directory " + path + " can not be deleted.");
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.messenger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Queue latency of one lane of {@link PriorityLanes}, over
+ * all connections. The latency is the time between queuing a
+ * frame and starting to write it. Every frame is queued in a
+ * lane and written by the writer of its connection, so every
+ * written frame is counted.</p>
+ */
+public class LaneMetrics {
+
+    /**
+     * <p>Lane of POKE, DISCONNECT, ACK and other
+     * membership frames.</p>
+     */
+    public static final LaneMetrics CONTROL = new LaneMetrics("control");
+
+    /**
+     * <p>Lane of MESSAGE and ROUTE frames.</p>
+     */
+    public static final LaneMetrics DATA = new LaneMetrics("data");
+
+    /**
+     * <p>Name of the lane.</p>
+     */
+    private final String name;
+
+    /**
+     * <p>Number of written frames.</p>
+     */
+    private final AtomicLong frames = new AtomicLong();
+
+    /**
+     * <p>Sum of queue latencies in nanoseconds.</p>
+     */
+    private final AtomicLong totalWait = new AtomicLong();
+
+    /**
+     * <p>Highest queue latency in nanoseconds.</p>
+     */
+    private final AtomicLong maxWait = new AtomicLong();
+
+    /**
+     * <p>Creates metrics for a lane.</p>
+     * @param name  name of the lane
+     */
+    private LaneMetrics (String name) {
+        this.name = name;
+    }
+
+    /**
+     * <p>Records the queue latency of a frame.</p>
+     * @param wait  queue latency in nanoseconds
+     */
+    void record (long wait) {
+        frames.incrementAndGet();
+        totalWait.addAndGet(wait);
+        maxWait.accumulateAndGet(wait, Math::max);
+    }
+
+    /**
+     * <p>Gets {@link LaneMetrics#name}.</p>
+     * @return  {@link LaneMetrics#name}
+     */
+    public String getName () {
+        return name;
+    }
+
+    /**
+     * <p>Gets {@link LaneMetrics#frames}.</p>
+     * @return  {@link LaneMetrics#frames}
+     */
+    public long getFrames () {
+        return frames.get();
+    }
+
+    /**
+     * <p>Gets {@link LaneMetrics#totalWait}.</p>
+     * @return  {@link LaneMetrics#totalWait} in nanoseconds
+     */
+    public long getTotalWaitNanos () {
+        return totalWait.get();
+    }
+
+    /**
+     * <p>Average queue latency.</p>
+     * @return  average queue latency in microseconds
+     */
+    public double getAverageWaitMicros () {
+        long count = frames.get();
+        return count == 0 ? 0 : totalWait.get() / 1000.0 / count;
+    }
+
+    /**
+     * <p>Highest queue latency.</p>
+     * @return  highest queue latency in microseconds
+     */
+    public double getMaxWaitMicros () {
+        return maxWait.get() / 1000.0;
+    }
+}
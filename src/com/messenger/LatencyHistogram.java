@@ -0,0 +1,138 @@
+package com.messenger;
+
+/**
+ * <p>Histogram of latencies with logarithmic buckets, in the
+ * style of an HDR histogram. Every power of two is split into
+ * 16 linear sub-buckets, so a recorded value is reported with
+ * an error of at most 1/16 (6.25%), using a fixed array
+ * of counters from 0 to {@link Long#MAX_VALUE}.</p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * <p>Values below 2^{@link LatencyHistogram#SUB_BITS}
+     * get a bucket of their own.</p>
+     */
+    private static final int SUB_BITS = 5;
+
+    /**
+     * <p>Number of sub-buckets per power of two.</p>
+     */
+    private static final int SUB_BUCKETS = 1 << (SUB_BITS - 1);
+
+    /**
+     * <p>Number of exact buckets for small values.</p>
+     */
+    private static final int LINEAR = 1 << SUB_BITS;
+
+    /**
+     * <p>Count per bucket.</p>
+     */
+    private final long[] counts = new long[LINEAR + (63 - SUB_BITS) * SUB_BUCKETS];
+
+    /**
+     * <p>Number of recorded values.</p>
+     */
+    private long total;
+
+    /**
+     * <p>Sum of recorded values.</p>
+     */
+    private long sum;
+
+    /**
+     * <p>Highest recorded value.</p>
+     */
+    private long max;
+
+    /**
+     * <p>Records a value. Negative values are recorded as 0.</p>
+     * @param value value to record
+     */
+    public synchronized void record (long value) {
+        value = Math.max(value, 0);
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * <p>Value at the given percentile.</p>
+     * @param percentile    percentile between 0 and 100
+     * @return  highest value of the bucket that contains the
+     *          percentile, at most {@link LatencyHistogram#max}
+     */
+    public synchronized long percentile (double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * <p>Bucket of a value.</p>
+     * @param value positive value
+     * @return  index of bucket
+     */
+    static int index (long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+
+        // position of the highest bit, the 4 bits below it select the sub-bucket
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS + 1)) - SUB_BUCKETS;
+        return LINEAR + (magnitude - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * <p>Highest value, that falls into a bucket.</p>
+     * @param index index of bucket
+     * @return  highest value of bucket
+     */
+    static long highest (int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+
+        int magnitude = (index - LINEAR) / SUB_BUCKETS + SUB_BITS;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = magnitude - SUB_BITS + 1;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * <p>Gets {@link LatencyHistogram#total}.</p>
+     * @return  {@link LatencyHistogram#total}
+     */
+    public synchronized long getCount () {
+        return total;
+    }
+
+    /**
+     * <p>Gets {@link LatencyHistogram#sum}.</p>
+     * @return  {@link LatencyHistogram#sum}
+     */
+    public synchronized long getSum () {
+        return sum;
+    }
+
+    /**
+     * <p>Gets {@link LatencyHistogram#max}.</p>
+     * @return  {@link LatencyHistogram#max}
+     */
+    public synchronized long getMax () {
+        return max;
+    }
+}
@@ -0,0 +1,137 @@
+package com.messenger;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Receiving side of latency tracing. Frames of a traced node
+ * carry the time they were created at their origin and the number
+ * of times they were forwarded. The tracker records the difference
+ * to the time of receipt in one {@link LatencyHistogram} per origin
+ * peer and command. The nodes need synchronized clocks (NTP), a
+ * skewed clock shows up as latency or is recorded as 0.</p>
+ */
+public class LatencyTracker {
+
+    /**
+     * <p>Histograms by origin peer and command.</p>
+     */
+    private final HashMap<Peer, TreeMap<String, Series>> peers = new HashMap<>();
+
+    /**
+     * <p>Current time in microseconds since the epoch, the
+     * unit of {@link Message#getTimestamp()}.</p>
+     * @return  current time in microseconds
+     */
+    public static long now () {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+    }
+
+    /**
+     * <p>Records the latency of a received message, that
+     * has a timestamp.</p>
+     * @param message   received message
+     */
+    public void record (Message message) {
+        Series series;
+        synchronized (this) {
+            series = peers.computeIfAbsent(message.getPeer(), peer -> new TreeMap<>())
+                    .computeIfAbsent(message.getCommand(), command -> new Series());
+        }
+
+        series.histogram.record(now() - message.getTimestamp());
+        synchronized (series) {
+            // links travelled, one more than forwards
+            series.maxHops = Math.max(series.maxHops, message.getHops() + 1);
+        }
+    }
+
+    /**
+     * <p>Forgets the histograms of a peer, that left the network.</p>
+     * @param peer  origin peer
+     */
+    public synchronized void forget (Peer peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     * <p>Formats the percentiles of all histograms, one line
+     * per origin peer and command.</p>
+     * @param name  only lines of peers with this name, all peers when null
+     * @return  formatted lines
+     */
+    public synchronized List<String> report (String name) {
+        ArrayList<String> lines = new ArrayList<>();
+        for (Map.Entry<Peer, TreeMap<String, Series>> entry : peers.entrySet()) {
+            if (name != null && !name.equals(entry.getKey().getName())) {
+                continue;
+            }
+
+            for (Map.Entry<String, Series> command : entry.getValue().entrySet()) {
+                LatencyHistogram histogram = command.getValue().histogram;
+                int maxHops;
+                synchronized (command.getValue()) {
+                    maxHops = command.getValue().maxHops;
+                }
+                lines.add(String.format("%s %s: %d samples, p50 %s, p99 %s, p999 %s, max %s, up to %d hops",
+                        entry.getKey(), command.getKey(), histogram.getCount(),
+                        format(histogram.percentile(50)), format(histogram.percentile(99)),
+                        format(histogram.percentile(99.9)), format(histogram.getMax()), maxHops));
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * <p>Appends all histograms as Prometheus summaries in
+     * seconds, labelled with origin peer and command.</p>
+     * @param out   output
+     * @param name  metric name
+     */
+    public synchronized void appendMetrics (StringBuilder out, String name) {
+        for (Map.Entry<Peer, TreeMap<String, Series>> entry : peers.entrySet()) {
+            String peer = MetricsServer.labels(entry.getKey());
+            for (Map.Entry<String, Series> command : entry.getValue().entrySet()) {
+                LatencyHistogram histogram = command.getValue().histogram;
+                String labels = peer.substring(0, peer.length() - 1) + ",command=\"" + command.getKey() + "\"";
+                for (double quantile : new double[]{0.5, 0.99, 0.999}) {
+                    out.append(name).append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                            .append(histogram.percentile(quantile * 100) / 1e6).append('\n');
+                }
+                out.append(name).append("_sum").append(labels).append("} ").append(histogram.getSum() / 1e6).append('\n');
+                out.append(name).append("_count").append(labels).append("} ").append(histogram.getCount()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * <p>Formats microseconds as milliseconds.</p>
+     * @param micros    microseconds
+     * @return  formatted milliseconds
+     */
+    private static String format (long micros) {
+        return String.format("%.3f ms", micros / 1000.0);
+    }
+
+    /**
+     * <p>Latencies of one command of one origin peer.</p>
+     */
+    private static class Series {
+
+        /**
+         * <p>Latencies in microseconds.</p>
+         */
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        /**
+         * <p>Highest number of links travelled.</p>
+         */
+        private int maxHops;
+    }
+}
@@ -0,0 +1,422 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Transport between nodes of the same JVM. Nodes register
+ * their port, connections to a local address with a registered
+ * port get a {@link Link}, that hands {@link Message} objects to
+ * the receiving node through a {@link SpscQueue}, without encoding,
+ * syscalls and parsing. All other peers are connected through
+ * the fallback transport.</p>
+ * <p>Links are written by the writers of the connections, so
+ * the thread of an endpoint, that delivers the messages of one
+ * node, never waits for the full queue of another node.</p>
+ */
+public final class LocalTransport implements Transport {
+
+    /**
+     * <p>Registered nodes by port. Two nodes of one
+     * JVM can not listen on the same port.</p>
+     */
+    private static final ConcurrentHashMap<Integer, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Host addresses, that were checked to belong
+     * to this machine or not.</p>
+     */
+    private static final ConcurrentHashMap<String, Boolean> localHosts = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Capacity of the queue of a link.</p>
+     */
+    private static final int CAPACITY = Configuration.getInt("local.queue", 1024);
+
+    /**
+     * <p>Maximum number of messages taken from one link,
+     * before the other links of a node get their turn.</p>
+     */
+    private static final int BATCH = 256;
+
+    /**
+     * <p>Transport for peers, that are not registered.</p>
+     */
+    private final Transport fallback;
+
+    /**
+     * <p>Creates a transport, that falls back to the
+     * given transport for remote peers.</p>
+     * @param fallback  transport for remote peers
+     */
+    public LocalTransport (Transport fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * <p>Opens a link, when the peer is registered in
+     * this JVM, otherwise a channel of the fallback.</p>
+     * @param peer  peer to connect to
+     * @return  connected channel
+     * @throws IOException  when the peer can not be reached
+     */
+    @Override
+    public ByteChannel connect (Peer peer) throws IOException {
+        Endpoint endpoint = endpoints.get(peer.getPort());
+        if (endpoint != null && isLocal(peer.getHostName())) {
+            return endpoint.open();
+        }
+
+        return fallback.connect(peer);
+    }
+
+    /**
+     * <p>Registers a node and starts the thread, that
+     * receives its messages from links.</p>
+     * @param application   node
+     */
+    public static void register (Application application) {
+        Endpoint endpoint = new Endpoint(application);
+        endpoint.setDaemon(true);
+        endpoint.start();
+
+        Endpoint previous = endpoints.put(application.me.getPort(), endpoint);
+        if (previous != null) {
+            previous.terminate();
+        }
+    }
+
+    /**
+     * <p>Unregisters a node. Links to it are closed,
+     * so their connections fall back like on a lost
+     * socket.</p>
+     * @param application   node
+     */
+    public static void unregister (Application application) {
+        Endpoint endpoint = endpoints.get(application.me.getPort());
+        if (endpoint != null && endpoint.application == application) {
+            endpoints.remove(application.me.getPort(), endpoint);
+            endpoint.terminate();
+        }
+    }
+
+    /**
+     * <p>Checks if a host address belongs to this machine.</p>
+     * @param host  ip address
+     * @return  {@code true} if the address is local
+     */
+    private static boolean isLocal (String host) {
+        return localHosts.computeIfAbsent(host, key -> {
+            try {
+                InetAddress address = InetAddress.getByName(key);
+                return address.isLoopbackAddress() || address.isAnyLocalAddress() ||
+                        NetworkInterface.getByInetAddress(address) != null;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * <p>Receiving side of a registered node. Takes the
+     * messages of all links to the node and delivers them
+     * in batches, so a burst is acknowledged once. Parks,
+     * while all links are empty.</p>
+     */
+    private static class Endpoint extends Thread {
+
+        /**
+         * <p>Status of thread.</p>
+         */
+        private volatile boolean _terminate = false;
+
+        /**
+         * <p>Thread is parked or about to park.</p>
+         */
+        private volatile boolean parked = false;
+
+        /**
+         * <p>Receiving node.</p>
+         */
+        private final Application application;
+
+        /**
+         * <p>Open links to the node and closed
+         * links, that are not drained yet.</p>
+         */
+        private final ConcurrentLinkedQueue<Link> links = new ConcurrentLinkedQueue<>();
+
+        /**
+         * <p>Creates the receiving side of a node.</p>
+         * @param application   node
+         */
+        Endpoint (Application application) {
+            super("local-" + application.me.getPort());
+            this.application = application;
+        }
+
+        /**
+         * <p>Opens a new link to the node.</p>
+         * @return  link
+         * @throws IOException  when the node is unregistered
+         */
+        Link open () throws IOException {
+            if (_terminate) {
+                throw new ClosedChannelException();
+            }
+
+            Link link = new Link(this);
+            links.add(link);
+            return link;
+        }
+
+        /**
+         * <p>Delivers messages of all links, until
+         * the node is unregistered.</p>
+         */
+        @Override
+        public void run () {
+            ArrayList<Message> batch = new ArrayList<>();
+            ArrayList<Peer> closedBy = new ArrayList<>();
+            while (!_terminate) {
+                for (Iterator<Link> it = links.iterator(); it.hasNext();) {
+                    Link link = it.next();
+                    // read before draining, nothing is added after close
+                    boolean closed = !link.isOpen();
+                    Message message;
+                    int count = 0;
+                    while (count++ < BATCH && (message = link.queue.poll()) != null) {
+                        // membership frames over the limit are dropped, data frames always pass,
+                        // the full queue of the link slows their sender down instead of a delay,
+                        // that would stall all links of this node
+                        if (link.limit.acquire(message)) {
+                            batch.add(message);
+                            if (message.getCommand().equals("POKE")) {
+                                link.sender = message.getPeer();
+                            }
+                            link.frames++;
+                        }
+                    }
+
+                    if (closed && link.queue.isEmpty()) {
+                        it.remove();
+                        link.limit.close();
+                        // a temporary link carries a single frame
+                        if (link.sender != null && link.frames > 1) {
+                            closedBy.add(link.sender);
+                        }
+                    }
+                }
+
+                if (!batch.isEmpty() || !closedBy.isEmpty()) {
+                    try {
+                        application.deliver(batch);
+                        // like the end of a stream, after the last message of the link
+                        for (Peer peer : closedBy) {
+                            application.linkClosed(peer);
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("> [" + new Date().toString() + "] Error: Local message not handled: " + e);
+                    }
+                    batch.clear();
+                    closedBy.clear();
+                    continue;
+                }
+
+                parked = true;
+                if (isIdle()) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+
+        /**
+         * <p>Checks if all links are empty.</p>
+         * @return  {@code true} if there is nothing to deliver
+         */
+        private boolean isIdle () {
+            for (Link link : links) {
+                if (!link.queue.isEmpty()) {
+                    return false;
+                }
+            }
+
+            return !_terminate;
+        }
+
+        /**
+         * <p>Wakes the thread up, when it is parked.</p>
+         */
+        void wakeUp () {
+            // the producer's tail must be visible before parked is read
+            VarHandle.fullFence();
+            if (parked) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        /**
+         * <p>Terminate thread, by ending the loop in
+         * {@link Endpoint#run()} and waking it up.</p>
+         */
+        void terminate () {
+            _terminate = true;
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * <p>Simplex link to a node of the same JVM. Written
+     * by the one writer of a {@link Connection} at a time.</p>
+     */
+    static class Link implements ByteChannel {
+
+        /**
+         * <p>Receiving node.</p>
+         */
+        private final Endpoint endpoint;
+
+        /**
+         * <p>Messages on their way.</p>
+         */
+        private final SpscQueue<Message> queue = new SpscQueue<>(CAPACITY);
+
+        /**
+         * <p>Status of the link.</p>
+         */
+        private volatile boolean open = true;
+
+        /**
+         * <p>Token buckets of the link at the
+         * receiving node.</p>
+         */
+        private final RateLimiter.Limit limit;
+
+        /**
+         * <p>Peer, that poked the receiving node through this
+         * link. Only used by the thread of the endpoint.</p>
+         */
+        private Peer sender;
+
+        /**
+         * <p>Number of delivered messages. Only used
+         * by the thread of the endpoint.</p>
+         */
+        private long frames;
+
+        /**
+         * <p>Creates a link to a node.</p>
+         * @param endpoint  receiving node
+         */
+        Link (Endpoint endpoint) {
+            this.endpoint = endpoint;
+            this.limit = endpoint.application.getRateLimiter().open();
+        }
+
+        /**
+         * <p>Hands a copy of a message to the receiving node,
+         * so the receiver can not change frames that are shared
+         * with other connections. Blocks while the queue is full,
+         * like a socket with a full send buffer. Only the writer
+         * of a {@link Connection} blocks here, where the
+         * {@link SendWatchdog} sees it. The thread of an endpoint
+         * delivers to all co-located nodes and never waits for a
+         * slow one, a full queue fails like a reset socket.</p>
+         * @param message   message to send
+         * @throws IOException  when the link or the node is closed,
+         *                      or the queue is full on an endpoint thread
+         */
+        void send (Message message) throws IOException {
+            Message copy = new Message(message.getCommand(), message.getPeer(), message.hasText() ? message.getText() : null);
+            copy.setSequence(message.getEpoch(), message.getSequence());
+            copy.setTimestamp(message.getTimestamp(), message.getHops());
+            copy.setIncarnation(message.getIncarnation());
+
+            while (!queue.offer(copy)) {
+                if (!open || endpoint._terminate) {
+                    throw new ClosedChannelException();
+                }
+                if (Thread.currentThread() instanceof Endpoint) {
+                    throw new IOException("Local queue of " + endpoint.application.me + " is full");
+                }
+                endpoint.wakeUp();
+                LockSupport.parkNanos(100000);
+            }
+
+            if (endpoint._terminate) {
+                throw new ClosedChannelException();
+            }
+            endpoint.wakeUp();
+        }
+
+        /**
+         * <p>Links are simplex, there is nothing to read.</p>
+         * @param dst   buffer
+         * @return  always -1
+         */
+        @Override
+        public int read (ByteBuffer dst) {
+            return -1;
+        }
+
+        /**
+         * <p>Parses encoded lines and sends them as messages.
+         * {@link Connection} hands over messages directly,
+         * this is only used for bytes of other writers.</p>
+         * @param src   complete lines
+         * @return  number of written bytes
+         * @throws IOException  when the link or the node is closed
+         */
+        @Override
+        public int write (ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] == '\n') {
+                    Message message = new Message(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                    if (message.getCommand() != null) {
+                        send(message);
+                    }
+                    start = i + 1;
+                }
+            }
+
+            return length;
+        }
+
+        /**
+         * <p>Checks if the link is open.</p>
+         * @return  {@link Link#open}
+         */
+        @Override
+        public boolean isOpen () {
+            return open;
+        }
+
+        /**
+         * <p>Closes the link. Queued messages are
+         * still delivered.</p>
+         */
+        @Override
+        public void close () {
+            open = false;
+            endpoint.wakeUp();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.messenger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>Hash tree of two levels over a peer list, so two nodes can
+ * find the differences of their peer lists by comparing hashes
+ * instead of the lists. Peers are spread over
+ * {@link MembershipDigest#BUCKETS} buckets by their {@link NodeId}.
+ * The hash of a bucket is the sum of the ids of its peers, so it
+ * does not depend on the order of the list, and the root hash
+ * combines all bucket hashes.</p>
+ * <p>Equal roots mean equal lists. Otherwise only the peers of
+ * buckets with different hashes have to be exchanged, which are
+ * few, when the lists differ in few peers.</p>
+ */
+public final class MembershipDigest {
+
+    /**
+     * <p>Number of buckets.</p>
+     */
+    public static final int BUCKETS = 64;
+
+    /**
+     * <p>Hashes of the buckets.</p>
+     */
+    private final long[] buckets = new long[BUCKETS];
+
+    /**
+     * <p>Creates an empty digest.</p>
+     */
+    private MembershipDigest () {
+
+    }
+
+    /**
+     * <p>Creates the digest of a peer list.</p>
+     * @param peers peer list, without duplicates
+     */
+    public MembershipDigest (Collection<Peer> peers) {
+        for (Peer peer : peers) {
+            long id = NodeId.of(peer).prefix();
+            buckets[bucket(id)] += id;
+        }
+    }
+
+    /**
+     * <p>Gets the bucket of a peer.</p>
+     * @param peer  peer
+     * @return  bucket between 0 and {@link MembershipDigest#BUCKETS} - 1
+     */
+    public static int bucket (Peer peer) {
+        return bucket(NodeId.of(peer).prefix());
+    }
+
+    /**
+     * <p>Gets the bucket of an id prefix.</p>
+     * @param id    first 64 bits of the id
+     * @return  bucket between 0 and {@link MembershipDigest#BUCKETS} - 1
+     */
+    private static int bucket (long id) {
+        return (int) (id >>> (Long.SIZE - Integer.numberOfTrailingZeros(BUCKETS)));
+    }
+
+    /**
+     * <p>Gets the root hash of the digest.</p>
+     * @return  root hash
+     */
+    public long getRoot () {
+        long root = BUCKETS;
+        for (long hash : buckets) {
+            root = (root ^ hash) * 0x9e3779b97f4a7c15L;
+            root ^= root >>> 32;
+        }
+
+        return root;
+    }
+
+    /**
+     * <p>Gets the buckets, that differ from the buckets
+     * of another digest.</p>
+     * @param other other digest
+     * @return  indices of different buckets
+     */
+    public List<Integer> diff (MembershipDigest other) {
+        ArrayList<Integer> diff = new ArrayList<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (buckets[i] != other.buckets[i]) {
+                diff.add(i);
+            }
+        }
+
+        return diff;
+    }
+
+    /**
+     * <p>Encodes all bucket hashes as hex numbers,
+     * separated by spaces.</p>
+     * @return  encoded buckets
+     */
+    public String encode () {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i > 0) {
+                stringBuilder.append(' ');
+            }
+            stringBuilder.append(Long.toHexString(buckets[i]));
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * <p>Parses bucket hashes encoded by
+     * {@link MembershipDigest#encode()}.</p>
+     * @param parts     parts of a message text
+     * @param offset    index of the first bucket hash
+     * @return  digest
+     * @throws NumberFormatException    when hashes are missing or malformed
+     */
+    public static MembershipDigest parse (String[] parts, int offset) {
+        if (parts.length - offset != BUCKETS) {
+            throw new NumberFormatException("Expected " + BUCKETS + " bucket hashes.");
+        }
+
+        MembershipDigest digest = new MembershipDigest();
+        for (int i = 0; i < BUCKETS; i++) {
+            digest.buckets[i] = Long.parseUnsignedLong(parts[offset + i], 16);
+        }
+
+        return digest;
+    }
+}
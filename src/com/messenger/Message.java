@@ -27,6 +27,38 @@ public class Message {
      */
     private String text;
 
+    /**
+     * <p>Random id of the sending connection. Together
+     * with {@link Message#sequence} it identifies a MESSAGE
+     * for acknowledgements. 0, when not set.</p>
+     */
+    private long epoch;
+
+    /**
+     * <p>Sequence number of a MESSAGE within its
+     * {@link Message#epoch}. 0, when not set.</p>
+     */
+    private long sequence;
+
+    /**
+     * <p>Time the message was created at its origin, in
+     * microseconds since the epoch. 0, when not traced.</p>
+     */
+    private long timestamp;
+
+    /**
+     * <p>Number of times a traced message was
+     * forwarded by other peers.</p>
+     */
+    private int hops;
+
+    /**
+     * <p>Start time of the sending node in milliseconds, set
+     * on JOIN, POKE and DISCONNECT. A restarted node has a newer
+     * incarnation, than the one it departed with. 0, when not set.</p>
+     */
+    private long incarnation;
+
     /**
      * <p>Creates a message with command, ip, port, name
      * and text.</p>
@@ -92,36 +124,113 @@ public class Message {
      * @param rawInput  raw input of {@link Message#toString()}
      */
     public Message (String rawInput) {
+        this(rawInput, (PeerCache) null);
+    }
+
+    /**
+     * <p>Creates a message out of a raw message, that
+     * was created by {@link Message#toString()} before.
+     * The peer is resolved by the cache of the receiving
+     * node. Fields are found by their separators, only
+     * command, name, ip address and text are copied.</p>
+     * @param rawInput  raw input of {@link Message#toString()}
+     * @param cache     cache of known peers, can be null
+     */
+    public Message (String rawInput, PeerCache cache) {
         try {
-            // splitting string at whitespace
-            String[] input = rawInput.split(" ");
-
-            if (input.length > 3) {
-                this.command = input[0];
-                this.peer = new Peer(input[2], Integer.parseInt(input[3]), input[1]);
-
-                if (input.length > 5) {
-                    // concat message
-                    StringBuilder stringBuilder = new StringBuilder();
-                    stringBuilder.append(input[4]);
-                    for (int i = 5; i < input.length; i++) {
-                        stringBuilder.append(" ");
-                        stringBuilder.append(input[i]);
-                    }
+            // command, name, ip address and port are separated by single whitespaces
+            int commandEnd = rawInput.indexOf(' ');
+            int nameEnd = commandEnd < 0 ? -1 : rawInput.indexOf(' ', commandEnd + 1);
+            int ipEnd = nameEnd < 0 ? -1 : rawInput.indexOf(' ', nameEnd + 1);
+            int portEnd = ipEnd < 0 ? -1 : rawInput.indexOf(' ', ipEnd + 1);
+            if (portEnd < 0) {
+                portEnd = rawInput.length();
+            }
+
+            if (ipEnd >= 0 && portEnd > ipEnd + 1) {
+                int port = Integer.parseInt(rawInput, ipEnd + 1, portEnd, 10);
+                this.command = parseCommand(rawInput, commandEnd);
 
-                    this.text = stringBuilder.toString();
-                } else if (input.length > 4) {
-                    this.text = input[4];
+                String name = rawInput.substring(commandEnd + 1, nameEnd);
+                String ip = rawInput.substring(nameEnd + 1, ipEnd);
+                this.peer = cache != null ? cache.intern(ip, port, name) : new Peer(ip, port, name);
+
+                // the rest is text, trailing whitespaces are dropped
+                int textEnd = rawInput.length();
+                while (textEnd > portEnd && rawInput.charAt(textEnd - 1) == ' ') {
+                    textEnd--;
+                }
+                if (textEnd > portEnd + 1) {
+                    this.text = rawInput.substring(portEnd + 1, textEnd);
                 }
             } else {
                 System.err.println("Error: Invalid number of arguments in " +
                         "input string.");
             }
         } catch (NumberFormatException e) {
+            this.command = null;
             System.err.println("Error: Port must be a valid number.");
         }
     }
 
+    /**
+     * <p>Parses the command token. Optional attributes
+     * are appended to the command, separated by semicolons,
+     * eg. "MESSAGE;e=42;s=7;t=1700000000000000;h=1" or
+     * "POKE;i=1700000000000". Unknown
+     * attributes are ignored. Values are parsed in place.</p>
+     * @param input raw input
+     * @param end   end of the command token
+     * @return  command without attributes
+     */
+    private String parseCommand (String input, int end) {
+        int separator = input.indexOf(';');
+        if (separator < 0 || separator > end) {
+            return input.substring(0, end);
+        }
+
+        int start = separator + 1;
+        while (start < end) {
+            int next = input.indexOf(';', start);
+            if (next < 0 || next > end) {
+                next = end;
+            }
+
+            if (next - start > 2 && input.charAt(start + 1) == '=') {
+                long value = Long.parseLong(input, start + 2, next, 10);
+                switch (input.charAt(start)) {
+                    case 'e': {
+                        epoch = value;
+                        break;
+                    }
+
+                    case 's': {
+                        sequence = value;
+                        break;
+                    }
+
+                    case 't': {
+                        timestamp = value;
+                        break;
+                    }
+
+                    case 'h': {
+                        hops = (int) value;
+                        break;
+                    }
+
+                    case 'i': {
+                        incarnation = value;
+                        break;
+                    }
+                }
+            }
+            start = next + 1;
+        }
+
+        return input.substring(0, separator);
+    }
+
     /**
      * <p>Concat all attributes to one single string.
      * Defined convention, to parse string back with
@@ -130,8 +239,18 @@ public class Message {
      */
     @Override
     public String toString () {
-        // concat command and peer
-        String message = command.toUpperCase() + " " +  peer.toString();
+        // concat command, attributes and peer
+        String message = command.toUpperCase();
+        if (hasSequence()) {
+            message += ";e=" + epoch + ";s=" + sequence;
+        }
+        if (hasTimestamp()) {
+            message += ";t=" + timestamp + (hops > 0 ? ";h=" + hops : "");
+        }
+        if (hasIncarnation()) {
+            message += ";i=" + incarnation;
+        }
+        message += " " +  peer.toString();
         if (hasText()) {
             // add text, when available
             message += " " + text;
@@ -149,6 +268,101 @@ public class Message {
         return text != null;
     }
 
+    /**
+     * <p>Checking if {@link Message} has a
+     * sequence number for acknowledgements.</p>
+     * @return  is {@link Message#sequence} set
+     */
+    public boolean hasSequence () {
+        return sequence > 0;
+    }
+
+    /**
+     * <p>Sets {@link Message#epoch} and {@link Message#sequence}.</p>
+     * @param epoch     id of sending connection
+     * @param sequence  sequence number
+     */
+    public void setSequence (long epoch, long sequence) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+    }
+
+    /**
+     * <p>Checking if {@link Message} has a
+     * timestamp for latency tracing.</p>
+     * @return  is {@link Message#timestamp} set
+     */
+    public boolean hasTimestamp () {
+        return timestamp > 0;
+    }
+
+    /**
+     * <p>Sets {@link Message#timestamp} and {@link Message#hops}.</p>
+     * @param timestamp time of creation in microseconds since the epoch
+     * @param hops      number of forwards
+     */
+    public void setTimestamp (long timestamp, int hops) {
+        this.timestamp = timestamp;
+        this.hops = hops;
+    }
+
+    /**
+     * <p>Gets {@link Message#timestamp}.</p>
+     * @return  {@link Message#timestamp}
+     */
+    public long getTimestamp () {
+        return timestamp;
+    }
+
+    /**
+     * <p>Gets {@link Message#hops}.</p>
+     * @return  {@link Message#hops}
+     */
+    public int getHops () {
+        return hops;
+    }
+
+    /**
+     * <p>Checking if {@link Message} has the
+     * incarnation of its peer.</p>
+     * @return  is {@link Message#incarnation} set
+     */
+    public boolean hasIncarnation () {
+        return incarnation > 0;
+    }
+
+    /**
+     * <p>Sets {@link Message#incarnation}.</p>
+     * @param incarnation   start time of the node of the peer
+     */
+    public void setIncarnation (long incarnation) {
+        this.incarnation = incarnation;
+    }
+
+    /**
+     * <p>Gets {@link Message#incarnation}.</p>
+     * @return  {@link Message#incarnation}
+     */
+    public long getIncarnation () {
+        return incarnation;
+    }
+
+    /**
+     * <p>Gets {@link Message#epoch}.</p>
+     * @return  {@link Message#epoch}
+     */
+    public long getEpoch () {
+        return epoch;
+    }
+
+    /**
+     * <p>Gets {@link Message#sequence}.</p>
+     * @return  {@link Message#sequence}
+     */
+    public long getSequence () {
+        return sequence;
+    }
+
     /**
      * <p>Gets {@link Message#command}.</p>
      * @return  {@link Message#command}
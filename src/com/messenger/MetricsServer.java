@@ -0,0 +1,328 @@
+package com.messenger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * <p>Embedded HTTP server for operators. Serves the runtime
+ * counters in the Prometheus text format on /metrics and the
+ * peer list with the liveness state of every connection on
+ * /peers. Requests are handled by a small executor of their
+ * own, so scraping never takes threads from message handling.
+ * Started by {@link Application}, when {@code http.port}
+ * is set.</p>
+ */
+public class MetricsServer {
+
+    /**
+     * <p>Content type of the Prometheus text format.</p>
+     */
+    private static final String METRICS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * <p>Content type of the peer table.</p>
+     */
+    private static final String TABLE_TYPE = "text/plain; charset=utf-8";
+
+    /**
+     * <p>Application to report on.</p>
+     */
+    private final Application application;
+
+    /**
+     * <p>HTTP server.</p>
+     */
+    private final HttpServer server;
+
+    /**
+     * <p>Threads handling requests.</p>
+     */
+    private final ExecutorService executor;
+
+    /**
+     * <p>Creates a server listening on the given address.
+     * Requests are only handled after {@link MetricsServer#start()}.</p>
+     * @param application   application to report on
+     * @param host          address to bind, usually loopback
+     * @param port          port to listen on
+     * @param threads       number of request threads
+     * @throws IOException  when the port can not be bound
+     */
+    public MetricsServer (Application application, String host, int port, int threads) throws IOException {
+        this.application = application;
+
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.setExecutor(executor);
+        server.createContext("/metrics", exchange -> respond(exchange, "/metrics", METRICS_TYPE, this::metrics));
+        server.createContext("/peers", exchange -> respond(exchange, "/peers", TABLE_TYPE, this::peers));
+    }
+
+    /**
+     * <p>Starts handling requests.</p>
+     */
+    public void start () {
+        server.start();
+        System.out.println("> [" + new Date().toString() + "] Metrics available on http://" +
+                server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/metrics.");
+    }
+
+    /**
+     * <p>Stops the server without waiting for running requests.</p>
+     */
+    public void stop () {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * <p>Sends a text response. Only GET and HEAD of the exact
+     * path are answered, contexts also match longer paths. The
+     * body is only computed for allowed requests.</p>
+     * @param exchange  request
+     * @param path      path of the context
+     * @param type      content type
+     * @param body      computes the response text
+     * @throws IOException  when the response can not be sent
+     */
+    private static void respond (HttpExchange exchange, String path, String type, Supplier<String> body) throws IOException {
+        try {
+            if (!exchange.getRequestURI().getPath().equals(path)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", type);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * <p>Formats all counters in the Prometheus text format.</p>
+     * @return  metrics
+     */
+    String metrics () {
+        StringBuilder out = new StringBuilder();
+
+        int open = 0;
+        int suspended = 0;
+        int inactive = 0;
+        int degraded = 0;
+        long pending = 0;
+        long queued = 0;
+        for (Connection c : application.getConnections()) {
+            if (c.isSuspended()) {
+                suspended++;
+            } else {
+                open++;
+            }
+            if (c.isInactive()) {
+                inactive++;
+            }
+            if (c.isDegraded()) {
+                degraded++;
+            }
+            pending += c.getPending();
+            queued += c.getQueued();
+        }
+
+        gauge(out, "messenger_peers", "Peers in peer list", suspended + open);
+        gauge(out, "messenger_connections_open", "Connections with an open socket", open);
+        gauge(out, "messenger_connections_suspended", "Idle connections without socket", suspended);
+        gauge(out, "messenger_connections_inactive", "Connections without poke for 60 seconds", inactive);
+        gauge(out, "messenger_connections_degraded", "Connections, whose write is blocked right now", degraded);
+        gauge(out, "messenger_unacknowledged_messages", "Sent or queued MESSAGE frames without ACK", pending);
+        gauge(out, "messenger_queued_frames", "Frames waiting for the writer of their connection", queued);
+
+        ConnectionCache cache = application.getConnectionCache();
+        if (cache != null) {
+            gauge(out, "messenger_connections_max", "Limit of open connections", cache.getCapacity());
+            counter(out, "messenger_connection_evictions_total", "Connections suspended by the limit", cache.getEvictions());
+        }
+
+        BufferPool pool = BufferPool.shared();
+        counter(out, "messenger_buffer_pool_acquired_total", "Borrowed I/O buffers", pool.getAcquired());
+        gauge(out, "messenger_buffer_pool_hit_ratio", "Share of borrowed buffers taken from the pool", pool.getHitRate());
+        gauge(out, "messenger_buffer_pool_in_use", "Borrowed I/O buffers right now", pool.getInUse());
+        gauge(out, "messenger_buffer_pool_peak", "Highest number of borrowed I/O buffers", pool.getPeak());
+        gauge(out, "messenger_buffer_pool_free", "Free I/O buffers in the pool", pool.getRetained());
+
+        if (TlsContext.isEnabled()) {
+            counter(out, "messenger_tls_handshakes_total", "Completed TLS handshakes", TlsContext.getHandshakes());
+            counter(out, "messenger_tls_resumed_total", "TLS handshakes, that resumed a cached session", TlsContext.getResumed());
+        }
+
+        out.append("# HELP messenger_lane_wait_seconds Time frames waited for the writer\n");
+        out.append("# TYPE messenger_lane_wait_seconds summary\n");
+        for (LaneMetrics lane : new LaneMetrics[]{LaneMetrics.CONTROL, LaneMetrics.DATA}) {
+            String labels = "{lane=\"" + lane.getName() + "\"}";
+            out.append("messenger_lane_wait_seconds_sum").append(labels).append(' ').append(lane.getTotalWaitNanos() / 1e9).append('\n');
+            out.append("messenger_lane_wait_seconds_count").append(labels).append(' ').append(lane.getFrames()).append('\n');
+        }
+        out.append("# HELP messenger_lane_wait_seconds_max Longest time a frame waited for the writer\n");
+        out.append("# TYPE messenger_lane_wait_seconds_max gauge\n");
+        for (LaneMetrics lane : new LaneMetrics[]{LaneMetrics.CONTROL, LaneMetrics.DATA}) {
+            out.append("messenger_lane_wait_seconds_max{lane=\"").append(lane.getName()).append("\"} ")
+                    .append(lane.getMaxWaitMicros() / 1e6).append('\n');
+        }
+
+        RateLimiter limiter = application.getRateLimiter();
+        out.append("# HELP messenger_frames_throttled_total Inbound frames dropped by rate limits\n");
+        out.append("# TYPE messenger_frames_throttled_total counter\n");
+        for (Map.Entry<String, Long> entry : limiter.getDropped().entrySet()) {
+            out.append("messenger_frames_throttled_total{command=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+        }
+
+        counter(out, "messenger_frames_delayed_total", "Inbound data frames read late by rate limits", limiter.getDelayed());
+
+        Map<Peer, Long> throttled = limiter.getThrottled();
+        gauge(out, "messenger_peers_throttled", "Peers with frames dropped or delayed in the last 10 seconds", throttled.size());
+
+        counter(out, "messenger_connections_degraded_total", "Connections with a write blocked longer than send.stall",
+                SendWatchdog.getDegraded());
+        counter(out, "messenger_connections_stalled_total", "Connections closed at the send deadline", SendWatchdog.getAborted());
+
+        out.append("# HELP messenger_peer_up Connection is active, 0 when the peer did not poke for 60 seconds\n");
+        out.append("# TYPE messenger_peer_up gauge\n");
+        StringBuilder lastPoke = new StringBuilder();
+        StringBuilder throttling = new StringBuilder();
+        for (Connection c : application.getConnections()) {
+            String labels = labels(c.getPeer());
+            out.append("messenger_peer_up").append(labels).append(' ').append(c.isInactive() ? 0 : 1).append('\n');
+            lastPoke.append("messenger_peer_last_poke_timestamp_seconds").append(labels).append(' ').append(c.getLastPoke()).append('\n');
+            throttling.append("messenger_peer_throttled").append(labels).append(' ').append(throttled.containsKey(c.getPeer()) ? 1 : 0).append('\n');
+        }
+        out.append("# HELP messenger_peer_last_poke_timestamp_seconds Time of the last poke of the peer\n");
+        out.append("# TYPE messenger_peer_last_poke_timestamp_seconds gauge\n");
+        out.append(lastPoke);
+        out.append("# HELP messenger_peer_throttled Frames of the peer were dropped in the last 10 seconds\n");
+        out.append("# TYPE messenger_peer_throttled gauge\n");
+        out.append(throttling);
+
+        LatencyTracker latency = application.getLatencyTracker();
+        if (latency != null) {
+            out.append("# HELP messenger_latency_seconds Time from the origin of a frame until it was received\n");
+            out.append("# TYPE messenger_latency_seconds summary\n");
+            latency.appendMetrics(out, "messenger_latency_seconds");
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * <p>Formats the peer list as a table, one line per
+     * connection with its liveness state.</p>
+     * @return  peer table
+     */
+    String peers () {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-20s %-40s %6s %-9s %10s %8s %7s %9s%n",
+                "NAME", "IP", "PORT", "STATE", "LAST_POKE", "PENDING", "QUEUED", "THROTTLED"));
+
+        Map<Peer, Long> throttled = application.getRateLimiter().getThrottled();
+        for (Connection c : application.getConnections()) {
+            Peer peer = c.getPeer();
+            String state = c.isInactive() ? "inactive" : c.isDegraded() ? "degraded" : c.isSuspended() ? "idle" : "active";
+            out.append(String.format("%-20s %-40s %6d %-9s %10d %8d %7d %9d%n",
+                    peer.hasName() ? peer.getName() : "-", peer.getHostName(), peer.getPort(),
+                    state, c.getLastPoke(), c.getPending(), c.getQueued(), throttled.getOrDefault(peer, 0L)));
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * <p>Appends a gauge with its help and type line.</p>
+     * @param out   output
+     * @param name  metric name
+     * @param help  description
+     * @param value value
+     */
+    private static void gauge (StringBuilder out, String name, String help, double value) {
+        metric(out, name, help, "gauge", value);
+    }
+
+    /**
+     * <p>Appends a counter with its help and type line.</p>
+     * @param out   output
+     * @param name  metric name, ending with _total
+     * @param help  description
+     * @param value value
+     */
+    private static void counter (StringBuilder out, String name, String help, double value) {
+        metric(out, name, help, "counter", value);
+    }
+
+    /**
+     * <p>Appends a metric without labels.</p>
+     * @param out   output
+     * @param name  metric name
+     * @param help  description
+     * @param type  metric type
+     * @param value value
+     */
+    private static void metric (StringBuilder out, String name, String help, String type, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ');
+        if (value == Math.rint(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * <p>Labels identifying a peer.</p>
+     * @param peer  peer
+     * @return  label set, like {name="Tim",address="127.0.0.1:6734"}
+     */
+    static String labels (Peer peer) {
+        return "{name=\"" + escape(peer.hasName() ? peer.getName() : "") + "\",address=\"" +
+                escape(peer.getHostName()) + ":" + peer.getPort() + "\"}";
+    }
+
+    /**
+     * <p>Escapes a label value.</p>
+     * @param value label value
+     * @return  escaped value
+     */
+    private static String escape (String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,251 @@
+package com.messenger;
+
+import com.messenger.console.Renderer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Membership scenarios on a {@link SimulatedNetwork}. Runs the
+ * real {@link Application} code of every node on virtual time and
+ * measures how long the peer lists take to converge, when nodes
+ * join, crash, leave and when the network is partitioned. Output
+ * of the nodes is discarded, unless messenger.simulation.verbose
+ * is set. The same seed always gives the same results.
+ *
+ * Example:
+ * "java -Dmessenger.overlay=true -cp messenger.jar com.messenger.NetworkSimulation 1000 10000"</p>
+ */
+public class NetworkSimulation {
+
+    /**
+     * <p>Interval of samples in virtual milliseconds.</p>
+     */
+    private static final long SAMPLE = 1000;
+
+    /**
+     * <p>Longest time a scenario may take to converge
+     * in virtual milliseconds.</p>
+     */
+    private static final long LIMIT = 600000;
+
+    /**
+     * <p>Nodes join within this time in virtual milliseconds.</p>
+     */
+    private static final long JOIN_WINDOW = 10000;
+
+    /**
+     * <p>Runs all scenarios for all given network sizes.
+     * Seed, latency and jitter (milliseconds) and loss
+     * (0 to 1) can be set with messenger.simulation.seed,
+     * .latency, .jitter and .loss.</p>
+     * @param args  expecting network sizes, optional
+     */
+    public static void main (String[] args) {
+        long seed = Configuration.getInt("simulation.seed", 42);
+        int latency = Configuration.getInt("simulation.latency", 1);
+        int jitter = Configuration.getInt("simulation.jitter", 2);
+        double loss = Double.parseDouble(Configuration.getString("simulation.loss", "0"));
+
+        int[] sizes = {100, 300};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        if (!Configuration.getBoolean("simulation.verbose", false)) {
+            PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+            System.setOut(discard);
+            System.setErr(discard);
+        }
+
+        out.println("seed=" + seed + ", latency=" + latency + "+" + jitter + "ms, loss=" + loss +
+                ", " + (Configuration.getBoolean("overlay", false) ? "overlay k=" + Configuration.getInt("overlay.k", 8) : "full mesh"));
+        out.println(String.format("%8s %-10s | %10s %10s %10s | %12s %10s %10s | %8s",
+                "nodes", "scenario", "converged", "conn avg", "conn max", "frames", "dropped", "stale", "wall"));
+
+        try {
+            for (int n : sizes) {
+                simulate(n, new SimulatedNetwork(seed, latency, jitter, loss), out);
+            }
+        } finally {
+            // lines of the nodes are still rendered to the discarded output
+            Renderer.flush();
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    /**
+     * <p>Runs the scenarios one after the other on one network.</p>
+     * @param n         number of nodes
+     * @param network   empty network
+     * @param out       output of results
+     */
+    private static void simulate (int n, SimulatedNetwork network, PrintStream out) {
+        ArrayList<Peer> peers = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            peers.add(new Peer("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff), 6734, "node" + i));
+        }
+
+        // join: nodes start at random times and connect to a random running node
+        long wall = System.currentTimeMillis();
+        long frames = network.getSent();
+        long dropped = network.getDropped();
+        ArrayList<Peer> running = new ArrayList<>(n);
+        Random random = new Random(network.getSeed());
+        for (int i = 0; i < n; i++) {
+            Peer peer = peers.get(i);
+            network.schedule(i == 0 ? 0 : 1 + random.nextInt((int) JOIN_WINDOW), () -> {
+                Application node = network.start(peer);
+                if (!running.isEmpty()) {
+                    node.connect(running.get(random.nextInt(running.size())));
+                }
+                running.add(peer);
+            });
+        }
+        long start = network.millis();
+        long converged = converge(network, start);
+        report(out, n, "join", network, converged, frames, dropped, wall);
+
+        // crash: 10% of the nodes stop without DISCONNECT, liveness has to remove them
+        ArrayList<Peer> order = new ArrayList<>(peers);
+        Collections.shuffle(order, random);
+        List<Peer> crashed = order.subList(0, n / 10);
+        wall = System.currentTimeMillis();
+        frames = network.getSent();
+        dropped = network.getDropped();
+        for (Peer peer : crashed) {
+            network.crash(peer);
+        }
+        start = network.millis();
+        converged = converge(network, start);
+        report(out, n, "crash", network, converged, frames, dropped, wall);
+
+        // leave: another 10% send DISCONNECT, which is forwarded to everybody
+        List<Peer> left = order.subList(n / 10, n / 5);
+        wall = System.currentTimeMillis();
+        frames = network.getSent();
+        dropped = network.getDropped();
+        for (Peer peer : left) {
+            network.leave(peer);
+        }
+        start = network.millis();
+        converged = converge(network, start);
+        report(out, n, "leave", network, converged, frames, dropped, wall);
+
+        // partition: half of the remaining nodes are cut off for two minutes, converged counts from healing
+        List<Peer> side = order.subList(n / 5, n / 5 + (n - n / 5) / 2);
+        wall = System.currentTimeMillis();
+        frames = network.getSent();
+        dropped = network.getDropped();
+        network.partition(side);
+        network.runFor(120000);
+        network.heal();
+        converged = converge(network, network.millis());
+        report(out, n, "partition", network, converged, frames, dropped, wall);
+        out.println(String.format("%8s %-10s | %d connections across the partition after healing", "", "",
+                crossing(network, side)));
+    }
+
+    /**
+     * <p>Runs the network, until the number of connections did not
+     * change for two timer intervals and no connection points to a
+     * stopped node.</p>
+     * @param network   network
+     * @param start     start of the scenario
+     * @return  time from start to the last change or -1, when the network did not converge in time
+     */
+    private static long converge (SimulatedNetwork network, long start) {
+        long last = start;
+        long connections = -1;
+        while (network.millis() - start < LIMIT) {
+            network.runFor(SAMPLE);
+
+            long current = 0;
+            for (Application node : network.getNodes()) {
+                current += node.getConnections().size();
+            }
+            if (current != connections || stale(network) > 0) {
+                connections = current;
+                last = network.millis();
+            } else if (network.millis() - last >= 2 * Application.REFRESH_INTERVAL && network.getInFlight() == 0) {
+                return last - start;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * <p>Counts connections of running nodes to stopped nodes.</p>
+     * @param network   network
+     * @return  number of stale connections
+     */
+    private static int stale (SimulatedNetwork network) {
+        int stale = 0;
+        for (Application node : network.getNodes()) {
+            for (Connection c : node.getConnections()) {
+                if (network.getNode(c.getPeer()) == null) {
+                    stale++;
+                }
+            }
+        }
+
+        return stale;
+    }
+
+    /**
+     * <p>Counts connections between the partitions.</p>
+     * @param network   network
+     * @param side      nodes of the other partition
+     * @return  number of connections across the partition
+     */
+    private static int crossing (SimulatedNetwork network, List<Peer> side) {
+        int crossing = 0;
+        for (Application node : network.getNodes()) {
+            boolean inside = side.contains(node.me);
+            for (Connection c : node.getConnections()) {
+                if (side.contains(c.getPeer()) != inside) {
+                    crossing++;
+                }
+            }
+        }
+
+        return crossing;
+    }
+
+    /**
+     * <p>Prints the result of a scenario.</p>
+     * @param out       output
+     * @param n         number of nodes
+     * @param scenario  name of scenario
+     * @param network   network
+     * @param converged time to converge in virtual milliseconds, -1 when not converged
+     * @param frames    frames sent before the scenario
+     * @param dropped   frames dropped before the scenario
+     * @param wall      wall clock time at the start of the scenario
+     */
+    private static void report (PrintStream out, int n, String scenario, SimulatedNetwork network,
+                                long converged, long frames, long dropped, long wall) {
+        long connections = 0;
+        int max = 0;
+        for (Application node : network.getNodes()) {
+            connections += node.getConnections().size();
+            max = Math.max(max, node.getConnections().size());
+        }
+
+        out.println(String.format("%8d %-10s | %10s %10.1f %10d | %12d %10d %10d | %6dms",
+                n, scenario, converged >= 0 ? String.format("%.1fs", converged / 1000.0) : "none", (double) connections / Math.max(network.getNodes().size(), 1), max,
+                network.getSent() - frames, network.getDropped() - dropped, stale(network),
+                System.currentTimeMillis() - wall));
+    }
+}
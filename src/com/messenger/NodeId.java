@@ -0,0 +1,112 @@
+package com.messenger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>160 bit identifier of a {@link Peer} in the overlay
+ * network. The id is the SHA-1 hash of ip address and port,
+ * so every node can calculate the id of every other node
+ * without asking. Distance between two ids is their xor.</p>
+ */
+public final class NodeId {
+
+    /**
+     * <p>Number of bits of an id.</p>
+     */
+    public static final int BITS = 160;
+
+    /**
+     * <p>Raw hash bytes.</p>
+     */
+    private final byte[] bytes;
+
+    /**
+     * <p>Creates an id from raw hash bytes.</p>
+     * @param bytes raw hash bytes
+     */
+    private NodeId (byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * <p>Calculates the id of a peer from its
+     * ip address and port.</p>
+     * @param peer  peer
+     * @return  id of peer
+     */
+    public static NodeId of (Peer peer) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return new NodeId(digest.digest((peer.getHostName() + ":" + peer.getPort())
+                    .getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * <p>Gets the first 64 bits of the id.</p>
+     * @return  first 64 bits
+     */
+    public long prefix () {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (bytes[i] & 0xff);
+        }
+
+        return prefix;
+    }
+
+    /**
+     * <p>Index of the highest bit that differs between this
+     * and the other id. Peers with the same index share one
+     * bucket of the {@link RoutingTable}.</p>
+     * @param other other id
+     * @return  index between 0 (closest) and 159, -1 when equal
+     */
+    public int bucketIndex (NodeId other) {
+        for (int i = 0; i < bytes.length; i++) {
+            int xor = (bytes[i] ^ other.bytes[i]) & 0xff;
+            if (xor != 0) {
+                return (bytes.length - i) * 8 - (Integer.numberOfLeadingZeros(xor) - 24) - 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * <p>Compares the distance of two ids to this id.</p>
+     * @param a first id
+     * @param b second id
+     * @return  negative when a is closer, positive when b is closer, 0 when equal
+     */
+    public int compareDistance (NodeId a, NodeId b) {
+        for (int i = 0; i < bytes.length; i++) {
+            int da = (bytes[i] ^ a.bytes[i]) & 0xff;
+            int db = (bytes[i] ^ b.bytes[i]) & 0xff;
+            if (da != db) {
+                return da - db;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * <p>Short hex representation of the id.</p>
+     * @return  first 4 bytes as hex
+     */
+    @Override
+    public String toString () {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            stringBuilder.append(String.format("%02x", bytes[i]));
+        }
+
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,133 @@
+package com.messenger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * <p>Local multi-node simulation of the overlay mode. Builds
+ * the {@link RoutingTable} of every node of a virtual cluster
+ * and routes messages between random pairs of nodes, hop by
+ * hop, exactly like {@link Application} forwards ROUTE messages.
+ * Prints connections per node and hops per delivery against
+ * cluster size, compared with the full mesh.
+ *
+ * Example:
+ * "java -cp messenger.jar com.messenger.OverlaySimulation 64 256 1024 4096"</p>
+ */
+public class OverlaySimulation {
+
+    /**
+     * <p>Number of routed messages per cluster size.</p>
+     */
+    private static final int MESSAGES = 2000;
+
+    /**
+     * <p>Runs the simulation for all given cluster sizes.
+     * Bucket size can be set with messenger.overlay.k.</p>
+     * @param args  expecting cluster sizes, optional
+     */
+    public static void main (String[] args) {
+        int k = Configuration.getInt("overlay.k", 8);
+        Random random = new Random(Configuration.getInt("simulation.seed", 42));
+
+        int[] sizes = {16, 64, 256, 1024, 4096};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("k=" + k + ", " + MESSAGES + " messages per cluster");
+        System.out.println(String.format("%8s | %10s %10s %10s | %8s %8s %14s | %10s",
+                "nodes", "conn avg", "conn max", "full mesh", "hops avg", "hops max", "route cpu avg", "delivered"));
+
+        for (int n : sizes) {
+            simulate(n, k, random);
+        }
+    }
+
+    /**
+     * <p>Simulates one cluster. Every node gets offered
+     * every other node in random order, like it would see
+     * them through POKE flooding.</p>
+     * @param n         cluster size
+     * @param k         bucket size
+     * @param random    random source
+     */
+    private static void simulate (int n, int k, Random random) {
+        Peer[] peers = new Peer[n];
+        NodeId[] ids = new NodeId[n];
+        for (int i = 0; i < n; i++) {
+            peers[i] = new Peer("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff), 6734, "node" + i);
+            ids[i] = NodeId.of(peers[i]);
+        }
+
+        // build routing tables
+        RoutingTable[] tables = new RoutingTable[n];
+        ArrayList<Integer> order = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            order.add(i);
+        }
+
+        for (int i = 0; i < n; i++) {
+            tables[i] = new RoutingTable(ids[i], k);
+            Collections.shuffle(order, random);
+            for (int j : order) {
+                if (j != i) {
+                    tables[i].offer(peers[j], ids[j]);
+                }
+            }
+        }
+
+        long connections = 0;
+        int maxConnections = 0;
+        for (RoutingTable table : tables) {
+            connections += table.size();
+            maxConnections = Math.max(maxConnections, table.size());
+        }
+
+        // route messages between random pairs
+        HashMap<Peer, Integer> index = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            index.put(peers[i], i);
+        }
+
+        long hops = 0;
+        int maxHops = 0;
+        long cpu = 0;
+        int delivered = 0;
+        for (int m = 0; m < MESSAGES; m++) {
+            int from = random.nextInt(n);
+            int to = (from + 1 + random.nextInt(n - 1)) % n;
+
+            long start = System.nanoTime();
+            int current = from;
+            int count = 0;
+            while (current != to) {
+                Peer next = tables[current].closest(ids[to]);
+                if (next == null) {
+                    break;
+                }
+
+                current = index.get(next);
+                count++;
+            }
+            cpu += System.nanoTime() - start;
+
+            if (current == to) {
+                delivered++;
+                hops += count;
+                maxHops = Math.max(maxHops, count);
+            }
+        }
+
+        double avgHops = delivered > 0 ? (double) hops / delivered : 0;
+        System.out.println(String.format("%8d | %10.1f %10d %10d | %8.2f %8d %12.1fus | %9.1f%%",
+                n, (double) connections / n, maxConnections, n - 1,
+                avgHops, maxHops, delivered > 0 ? cpu / 1000.0 / delivered : 0,
+                100.0 * delivered / MESSAGES));
+    }
+}
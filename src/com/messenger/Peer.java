@@ -1,5 +1,7 @@
 package com.messenger;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * <p>Represents a peer in our peer-to-peer network.
  * It contains an ip address, a associated port and
@@ -20,7 +22,13 @@ public class Peer {
     /**
      * <p>Name of this peer.</p>
      */
-    private String name;
+    private volatile String name;
+
+    /**
+     * <p>Cached UTF-8 bytes of {@link Peer#toString()},
+     * used by {@link FrameEncoder}.</p>
+     */
+    private volatile byte[] encoded;
 
     /**
      * <p>Creates a new peer without knowing the name,
@@ -47,14 +55,34 @@ public class Peer {
 
     /**
      * <p>Compares two peers with each other. If
-     * name, hostname and port are equal, the function
-     * returns {@code true}.</p>
-     * @param peer  peer to compare with
+     * hostname and port are equal, the function
+     * returns {@code true}. Peers from {@link PeerCache}
+     * are already equal by identity.</p>
+     * @param o peer to compare with
      * @return  is peer equal
      */
-    public boolean equals (Peer peer) {
-        return getHostName().equals(peer.getHostName())
-                && getPort() == peer.getPort();
+    @Override
+    public boolean equals (Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof Peer)) {
+            return false;
+        }
+
+        Peer peer = (Peer) o;
+        return port == peer.port && ip.equals(peer.ip);
+    }
+
+    /**
+     * <p>Hash code of hostname and port, matching
+     * {@link Peer#equals(Object)}.</p>
+     * @return  hash code
+     */
+    @Override
+    public int hashCode () {
+        return 31 * ip.hashCode() + port;
     }
 
     /**
@@ -67,6 +95,27 @@ public class Peer {
         return (hasName() ? name + " " : "") + ip + " " + port;
     }
 
+    /**
+     * <p>Gets the UTF-8 bytes of {@link Peer#toString()}. They
+     * are encoded once and cached until the name changes.</p>
+     * @return  encoded peer
+     */
+    byte[] getEncoded () {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            // a rename in between must not leave the old name cached
+            synchronized (this) {
+                bytes = encoded;
+                if (bytes == null) {
+                    bytes = toString().getBytes(StandardCharsets.UTF_8);
+                    encoded = bytes;
+                }
+            }
+        }
+
+        return bytes;
+    }
+
     /**
      * <p>Checking if this peer has a name assigned,
      * returns {@code true} if so.</p>
@@ -108,7 +157,8 @@ public class Peer {
      * <p>Sets {@link Peer#name}.</p>
      * @param name  client name to set
      */
-    public void setName (String name) {
+    public synchronized void setName (String name) {
         this.name = name;
+        this.encoded = null;
     }
 }
\ No newline at end of file
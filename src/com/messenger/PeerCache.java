@@ -0,0 +1,190 @@
+package com.messenger;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Canonicalizing cache of {@link Peer}s, keyed by ip address
+ * and port. Inbound messages resolve to the already known peer
+ * instance, so parsing a message does not allocate a new peer
+ * and peers can be compared by identity on the hot path.</p>
+ * <p>Every {@link Application} has its own cache, so nodes of
+ * one JVM never share a peer instance. Peers are only weakly
+ * referenced, a peer, that is not referenced by a connection,
+ * a list or a message anymore, is dropped from the cache. So
+ * ROUTE origins and PEERLIST entries, that never get connected,
+ * do not let the cache grow without bound.</p>
+ */
+public final class PeerCache {
+
+    /**
+     * <p>Known peers by ip address. A host rarely runs more
+     * than a few peers, so peers with the same ip address are
+     * stored in a small copy-on-write array and found by a
+     * linear search over the port, without allocating a key.</p>
+     */
+    private final ConcurrentHashMap<String, Entry[]> peers = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Entries of peers, that were collected.</p>
+     */
+    private final ReferenceQueue<Peer> collected = new ReferenceQueue<>();
+
+    /**
+     * <p>Gets the canonical peer for ip address and port and
+     * creates it, when it is not known yet. A known peer takes
+     * the given name, so a peer, that renamed itself at the
+     * same ip address and port, is shown with its new name.</p>
+     * @param ip    ip address
+     * @param port  port
+     * @param name  peer name, can be null
+     * @return  canonical peer
+     */
+    public Peer intern (String ip, int port, String name) {
+        expunge();
+
+        Peer peer = lookup(ip, port);
+        if (peer == null) {
+            Peer[] found = new Peer[1];
+            peers.compute(ip, (key, current) -> {
+                if (current != null) {
+                    for (Entry entry : current) {
+                        Peer p = entry.get();
+                        if (p != null && entry.port == port) {
+                            found[0] = p;
+                            return current;
+                        }
+                    }
+                }
+
+                found[0] = new Peer(ip, port, name);
+                Entry[] remaining = prune(current, port);
+                Entry[] extended = remaining == null ? new Entry[1] : Arrays.copyOf(remaining, remaining.length + 1);
+                extended[extended.length - 1] = new Entry(found[0], collected);
+                return extended;
+            });
+            peer = found[0];
+        }
+
+        if (name != null && (!peer.hasName() || !name.equals(peer.getName()))) {
+            peer.setName(name);
+        }
+
+        return peer;
+    }
+
+    /**
+     * <p>Gets the canonical peer for ip address and port
+     * without creating it.</p>
+     * @param ip    ip address
+     * @param port  port
+     * @return  canonical peer or {@code null}, when unknown
+     */
+    public Peer lookup (String ip, int port) {
+        Entry[] known = peers.get(ip);
+        if (known != null) {
+            for (Entry entry : known) {
+                Peer p = entry.get();
+                if (p != null && entry.port == port) {
+                    return p;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * <p>Removes a peer that left the network, so the
+     * cache does not wait for the garbage collector.</p>
+     * @param peer  peer to remove
+     */
+    public void evict (Peer peer) {
+        peers.computeIfPresent(peer.getHostName(), (key, current) -> prune(current, peer.getPort()));
+    }
+
+    /**
+     * <p>Number of cached peers.</p>
+     * @return  number of cached peers
+     */
+    public int size () {
+        expunge();
+
+        int size = 0;
+        for (Entry[] known : peers.values()) {
+            for (Entry entry : known) {
+                if (entry.get() != null) {
+                    size++;
+                }
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * <p>Removes the entries of collected peers.</p>
+     */
+    private void expunge () {
+        Reference<? extends Peer> reference;
+        while ((reference = collected.poll()) != null) {
+            Entry entry = (Entry) reference;
+            peers.computeIfPresent(entry.ip, (key, current) -> prune(current, -1));
+        }
+    }
+
+    /**
+     * <p>Copies the entries of an ip address without the
+     * given port and without collected peers.</p>
+     * @param current   entries, can be null
+     * @param port      port to remove, -1 to only remove collected peers
+     * @return  remaining entries, {@code null} when none remain
+     */
+    private static Entry[] prune (Entry[] current, int port) {
+        if (current == null) {
+            return null;
+        }
+
+        Entry[] remaining = new Entry[current.length];
+        int count = 0;
+        for (Entry entry : current) {
+            if (entry.port != port && entry.get() != null) {
+                remaining[count++] = entry;
+            }
+        }
+
+        return count == 0 ? null : Arrays.copyOf(remaining, count);
+    }
+
+    /**
+     * <p>Weak reference to a cached peer, that keeps
+     * ip address and port to find it after it was
+     * collected.</p>
+     */
+    private static final class Entry extends WeakReference<Peer> {
+
+        /**
+         * <p>Ip address of the peer.</p>
+         */
+        private final String ip;
+
+        /**
+         * <p>Port of the peer.</p>
+         */
+        private final int port;
+
+        /**
+         * <p>Creates an entry.</p>
+         * @param peer      cached peer
+         * @param queue     queue of collected peers
+         */
+        private Entry (Peer peer, ReferenceQueue<Peer> queue) {
+            super(peer, queue);
+            this.ip = peer.getHostName();
+            this.port = peer.getPort();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * <p>File of known peers, so a restarted node can rejoin the
+ * network without CONNECT. Every peer is one line of name, ip
+ * address and port, like in a PEERLIST frame.</p>
+ * <p>The file is replaced atomically. The list is written to a
+ * temporary file next to it, forced to disk and renamed over the
+ * old file, so a crash while writing leaves the old list.</p>
+ */
+public class PeerStore {
+
+    /**
+     * <p>Path of the file.</p>
+     */
+    private final Path path;
+
+    /**
+     * <p>Path of the temporary file.</p>
+     */
+    private final Path temp;
+
+    /**
+     * <p>Peers of the last write, unchanged lists
+     * are not written again.</p>
+     */
+    private LinkedHashSet<Peer> saved = new LinkedHashSet<>();
+
+    /**
+     * <p>Cache of known peers, resolves the read peers.</p>
+     */
+    private final PeerCache cache;
+
+    /**
+     * <p>Creates a store for a file.</p>
+     * @param path  path of the file
+     * @param cache cache of known peers
+     */
+    public PeerStore (Path path, PeerCache cache) {
+        this.path = path;
+        this.temp = path.resolveSibling(path.getFileName() + ".tmp");
+        this.cache = cache;
+    }
+
+    /**
+     * <p>Reads the peers of the file. Malformed lines
+     * are skipped.</p>
+     * @return  stored peers, empty when there is no file
+     */
+    public synchronized List<Peer> load () {
+        ArrayList<Peer> peers = new ArrayList<>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return peers;
+        } catch (IOException e) {
+            System.err.println("> [" + new Date().toString() + "] Peer file " + path + " can not be read: " + e.getMessage());
+            return peers;
+        }
+
+        for (String line : lines) {
+            String[] parts = line.split(" ");
+            if (parts.length != 3) {
+                continue;
+            }
+
+            try {
+                peers.add(cache.intern(parts[1], Integer.parseInt(parts[2]), parts[0].equals("-") ? null : parts[0]));
+            } catch (NumberFormatException e) {
+                System.err.println("> [" + new Date().toString() + "] Peer file " + path + " has a malformed line: " + line);
+            }
+        }
+
+        saved = new LinkedHashSet<>(peers);
+        return peers;
+    }
+
+    /**
+     * <p>Replaces the file with the given peers, when
+     * they differ from the last written peers. An empty
+     * list is not written.</p>
+     * @param peers peers to store
+     */
+    public synchronized void save (Collection<Peer> peers) {
+        LinkedHashSet<Peer> current = new LinkedHashSet<>(peers);
+        // a node, that lost all peers, still finds them after a restart
+        if (current.isEmpty() || current.equals(saved)) {
+            return;
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Peer peer : current) {
+            stringBuilder.append(peer.hasName() ? peer.getName() : "-").append(' ')
+                    .append(peer.getHostName()).append(' ').append(peer.getPort()).append('\n');
+        }
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                // the content has to be on disk before the rename is
+                channel.force(false);
+            }
+
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            saved = current;
+        } catch (IOException e) {
+            System.err.println("> [" + new Date().toString() + "] Peer file " + path + " can not be written: " + e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Gets {@link PeerStore#path}.</p>
+     * @return  {@link PeerStore#path}
+     */
+    public Path getPath () {
+        return path;
+    }
+}
@@ -0,0 +1,111 @@
+package com.messenger;
+
+import java.util.ArrayDeque;
+
+/**
+ * <p>Outbound queues of a {@link Connection}. Control frames
+ * (POKE, DISCONNECT, ACK, ...) always leave before data frames
+ * (MESSAGE, ROUTE), so a burst of messages can not delay the
+ * heartbeats of a connection. Not thread safe, the connection
+ * synchronizes access.</p>
+ */
+public class PriorityLanes {
+
+    /**
+     * <p>Queued control frames.</p>
+     */
+    private final ArrayDeque<Entry> control = new ArrayDeque<>();
+
+    /**
+     * <p>Queued data frames.</p>
+     */
+    private final ArrayDeque<Entry> data = new ArrayDeque<>();
+
+    /**
+     * <p>Checks if a message belongs to the data lane.</p>
+     * @param message   message
+     * @return  is MESSAGE or ROUTE
+     */
+    public static boolean isData (Message message) {
+        return message.getCommand().equals("MESSAGE") || message.getCommand().equals("ROUTE");
+    }
+
+    /**
+     * <p>Queues a frame in the lane of its message.</p>
+     * @param frame frame to queue
+     */
+    public void add (Frame frame) {
+        (isData(frame.getMessage()) ? data : control).addLast(new Entry(frame, System.nanoTime()));
+    }
+
+    /**
+     * <p>Takes the next frame, control frames first, and
+     * records how long it was queued.</p>
+     * @return  next frame or {@code null}, when both lanes are empty
+     */
+    public Frame poll () {
+        Entry entry = control.pollFirst();
+        LaneMetrics metrics = LaneMetrics.CONTROL;
+        if (entry == null) {
+            entry = data.pollFirst();
+            metrics = LaneMetrics.DATA;
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        metrics.record(System.nanoTime() - entry.queued);
+        return entry.frame;
+    }
+
+    /**
+     * <p>Checks if both lanes are empty.</p>
+     * @return  are lanes empty
+     */
+    public boolean isEmpty () {
+        return control.isEmpty() && data.isEmpty();
+    }
+
+    /**
+     * <p>Number of queued frames in both lanes.</p>
+     * @return  number of queued frames
+     */
+    public int size () {
+        return control.size() + data.size();
+    }
+
+    /**
+     * <p>Drops all queued frames.</p>
+     */
+    public void clear () {
+        control.clear();
+        data.clear();
+    }
+
+    /**
+     * <p>Queued frame with the time it was queued.</p>
+     */
+    private static class Entry {
+
+        /**
+         * <p>Queued frame.</p>
+         */
+        private final Frame frame;
+
+        /**
+         * <p>{@link System#nanoTime()} when queued.</p>
+         */
+        private final long queued;
+
+        /**
+         * <p>Creates an entry.</p>
+         * @param frame     queued frame
+         * @param queued    time when queued
+         */
+        Entry (Frame frame, long queued) {
+            this.frame = frame;
+            this.queued = queued;
+        }
+    }
+}
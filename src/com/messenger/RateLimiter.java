@@ -0,0 +1,424 @@
+package com.messenger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Limits of the frames a node accepts from every inbound
+ * connection, so a looping or misbehaving peer can not flood it
+ * with POKE or DISCONNECT frames, which are answered or forwarded
+ * to other peers. Every connection has a token bucket for all
+ * frames and one per command, that are refilled with
+ * {@code limit.<command>} tokens per second and hold the tokens of
+ * {@code limit.burst} seconds.</p>
+ * <p>MESSAGE, ROUTE and ACK frames are never dropped, a lost
+ * frame would leave a gap in the stream of the sender or be
+ * acknowledged by a later one. Without a token they borrow one,
+ * and the connection is not read, until the debt is paid back,
+ * so TCP slows the sender down. All other frames are dropped
+ * without a token and are lost: POKE frames are repeated by the
+ * next refresh, peers missed by a dropped JOIN, PEERLIST or
+ * DIGEST are found by the next digest exchange, and a peer of a
+ * dropped DISCONNECT stays until its liveness expires. This is
+ * the intended cost of a flood of membership frames.</p>
+ * <p>Commands are read from the first bytes of a line, so dropped
+ * lines are never decoded or parsed. A rate of 0 disables the
+ * bucket of a command.</p>
+ */
+public class RateLimiter {
+
+    /**
+     * <p>Commands with a bucket of their own, other
+     * frames are only counted by the total bucket.</p>
+     */
+    private static final String[] COMMANDS = {"POKE", "DISCONNECT", "JOIN", "PEERLIST", "DIGEST", "ROUTE", "MESSAGE", "ACK"};
+
+    /**
+     * <p>Default rates of {@link RateLimiter#COMMANDS} per second.
+     * MESSAGE and ACK are limited by the send window of the
+     * sender already, but count against the total bucket.</p>
+     */
+    private static final int[] RATES = {20, 20, 10, 50, 20, 2000, 0, 0};
+
+    /**
+     * <p>Index of POKE in {@link RateLimiter#COMMANDS}.</p>
+     */
+    private static final int POKE = 0;
+
+    /**
+     * <p>Index of JOIN in {@link RateLimiter#COMMANDS}.</p>
+     */
+    private static final int JOIN = 2;
+
+    /**
+     * <p>Index of ROUTE in {@link RateLimiter#COMMANDS}. ROUTE
+     * and all commands after it are delayed instead of dropped.</p>
+     */
+    private static final int ROUTE = 5;
+
+    /**
+     * <p>Index of frames with other commands.</p>
+     */
+    private static final int OTHER = COMMANDS.length;
+
+    /**
+     * <p>Encoded {@link RateLimiter#COMMANDS}.</p>
+     */
+    private static final byte[][] PREFIXES = new byte[COMMANDS.length][];
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            PREFIXES[i] = COMMANDS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * <p>Time in nanoseconds a peer counts as
+     * throttled after a dropped or delayed frame.</p>
+     */
+    private static final long THROTTLED = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * <p>Tokens per second of every command and
+     * of all frames at the last index.</p>
+     */
+    private final double[] rates = new double[COMMANDS.length + 1];
+
+    /**
+     * <p>Capacity of the buckets in seconds of their rate.</p>
+     */
+    private final double burst;
+
+    /**
+     * <p>Dropped frames by command, other
+     * commands at the last index.</p>
+     */
+    private final LongAdder[] dropped = new LongAdder[COMMANDS.length + 1];
+
+    /**
+     * <p>Number of frames, that had to borrow a token.</p>
+     */
+    private final LongAdder delayed = new LongAdder();
+
+    /**
+     * <p>Limits of all open inbound connections.</p>
+     */
+    private final Set<Limit> limits = ConcurrentHashMap.newKeySet();
+
+    /**
+     * <p>Creates the limiter with the rates of the
+     * configuration.</p>
+     */
+    public RateLimiter () {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            rates[i] = Configuration.getInt("limit." + COMMANDS[i].toLowerCase(), RATES[i]);
+        }
+        rates[OTHER] = Configuration.getInt("limit.total", 5000);
+        burst = Math.max(1, Configuration.getInt("limit.burst", 2));
+
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * <p>Creates the buckets of a new inbound connection.</p>
+     * @return  limit, that has to be closed with the connection
+     */
+    public Limit open () {
+        Limit limit = new Limit();
+        limits.add(limit);
+        return limit;
+    }
+
+    /**
+     * <p>Gets the command of a line from its first bytes.</p>
+     * @param line      bytes of the line, can be null
+     * @param length    number of bytes
+     * @return  index of the command
+     */
+    static int command (byte[] line, int length) {
+        for (int i = 0; i < PREFIXES.length; i++) {
+            byte[] prefix = PREFIXES[i];
+            if (length <= prefix.length) {
+                continue;
+            }
+
+            // the command ends with the first option or the name
+            byte end = line[prefix.length];
+            if (end != ' ' && end != ';') {
+                continue;
+            }
+
+            int j = 0;
+            while (j < prefix.length && line[j] == prefix[j]) {
+                j++;
+            }
+
+            if (j == prefix.length) {
+                return i;
+            }
+        }
+
+        return OTHER;
+    }
+
+    /**
+     * <p>Gets the index of a command.</p>
+     * @param command   command of a message
+     * @return  index of the command
+     */
+    private static int command (String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return i;
+            }
+        }
+
+        return OTHER;
+    }
+
+    /**
+     * <p>Gets the peers, that had frames dropped or
+     * delayed in the last seconds.</p>
+     * @return  dropped and delayed frames by peer
+     */
+    public Map<Peer, Long> getThrottled () {
+        LinkedHashMap<Peer, Long> throttled = new LinkedHashMap<>();
+        long now = System.nanoTime();
+        for (Limit limit : limits) {
+            if (limit.peer != null && limit.isThrottled(now)) {
+                throttled.merge(limit.peer, limit.dropped, Long::sum);
+            } else if (limit.closed) {
+                limits.remove(limit);
+            }
+        }
+
+        return throttled;
+    }
+
+    /**
+     * <p>Gets the number of dropped frames of
+     * all connections by command.</p>
+     * @return  dropped frames by command, other commands as "OTHER"
+     */
+    public Map<String, Long> getDropped () {
+        LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < dropped.length; i++) {
+            counts.put(i < COMMANDS.length ? COMMANDS[i] : "OTHER", dropped[i].sum());
+        }
+
+        return counts;
+    }
+
+    /**
+     * <p>Gets the number of frames of all connections,
+     * that were read late instead of being dropped.</p>
+     * @return  number of delayed frames
+     */
+    public long getDelayed () {
+        return delayed.sum();
+    }
+
+    /**
+     * <p>Token buckets of one inbound connection. Used by
+     * the one thread reading the connection.</p>
+     */
+    public final class Limit {
+
+        /**
+         * <p>Tokens of the buckets.</p>
+         */
+        private final double[] tokens = new double[rates.length];
+
+        /**
+         * <p>Time of the last refill of every bucket.</p>
+         */
+        private final long[] refilled = new long[rates.length];
+
+        /**
+         * <p>Peer of the connection, taken from its
+         * POKE or JOIN frames. Null until then.</p>
+         */
+        private volatile Peer peer;
+
+        /**
+         * <p>Time of the last dropped or delayed frame.</p>
+         */
+        private volatile long lastDrop;
+
+        /**
+         * <p>Number of dropped and delayed frames.</p>
+         */
+        private volatile long dropped;
+
+        /**
+         * <p>Whether the connection is closed.</p>
+         */
+        private volatile boolean closed;
+
+        /**
+         * <p>Creates full buckets.</p>
+         */
+        private Limit () {
+            long now = System.nanoTime();
+            for (int i = 0; i < rates.length; i++) {
+                tokens[i] = rates[i] * burst;
+                refilled[i] = now;
+            }
+        }
+
+        /**
+         * <p>Takes a token for a line.</p>
+         * @param line      bytes of the line, can be null
+         * @param length    number of bytes
+         * @return  {@code false} when the line has to be dropped
+         */
+        public boolean acquire (byte[] line, int length) {
+            return acquire(command(line, length));
+        }
+
+        /**
+         * <p>Takes a token for a message, that was not encoded.
+         * The peer of POKE and JOIN messages is the peer of
+         * the connection.</p>
+         * @param message   received message
+         * @return  {@code false} when the message has to be dropped
+         */
+        public boolean acquire (Message message) {
+            int command = command(message.getCommand());
+            if (!acquire(command)) {
+                return false;
+            }
+
+            if (command == POKE || command == JOIN) {
+                identify(message.getPeer());
+            }
+            return true;
+        }
+
+        /**
+         * <p>Takes a token of the bucket of a command and one of
+         * the total bucket. Counts the frame, when one is empty.
+         * MESSAGE, ROUTE and ACK frames borrow the missing tokens
+         * and are never dropped, see {@link Limit#getDelay()}.</p>
+         * @param command   index of the command
+         * @return  {@code false} when a bucket is empty
+         */
+        private boolean acquire (int command) {
+            long now = System.nanoTime();
+            boolean borrow = command >= ROUTE && command != OTHER;
+            boolean own = take(command, now, borrow);
+            if (own && (command == OTHER || take(OTHER, now, borrow))) {
+                return true;
+            }
+
+            // the total bucket pays for the borrowed token as well
+            if (borrow && !own) {
+                take(OTHER, now, true);
+            }
+
+            if (!isThrottled(now)) {
+                System.err.println("> [" + new Date().toString() + "] " + (borrow ? "Slowing down " : "Throttling ") +
+                        (peer != null ? peer.toString() : "unknown peer") + ": too many " +
+                        (command < COMMANDS.length ? COMMANDS[command] : "") + " frames.");
+            }
+
+            lastDrop = now;
+            dropped++;
+            if (borrow) {
+                delayed.increment();
+                return true;
+            }
+
+            RateLimiter.this.dropped[command].increment();
+            return false;
+        }
+
+        /**
+         * <p>Refills a bucket and takes a token. A borrowed
+         * token leaves the bucket in debt.</p>
+         * @param bucket    index of the bucket
+         * @param now       current time in nanoseconds
+         * @param borrow    take the token, even if there is none
+         * @return  {@code true} when the bucket had a token or is disabled
+         */
+        private boolean take (int bucket, long now, boolean borrow) {
+            double rate = rates[bucket];
+            if (rate <= 0) {
+                return true;
+            }
+
+            tokens[bucket] = Math.min(rate * burst, tokens[bucket] + (now - refilled[bucket]) * rate / 1e9);
+            refilled[bucket] = now;
+            if (tokens[bucket] < 1) {
+                if (borrow) {
+                    tokens[bucket]--;
+                }
+                return false;
+            }
+
+            tokens[bucket]--;
+            return true;
+        }
+
+        /**
+         * <p>Gets the time until all borrowed tokens are paid
+         * back. The reader of the connection waits that long,
+         * before it reads the next frames.</p>
+         * @return  time in nanoseconds, 0 when no bucket is in debt
+         */
+        public long getDelay () {
+            long now = System.nanoTime();
+            long delay = 0;
+            for (int i = 0; i < rates.length; i++) {
+                if (rates[i] <= 0 || tokens[i] >= 0) {
+                    continue;
+                }
+
+                double debt = -tokens[i] - (now - refilled[i]) * rates[i] / 1e9;
+                if (debt > 0) {
+                    delay = Math.max(delay, (long) (debt / rates[i] * 1e9));
+                }
+            }
+
+            return delay;
+        }
+
+        /**
+         * <p>Checks if a frame was dropped in the last
+         * {@link RateLimiter#THROTTLED} nanoseconds.</p>
+         * @param now   current time in nanoseconds
+         * @return  {@code true} if the connection is throttled
+         */
+        private boolean isThrottled (long now) {
+            return dropped > 0 && now - lastDrop < THROTTLED;
+        }
+
+        /**
+         * <p>Sets the peer of the connection.</p>
+         * @param peer  peer
+         */
+        public void identify (Peer peer) {
+            this.peer = peer;
+        }
+
+        /**
+         * <p>Removes the limit, when the connection is closed.
+         * A throttled peer stays throttled, until its time is
+         * over, so it is not hidden by reconnecting.</p>
+         */
+        public void close () {
+            closed = true;
+            if (!isThrottled(System.nanoTime())) {
+                limits.remove(this);
+            }
+        }
+    }
+}
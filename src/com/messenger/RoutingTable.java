@@ -0,0 +1,213 @@
+package com.messenger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * <p>Kademlia-style routing table for the overlay mode. Peers
+ * are sorted into buckets by the xor distance of their
+ * {@link NodeId} to our own id. Every bucket holds at most
+ * k peers, so a node keeps O(log n) connections instead of
+ * a connection to every other node.</p>
+ */
+public class RoutingTable {
+
+    /**
+     * <p>Own id, distances are measured from here.</p>
+     */
+    private final NodeId own;
+
+    /**
+     * <p>Maximum number of peers per bucket.</p>
+     */
+    private final int k;
+
+    /**
+     * <p>One bucket per bit of {@link NodeId}. Older
+     * entries are at the head of a bucket.</p>
+     */
+    private final ArrayList<LinkedList<Entry>> buckets;
+
+    /**
+     * <p>Creates an empty routing table.</p>
+     * @param own   own peer
+     * @param k     maximum number of peers per bucket
+     */
+    public RoutingTable (Peer own, int k) {
+        this(NodeId.of(own), k);
+    }
+
+    /**
+     * <p>Creates an empty routing table.</p>
+     * @param own   own id
+     * @param k     maximum number of peers per bucket
+     */
+    public RoutingTable (NodeId own, int k) {
+        this.own = own;
+        this.k = k;
+        this.buckets = new ArrayList<>(NodeId.BITS);
+        for (int i = 0; i < NodeId.BITS; i++) {
+            buckets.add(new LinkedList<>());
+        }
+    }
+
+    /**
+     * <p>Offers a peer to the routing table.</p>
+     * @param peer  peer
+     * @return  {@code true} if the peer is (or already was) part of the table
+     */
+    public boolean offer (Peer peer) {
+        return offer(peer, NodeId.of(peer));
+    }
+
+    /**
+     * <p>Offers a peer with an already calculated id
+     * to the routing table. A peer is accepted, when its
+     * bucket has space left.</p>
+     * @param peer  peer
+     * @param id    id of peer
+     * @return  {@code true} if the peer is (or already was) part of the table
+     */
+    public synchronized boolean offer (Peer peer, NodeId id) {
+        int index = own.bucketIndex(id);
+        if (index < 0) {
+            // never route to ourselves
+            return false;
+        }
+
+        LinkedList<Entry> bucket = buckets.get(index);
+        for (Entry entry : bucket) {
+            if (entry.peer.equals(peer)) {
+                return true;
+            }
+        }
+
+        if (bucket.size() < k) {
+            bucket.addLast(new Entry(peer, id));
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>Checks if a peer would be kept by
+     * {@link RoutingTable#offer(Peer)}, without adding it.</p>
+     * @param peer  peer
+     * @return  {@code true} if the peer is in the table or fits into its bucket
+     */
+    public synchronized boolean accepts (Peer peer) {
+        int index = own.bucketIndex(NodeId.of(peer));
+        if (index < 0) {
+            return false;
+        }
+
+        LinkedList<Entry> bucket = buckets.get(index);
+        if (bucket.size() < k) {
+            return true;
+        }
+
+        for (Entry entry : bucket) {
+            if (entry.peer.equals(peer)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>Removes a peer from the routing table, so
+     * its bucket space can be used by new peers.</p>
+     * @param peer  peer to remove
+     */
+    public synchronized void remove (Peer peer) {
+        LinkedList<Entry> bucket = buckets.get(Math.max(own.bucketIndex(NodeId.of(peer)), 0));
+        for (Iterator<Entry> it = bucket.iterator(); it.hasNext();) {
+            if (it.next().peer.equals(peer)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>Removes all peers from the routing table.</p>
+     */
+    public synchronized void clear () {
+        for (LinkedList<Entry> bucket : buckets) {
+            bucket.clear();
+        }
+    }
+
+    /**
+     * <p>Finds the peer in the table that is closest to
+     * the target and closer than ourselves. Used to forward
+     * a message one hop towards the target.</p>
+     * @param target    target id
+     * @return  next hop or {@code null}, when no peer is closer than we are
+     */
+    public synchronized Peer closest (NodeId target) {
+        Entry best = null;
+        for (LinkedList<Entry> bucket : buckets) {
+            for (Entry entry : bucket) {
+                if (best == null || target.compareDistance(entry.id, best.id) < 0) {
+                    best = entry;
+                }
+            }
+        }
+
+        if (best != null && target.compareDistance(best.id, own) < 0) {
+            return best.peer;
+        }
+
+        return null;
+    }
+
+    /**
+     * <p>Number of peers in the table.</p>
+     * @return  number of peers
+     */
+    public synchronized int size () {
+        int size = 0;
+        for (LinkedList<Entry> bucket : buckets) {
+            size += bucket.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * <p>Gets {@link RoutingTable#own}.</p>
+     * @return  {@link RoutingTable#own}
+     */
+    public NodeId getOwn () {
+        return own;
+    }
+
+    /**
+     * <p>Peer with its calculated id.</p>
+     */
+    private static class Entry {
+
+        /**
+         * <p>Peer of this entry.</p>
+         */
+        private final Peer peer;
+
+        /**
+         * <p>Id of {@link Entry#peer}.</p>
+         */
+        private final NodeId id;
+
+        /**
+         * <p>Creates an entry.</p>
+         * @param peer  peer
+         * @param id    id of peer
+         */
+        Entry (Peer peer, NodeId id) {
+            this.peer = peer;
+            this.id = id;
+        }
+    }
+}
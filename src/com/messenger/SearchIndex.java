@@ -0,0 +1,275 @@
+package com.messenger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+
+/**
+ * <p>Inverted index of the words of messages. Every word has a
+ * posting list of the positions of the messages, that contain it,
+ * in ascending order.</p>
+ * <p>A posting list is kept compressed as the differences of its
+ * positions in a variable length encoding, 7 bits per byte with the
+ * highest bit set on all bytes except the last. Neighbouring messages
+ * differ by a few hundred bytes, so most entries take one or two
+ * bytes instead of eight.</p>
+ * <p>A search decodes the posting lists of its words, starting with
+ * the shortest one, and intersects them, so only messages with all
+ * words are found.</p>
+ */
+public class SearchIndex {
+
+    /**
+     * <p>Maximum length of an indexed word,
+     * longer words are not indexed.</p>
+     */
+    private static final int MAX_WORD = 64;
+
+    /**
+     * <p>Posting list of every word.</p>
+     */
+    private final HashMap<String, Postings> words = new HashMap<>();
+
+    /**
+     * <p>Bytes of all posting lists.</p>
+     */
+    private long bytes;
+
+    /**
+     * <p>Splits a text into lower case words of letters
+     * and digits, without duplicates.</p>
+     * @param text  text
+     * @return  words in order of their first occurrence
+     */
+    public static LinkedHashSet<String> tokenize (String text) {
+        LinkedHashSet<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start <= MAX_WORD) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * <p>Adds a message to the posting lists of its words.
+     * Positions have to be added in ascending order.</p>
+     * @param position  position of the message
+     * @param text      text of the message
+     */
+    public synchronized void add (long position, String text) {
+        for (String token : tokenize(text)) {
+            Postings postings = words.computeIfAbsent(token, key -> new Postings());
+            bytes -= postings.data.length;
+            postings.add(position);
+            bytes += postings.data.length;
+        }
+    }
+
+    /**
+     * <p>Finds the last messages, that contain all words
+     * of a query.</p>
+     * @param query words to search for
+     * @param limit maximum number of positions
+     * @return  positions in ascending order
+     */
+    public synchronized long[] find (String query, int limit) {
+        ArrayList<Postings> lists = new ArrayList<>();
+        for (String token : tokenize(query)) {
+            Postings postings = words.get(token);
+            if (postings == null) {
+                return new long[0];
+            }
+            lists.add(postings);
+        }
+
+        if (lists.isEmpty()) {
+            return new long[0];
+        }
+
+        lists.sort((a, b) -> Integer.compare(a.count, b.count));
+        long[] result = lists.get(0).decode();
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i).decode());
+        }
+
+        return result.length > limit ? Arrays.copyOfRange(result, result.length - limit, result.length) : result;
+    }
+
+    /**
+     * <p>Intersects two ascending lists of positions.</p>
+     * @param a first list
+     * @param b second list
+     * @return  positions of both lists
+     */
+    private static long[] intersect (long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * <p>Removes all positions before a position, after
+     * the messages were deleted.</p>
+     * @param floor first position, that is kept
+     */
+    public synchronized void prune (long floor) {
+        Iterator<Postings> iterator = words.values().iterator();
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next();
+            if (postings.last < floor) {
+                bytes -= postings.data.length;
+                iterator.remove();
+            } else if (postings.first < floor) {
+                bytes -= postings.data.length;
+                Postings kept = new Postings();
+                for (long position : postings.decode()) {
+                    if (position >= floor) {
+                        kept.add(position);
+                    }
+                }
+                postings.replace(kept);
+                bytes += postings.data.length;
+            }
+        }
+    }
+
+    /**
+     * <p>Gets the number of indexed words.</p>
+     * @return  number of words
+     */
+    public synchronized int getWords () {
+        return words.size();
+    }
+
+    /**
+     * <p>Gets the memory of all posting lists.</p>
+     * @return  size in bytes
+     */
+    public synchronized long getBytes () {
+        return bytes;
+    }
+
+    /**
+     * <p>Compressed posting list of a word.</p>
+     */
+    private static final class Postings {
+
+        /**
+         * <p>Encoded differences, the array grows
+         * by doubling.</p>
+         */
+        byte[] data = new byte[4];
+
+        /**
+         * <p>Number of used bytes.</p>
+         */
+        int length;
+
+        /**
+         * <p>Number of positions.</p>
+         */
+        int count;
+
+        /**
+         * <p>First position.</p>
+         */
+        long first;
+
+        /**
+         * <p>Last position, the next difference
+         * is taken from it.</p>
+         */
+        long last;
+
+        /**
+         * <p>Appends a position, a position equal
+         * to the last one is ignored.</p>
+         * @param position  position after {@link Postings#last}
+         */
+        void add (long position) {
+            if (count > 0 && position <= last) {
+                return;
+            }
+
+            long delta = position - last;
+            if (length + 10 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            }
+
+            while ((delta & ~0x7FL) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+
+            if (count == 0) {
+                first = position;
+            }
+            last = position;
+            count++;
+        }
+
+        /**
+         * <p>Decodes all positions.</p>
+         * @return  positions in ascending order
+         */
+        long[] decode () {
+            long[] positions = new long[count];
+            long position = 0;
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[offset++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+
+                position += delta;
+                positions[i] = position;
+            }
+
+            return positions;
+        }
+
+        /**
+         * <p>Takes the content of another list.</p>
+         * @param other other list
+         */
+        void replace (Postings other) {
+            data = Arrays.copyOf(other.data, other.length);
+            length = other.length;
+            count = other.count;
+            first = other.first;
+            last = other.last;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.messenger;
+
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Detects writes, that block, because a peer does not read
+ * and its socket buffer is full. Frames are written by the writer
+ * of each connection, so a blocked write holds up a writer thread
+ * and all frames queued for the peer, until it is noticed.</p>
+ * <p>A connection, that is blocked longer than {@code send.stall}
+ * milliseconds, is degraded and only takes MESSAGE frames, that are
+ * bounded by its send window, until the write finishes. After
+ * {@code send.deadline} milliseconds its channel is closed, so the
+ * blocked thread continues, and the {@link StallListener} of the
+ * connection is notified. A deadline of 0 disables the watchdog.</p>
+ */
+public final class SendWatchdog extends Thread {
+
+    /**
+     * <p>Time in nanoseconds, after that a
+     * blocked connection is degraded.</p>
+     */
+    static final long STALL = TimeUnit.MILLISECONDS.toNanos(Configuration.getInt("send.stall", 1000));
+
+    /**
+     * <p>Time in nanoseconds, after that the channel
+     * of a blocked connection is closed.</p>
+     */
+    static final long DEADLINE = TimeUnit.MILLISECONDS.toNanos(Configuration.getInt("send.deadline", 5000));
+
+    /**
+     * <p>Watchdog of all connections, started on first use.</p>
+     */
+    private static SendWatchdog shared;
+
+    /**
+     * <p>Number of degraded connections.</p>
+     */
+    private static final AtomicLong degraded = new AtomicLong();
+
+    /**
+     * <p>Number of closed connections.</p>
+     */
+    private static final AtomicLong aborted = new AtomicLong();
+
+    /**
+     * <p>Open connections.</p>
+     */
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * <p>Creates the watchdog thread.</p>
+     */
+    private SendWatchdog () {
+        super("send-watchdog");
+        setDaemon(true);
+    }
+
+    /**
+     * <p>Gets the watchdog, starts it on first use.</p>
+     * @return  shared watchdog
+     */
+    private static synchronized SendWatchdog get () {
+        if (shared == null) {
+            shared = new SendWatchdog();
+            shared.start();
+        }
+
+        return shared;
+    }
+
+    /**
+     * <p>Watches the writes of an open connection.</p>
+     * @param connection    connection
+     */
+    static void watch (Connection connection) {
+        if (DEADLINE > 0) {
+            get().connections.add(connection);
+        }
+    }
+
+    /**
+     * <p>Stops watching a closed or suspended connection.</p>
+     * @param connection    connection
+     */
+    static void forget (Connection connection) {
+        SendWatchdog watchdog;
+        synchronized (SendWatchdog.class) {
+            watchdog = shared;
+        }
+
+        if (watchdog != null) {
+            watchdog.connections.remove(connection);
+        }
+    }
+
+    /**
+     * <p>Checks all connections four times per
+     * {@link SendWatchdog#STALL}.</p>
+     */
+    @Override
+    public void run () {
+        long tick = Math.max(10, TimeUnit.NANOSECONDS.toMillis(Math.min(STALL, DEADLINE)) / 4);
+        while (true) {
+            try {
+                sleep(tick);
+            } catch (InterruptedException e) {
+                System.err.println("> [" + new Date().toString() + "] Error: Send watchdog interrupted.");
+                return;
+            }
+
+            long now = System.nanoTime();
+            for (Connection connection : connections) {
+                long blocked = connection.getBlocked(now);
+                if (blocked > DEADLINE) {
+                    if (connection.abort()) {
+                        aborted.incrementAndGet();
+                    }
+                } else if (blocked > STALL && connection.degrade()) {
+                    degraded.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Gets the number of connections, that
+     * were degraded.</p>
+     * @return  degraded connections
+     */
+    public static long getDegraded () {
+        return degraded.get();
+    }
+
+    /**
+     * <p>Gets the number of connections, that were
+     * closed at the send deadline.</p>
+     * @return  closed connections
+     */
+    public static long getAborted () {
+        return aborted.get();
+    }
+}
@@ -0,0 +1,179 @@
+package com.messenger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>Sliding send window of a {@link Connection}. MESSAGE frames
+ * get a sequence number and are kept until the peer acknowledges
+ * them with a cumulative ACK. Up to {@link SendWindow#size} frames
+ * can be in flight, so sending never waits for a round trip.
+ * Frames beyond the window are queued. Not thread safe, the
+ * connection synchronizes access.</p>
+ */
+public class SendWindow {
+
+    /**
+     * <p>Random id of this window. Lets the receiver tell
+     * sequence numbers of a new connection apart from
+     * retransmissions of an old one.</p>
+     */
+    private final long epoch;
+
+    /**
+     * <p>Maximum number of unacknowledged frames.</p>
+     */
+    private final int size;
+
+    /**
+     * <p>Maximum number of queued frames.</p>
+     */
+    private final int capacity;
+
+    /**
+     * <p>Sequence number of the next frame.</p>
+     */
+    private long next = 1;
+
+    /**
+     * <p>Sent, but unacknowledged frames, oldest first.</p>
+     */
+    private final ArrayDeque<Frame> unacknowledged = new ArrayDeque<>();
+
+    /**
+     * <p>Messages of {@link SendWindow#unacknowledged}, as
+     * they were given to {@link SendWindow#add(Message)}.</p>
+     */
+    private final ArrayDeque<Message> originals = new ArrayDeque<>();
+
+    /**
+     * <p>Messages waiting for space in the window.</p>
+     */
+    private final ArrayDeque<Message> queued = new ArrayDeque<>();
+
+    /**
+     * <p>Creates an empty window.</p>
+     * @param size      maximum number of unacknowledged frames
+     * @param capacity  maximum number of queued frames
+     */
+    public SendWindow (int size, int capacity) {
+        this(size, capacity, ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE));
+    }
+
+    /**
+     * <p>Creates an empty window with the given epoch.</p>
+     * @param size      maximum number of unacknowledged frames
+     * @param capacity  maximum number of queued frames
+     * @param epoch     random id of the window, greater than 0
+     */
+    public SendWindow (int size, int capacity, long epoch) {
+        this.size = size;
+        this.capacity = capacity;
+        this.epoch = epoch;
+    }
+
+    /**
+     * <p>Checks if another frame fits into the window.</p>
+     * @return  is window open
+     */
+    public boolean isOpen () {
+        return unacknowledged.size() < size && queued.isEmpty();
+    }
+
+    /**
+     * <p>Numbers a message and keeps it until it is acknowledged.</p>
+     * @param message   MESSAGE to send
+     * @return  numbered frame, ready to be written
+     */
+    public Frame add (Message message) {
+        Message numbered = new Message(message.getCommand(), message.getPeer(), message.getText());
+        numbered.setSequence(epoch, next++);
+        numbered.setTimestamp(message.getTimestamp(), message.getHops());
+
+        Frame frame = new Frame(numbered);
+        unacknowledged.addLast(frame);
+        originals.addLast(message);
+        return frame;
+    }
+
+    /**
+     * <p>Queues a message, while the window is closed.</p>
+     * @param message   MESSAGE to send later
+     * @return  {@code false} if the queue is full
+     */
+    public boolean queue (Message message) {
+        if (queued.size() >= capacity) {
+            return false;
+        }
+
+        queued.addLast(message);
+        return true;
+    }
+
+    /**
+     * <p>Removes all frames up to the acknowledged sequence
+     * number and moves queued messages into the window.</p>
+     * @param ackEpoch      epoch of the acknowledgement
+     * @param ackSequence   highest received sequence number
+     * @param delivered     receives the acknowledged messages, as they were sent
+     * @param released      receives the numbered frames, that fit into the window now
+     */
+    public void acknowledge (long ackEpoch, long ackSequence, ArrayList<Message> delivered, ArrayList<Frame> released) {
+        if (ackEpoch != epoch) {
+            return;
+        }
+
+        while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().getMessage().getSequence() <= ackSequence) {
+            unacknowledged.pollFirst();
+            delivered.add(originals.pollFirst());
+        }
+
+        while (!queued.isEmpty() && unacknowledged.size() < size) {
+            released.add(add(queued.pollFirst()));
+        }
+    }
+
+    /**
+     * <p>Gets the sequence number of the oldest
+     * unacknowledged frame.</p>
+     * @return  sequence number, 0 when all frames are acknowledged
+     */
+    public long getOldest () {
+        return unacknowledged.isEmpty() ? 0 : unacknowledged.peekFirst().getMessage().getSequence();
+    }
+
+    /**
+     * <p>Gets {@link SendWindow#unacknowledged}, in the
+     * order they have to be retransmitted.</p>
+     * @return  {@link SendWindow#unacknowledged}
+     */
+    public ArrayDeque<Frame> getUnacknowledged () {
+        return unacknowledged;
+    }
+
+    /**
+     * <p>Removes all sent and queued messages, the
+     * sequence numbers go on.</p>
+     * @return  messages as they were sent, oldest first
+     */
+    public List<Message> clear () {
+        ArrayList<Message> messages = new ArrayList<>(originals);
+        messages.addAll(queued);
+
+        unacknowledged.clear();
+        originals.clear();
+        queued.clear();
+        return messages;
+    }
+
+    /**
+     * <p>Number of frames, that are sent or queued
+     * but not acknowledged.</p>
+     * @return  number of pending frames
+     */
+    public int pending () {
+        return unacknowledged.size() + queued.size();
+    }
+}
@@ -0,0 +1,528 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * <p>In-memory network of {@link Application} nodes on virtual
+ * time. Nodes have no threads. Frames and timer procedures are
+ * events of one queue, that is processed in order of time by
+ * the calling thread, so hours of protocol time pass in seconds
+ * and a run is reproducible from its seed.</p>
+ * <p>Links keep the order of their frames like TCP. Every frame
+ * is delayed by the latency plus a random jitter. With the
+ * configured probability a frame is lost, which stands for a
+ * connection reset in the middle of a frame: like TCP, that never
+ * loses a frame without breaking the connection, the write fails
+ * and the link is closed, so the sender reconnects and retransmits.
+ * Nodes in different partitions can not connect and frames between
+ * them are dropped, like on a link that silently stopped working.</p>
+ */
+public class SimulatedNetwork implements Clock {
+
+    /**
+     * <p>Current virtual time in milliseconds.</p>
+     */
+    private long now;
+
+    /**
+     * <p>Scheduled events, ordered by time and
+     * order of scheduling.</p>
+     */
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+    /**
+     * <p>Number of scheduled events, breaks ties
+     * between events of the same time.</p>
+     */
+    private long scheduled;
+
+    /**
+     * <p>Only random source of the network.</p>
+     */
+    private final Random random;
+
+    /**
+     * <p>Seed of {@link SimulatedNetwork#random}.</p>
+     */
+    private final long seed;
+
+    /**
+     * <p>Minimum delay of a frame in milliseconds.</p>
+     */
+    private final int latency;
+
+    /**
+     * <p>Maximum random delay on top of
+     * {@link SimulatedNetwork#latency} in milliseconds.</p>
+     */
+    private final int jitter;
+
+    /**
+     * <p>Probability of a frame to be lost.</p>
+     */
+    private final double loss;
+
+    /**
+     * <p>Running nodes by their address.</p>
+     */
+    private final HashMap<Peer, Application> nodes = new HashMap<>();
+
+    /**
+     * <p>Partition of nodes, that were split off by
+     * {@link SimulatedNetwork#partition(Collection)}. All
+     * other nodes are in partition 0.</p>
+     */
+    private final HashMap<Peer, Integer> partitions = new HashMap<>();
+
+    /**
+     * <p>Number of the last created partition.</p>
+     */
+    private int lastPartition;
+
+    /**
+     * <p>Number of frames written to links.</p>
+     */
+    private long sent;
+
+    /**
+     * <p>Number of frames handed to their receiver.</p>
+     */
+    private long delivered;
+
+    /**
+     * <p>Number of lost frames and frames, that were
+     * dropped by a partition or a crashed receiver.</p>
+     */
+    private long dropped;
+
+    /**
+     * <p>Number of frames on their way.</p>
+     */
+    private long inFlight;
+
+    /**
+     * <p>Creates an empty network.</p>
+     * @param seed      seed of all random decisions
+     * @param latency   minimum delay of a frame in milliseconds
+     * @param jitter    maximum random delay on top in milliseconds
+     * @param loss      probability of a frame to be lost (0 to 1)
+     */
+    public SimulatedNetwork (long seed, int latency, int jitter, double loss) {
+        this.random = new Random(seed);
+        this.seed = seed;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.loss = loss;
+    }
+
+    /**
+     * <p>Gets the virtual time.</p>
+     * @return  {@link SimulatedNetwork#now}
+     */
+    @Override
+    public long millis () {
+        return now;
+    }
+
+    /**
+     * <p>Starts a node. Its timer procedure runs every
+     * {@link Application#REFRESH_INTERVAL} milliseconds,
+     * starting at a random offset like on nodes that were
+     * not started at the same moment.</p>
+     * @param peer  address of the node
+     * @return  node
+     */
+    public Application start (Peer peer) {
+        // nodes have no threads and draw their send window epochs from the seed
+        Application node = new Application(peer, target -> connect(peer, target), this, Runnable::run,
+                new Random(random.nextLong()));
+        nodes.put(peer, node);
+        refresh(peer, node, 1 + random.nextInt((int) Application.REFRESH_INTERVAL));
+        return node;
+    }
+
+    /**
+     * <p>Runs the timer procedure of a node and schedules
+     * the next run, until the node is stopped.</p>
+     * @param peer  address of the node
+     * @param node  node
+     * @param delay delay in milliseconds
+     */
+    private void refresh (Peer peer, Application node, long delay) {
+        schedule(delay, () -> {
+            if (nodes.get(peer) == node) {
+                node.refresh();
+                refresh(peer, node, Application.REFRESH_INTERVAL);
+            }
+        });
+    }
+
+    /**
+     * <p>Stops a node without notifying anybody, like a
+     * crashed process or a pulled cable. Frames on their
+     * way to the node are dropped.</p>
+     * @param peer  address of the node
+     */
+    public void crash (Peer peer) {
+        nodes.remove(peer);
+    }
+
+    /**
+     * <p>Stops a node after it sent DISCONNECT to its peer
+     * list, like the EXIT command does.</p>
+     * @param peer  address of the node
+     */
+    public void leave (Peer peer) {
+        Application node = nodes.get(peer);
+        if (node != null) {
+            node.removeAll();
+            nodes.remove(peer);
+        }
+    }
+
+    /**
+     * <p>Splits the given nodes off into a new partition.</p>
+     * @param side  nodes of the new partition
+     */
+    public void partition (Collection<Peer> side) {
+        lastPartition++;
+        for (Peer peer : side) {
+            partitions.put(peer, lastPartition);
+        }
+    }
+
+    /**
+     * <p>Joins all partitions again.</p>
+     */
+    public void heal () {
+        partitions.clear();
+    }
+
+    /**
+     * <p>Checks if two nodes are in the same partition.</p>
+     * @param a first node
+     * @param b second node
+     * @return  {@code true} if frames can pass between them
+     */
+    public boolean reachable (Peer a, Peer b) {
+        return partitions.getOrDefault(a, 0).equals(partitions.getOrDefault(b, 0));
+    }
+
+    /**
+     * <p>Schedules a task on virtual time.</p>
+     * @param delay delay in milliseconds
+     * @param task  task to run
+     */
+    public void schedule (long delay, Runnable task) {
+        events.add(new Event(now + delay, scheduled++, task));
+    }
+
+    /**
+     * <p>Processes all events up to the given time and
+     * sets the virtual time to it.</p>
+     * @param time  virtual time in milliseconds
+     */
+    public void runUntil (long time) {
+        while (!events.isEmpty() && events.peek().time <= time) {
+            Event event = events.poll();
+            now = event.time;
+            event.task.run();
+        }
+
+        now = Math.max(now, time);
+    }
+
+    /**
+     * <p>Processes all events of the next milliseconds.</p>
+     * @param millis    duration in milliseconds
+     */
+    public void runFor (long millis) {
+        runUntil(now + millis);
+    }
+
+    /**
+     * <p>Opens a link between two nodes.</p>
+     * @param source    connecting node
+     * @param target    node to connect to
+     * @return  link
+     * @throws IOException  when the target is not running or in another partition
+     */
+    private ByteChannel connect (Peer source, Peer target) throws IOException {
+        if (!nodes.containsKey(target) || !reachable(source, target)) {
+            throw new ConnectException("Connection refused: " + target.getHostName() + ":" + target.getPort());
+        }
+
+        return new Link(source, target);
+    }
+
+    /**
+     * <p>Gets a running node.</p>
+     * @param peer  address of the node
+     * @return  node or {@code null}, when it is not running
+     */
+    public Application getNode (Peer peer) {
+        return nodes.get(peer);
+    }
+
+    /**
+     * <p>Gets all running nodes.</p>
+     * @return  running nodes
+     */
+    public Collection<Application> getNodes () {
+        return nodes.values();
+    }
+
+    /**
+     * <p>Gets {@link SimulatedNetwork#seed}.</p>
+     * @return  {@link SimulatedNetwork#seed}
+     */
+    public long getSeed () {
+        return seed;
+    }
+
+    /**
+     * <p>Gets {@link SimulatedNetwork#sent}.</p>
+     * @return  {@link SimulatedNetwork#sent}
+     */
+    public long getSent () {
+        return sent;
+    }
+
+    /**
+     * <p>Gets {@link SimulatedNetwork#delivered}.</p>
+     * @return  {@link SimulatedNetwork#delivered}
+     */
+    public long getDelivered () {
+        return delivered;
+    }
+
+    /**
+     * <p>Gets {@link SimulatedNetwork#dropped}.</p>
+     * @return  {@link SimulatedNetwork#dropped}
+     */
+    public long getDropped () {
+        return dropped;
+    }
+
+    /**
+     * <p>Gets {@link SimulatedNetwork#inFlight}.</p>
+     * @return  {@link SimulatedNetwork#inFlight}
+     */
+    public long getInFlight () {
+        return inFlight;
+    }
+
+    /**
+     * <p>Task on virtual time.</p>
+     */
+    private static class Event implements Comparable<Event> {
+
+        /**
+         * <p>Virtual time in milliseconds.</p>
+         */
+        private final long time;
+
+        /**
+         * <p>Order of scheduling.</p>
+         */
+        private final long order;
+
+        /**
+         * <p>Task to run.</p>
+         */
+        private final Runnable task;
+
+        /**
+         * <p>Creates an event.</p>
+         * @param time  virtual time in milliseconds
+         * @param order order of scheduling
+         * @param task  task to run
+         */
+        Event (long time, long order, Runnable task) {
+            this.time = time;
+            this.order = order;
+            this.task = task;
+        }
+
+        /**
+         * <p>Compares by time, then by order of scheduling.</p>
+         * @param o other event
+         * @return  comparison result
+         */
+        @Override
+        public int compareTo (Event o) {
+            int result = Long.compare(time, o.time);
+            return result != 0 ? result : Long.compare(order, o.order);
+        }
+    }
+
+    /**
+     * <p>Simplex link from one node to another. Every
+     * written line is delivered as one frame.</p>
+     */
+    private class Link implements ByteChannel {
+
+        /**
+         * <p>Writing node.</p>
+         */
+        private final Peer source;
+
+        /**
+         * <p>Receiving node.</p>
+         */
+        private final Peer target;
+
+        /**
+         * <p>Arrival time of the last frame, later
+         * frames never overtake it.</p>
+         */
+        private long lastArrival;
+
+        /**
+         * <p>Start of a line, that was not terminated
+         * by the last write.</p>
+         */
+        private byte[] pending = new byte[0];
+
+        /**
+         * <p>Status of the link.</p>
+         */
+        private boolean open = true;
+
+        /**
+         * <p>The writing node poked the receiving node
+         * through this link.</p>
+         */
+        private boolean poked;
+
+        /**
+         * <p>Number of frames sent through this link.</p>
+         */
+        private long frames;
+
+        /**
+         * <p>Creates a link.</p>
+         * @param source    writing node
+         * @param target    receiving node
+         */
+        Link (Peer source, Peer target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        /**
+         * <p>Links are simplex, there is nothing to read.</p>
+         * @param dst   buffer
+         * @return  always -1
+         */
+        @Override
+        public int read (ByteBuffer dst) {
+            return -1;
+        }
+
+        /**
+         * <p>Sends every complete line of the buffer as
+         * a frame.</p>
+         * @param src   bytes to write
+         * @return  number of written bytes
+         * @throws IOException  when the link is closed or reset
+         */
+        @Override
+        public int write (ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            int length = src.remaining();
+            byte[] bytes = new byte[pending.length + length];
+            System.arraycopy(pending, 0, bytes, 0, pending.length);
+            src.get(bytes, pending.length, length);
+
+            int start = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    send(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+
+            pending = new byte[bytes.length - start];
+            System.arraycopy(bytes, start, pending, 0, pending.length);
+            return length;
+        }
+
+        /**
+         * <p>Schedules the delivery of a frame. A lost frame
+         * resets the link, later frames are never delivered.</p>
+         * @param line  frame without line separator
+         * @throws IOException  when the frame is lost
+         */
+        private void send (String line) throws IOException {
+            sent++;
+            if (loss > 0 && random.nextDouble() < loss) {
+                dropped++;
+                open = false;
+                throw new IOException("Connection reset");
+            }
+
+            poked |= line.startsWith("POKE");
+            frames++;
+            long arrival = Math.max(now + latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0), lastArrival);
+            lastArrival = arrival;
+            inFlight++;
+            schedule(arrival - now, () -> {
+                inFlight--;
+                Application node = nodes.get(target);
+                if (node == null || !reachable(source, target)) {
+                    dropped++;
+                    return;
+                }
+
+                delivered++;
+                node.deliver(line);
+            });
+        }
+
+        /**
+         * <p>Checks if the link is open.</p>
+         * @return  {@link Link#open}
+         */
+        @Override
+        public boolean isOpen () {
+            return open;
+        }
+
+        /**
+         * <p>Closes the link. Frames on their way are still
+         * delivered, the end of the stream arrives after them.
+         * A reset link ended without it.</p>
+         */
+        @Override
+        public void close () {
+            if (!open) {
+                return;
+            }
+
+            open = false;
+            // a temporary link carries a single frame
+            if (poked && frames > 1) {
+                long arrival = Math.max(now + latency, lastArrival);
+                schedule(arrival - now, () -> {
+                    Application node = nodes.get(target);
+                    if (node != null && reachable(source, target)) {
+                        node.linkClosed(source);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.messenger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Bounded lock-free queue for exactly one producer and one
+ * consumer at a time. Producers may change, as long as they are
+ * ordered by a lock, like the writers of a {@link Connection}.
+ * Each side keeps a cached copy of the other side's index, so
+ * the shared indices are only read when the cached one says the
+ * queue is full or empty.</p>
+ * @param <E>   type of elements
+ */
+public final class SpscQueue<E> {
+
+    /**
+     * <p>Ring buffer, its length is a power of two.</p>
+     */
+    private final AtomicReferenceArray<E> buffer;
+
+    /**
+     * <p>Length of {@link SpscQueue#buffer} minus one.</p>
+     */
+    private final int mask;
+
+    /**
+     * <p>Index of the next element to poll,
+     * written by the consumer.</p>
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * <p>Index of the next free slot,
+     * written by the producer.</p>
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * <p>Last seen {@link SpscQueue#head}, only
+     * used by the producer.</p>
+     */
+    private long headCache;
+
+    /**
+     * <p>Last seen {@link SpscQueue#tail}, only
+     * used by the consumer.</p>
+     */
+    private long tailCache;
+
+    /**
+     * <p>Creates an empty queue.</p>
+     * @param capacity  minimum capacity, rounded up to a power of two
+     */
+    public SpscQueue (int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buffer = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * <p>Adds an element. Only called by the producer.</p>
+     * @param element   element, not null
+     * @return  {@code false} if the queue is full
+     */
+    public boolean offer (E element) {
+        long t = tail.get();
+        if (t - headCache > mask) {
+            headCache = head.get();
+            if (t - headCache > mask) {
+                return false;
+            }
+        }
+
+        buffer.lazySet((int) t & mask, element);
+        // publishes the element
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * <p>Takes the oldest element. Only called by the consumer.</p>
+     * @return  element or {@code null}, when the queue is empty
+     */
+    public E poll () {
+        long h = head.get();
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+
+        int index = (int) h & mask;
+        E element = buffer.get(index);
+        buffer.lazySet(index, null);
+        // frees the slot for the producer
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * <p>Checks if the queue is empty. Can be called
+     * from any thread.</p>
+     * @return  is queue empty
+     */
+    public boolean isEmpty () {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * <p>Number of elements. Can be called from
+     * any thread.</p>
+     * @return  number of elements
+     */
+    public int size () {
+        return (int) Math.max(tail.get() - head.get(), 0);
+    }
+}
@@ -0,0 +1,15 @@
+package com.messenger;
+
+/**
+ * <p>Gets notified, when a peer did not read from
+ * a {@link Connection} until the send deadline.</p>
+ */
+public interface StallListener {
+
+    /**
+     * <p>Called once, after the channel of the
+     * connection was closed.</p>
+     * @param connection    stalled connection
+     */
+    void stalled (Connection connection);
+}
@@ -0,0 +1,198 @@
+package com.messenger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Loopback benchmark of the TLS transport against plain TCP.
+ * Measures the cost of a connection like the ones of CONNECT and
+ * ACKs (connect, handshake, one line, close) with a full handshake
+ * and with a resumed session, and the throughput of one long
+ * connection. Key material is read like by the messenger.
+ *
+ * Example:
+ * "java -Dmessenger.tls.keystore=node.p12 -Dmessenger.tls.password=secret
+ * -cp messenger.jar com.messenger.TlsBenchmark 500 256"</p>
+ */
+public class TlsBenchmark {
+
+    /**
+     * <p>Length of a line in the throughput test.</p>
+     */
+    private static final int LINE = 1024;
+
+    /**
+     * <p>Bytes received by the server, over all connections.</p>
+     */
+    private static final AtomicLong received = new AtomicLong();
+
+    /**
+     * <p>Runs all measurements.</p>
+     * @param args  expecting (int) connections, (int) megabytes, optional
+     * @throws IOException  when the benchmark server can not be started
+     */
+    public static void main (String[] args) throws IOException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        SSLContext context = TlsContext.create();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        Peer peer = new Peer("127.0.0.1", port);
+
+        // server handles plain and TLS connections, the mode of the next accept is set before connecting
+        boolean[] tls = new boolean[1];
+        Thread acceptor = new Thread(() -> accept(server, context, tls), "acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        System.out.println(connections + " connections per mode, " + megabytes + " MB throughput, protocols " +
+                Configuration.getString("tls.protocols", "TLSv1.2"));
+        System.out.println(String.format("%-14s | %12s %12s", "mode", "connect avg", "throughput"));
+
+        tls[0] = false;
+        connects(connections / 5, peer, null, false);
+        double plain = connects(connections, peer, null, false);
+        double plainThroughput = throughput(megabytes, peer, null);
+        System.out.println(String.format("%-14s | %9.0f us %7.1f MB/s", "plain", plain, plainThroughput));
+
+        tls[0] = true;
+        connects(connections / 5, peer, context, false);
+        double full = connects(connections, peer, context, false);
+        System.out.println(String.format("%-14s | %9.0f us %12s", "tls full", full, "-"));
+
+        double resumed = connects(connections, peer, context, true);
+        double tlsThroughput = throughput(megabytes, peer, context);
+        System.out.println(String.format("%-14s | %9.0f us %7.1f MB/s", "tls resumed", resumed, tlsThroughput));
+
+        System.out.println(String.format("resumed %d of %d handshakes, full handshake %.1fx, resumed %.1fx, throughput %.2fx of plain",
+                TlsContext.getResumed(), TlsContext.getHandshakes(), full / plain, resumed / plain, tlsThroughput / plainThroughput));
+        System.exit(0);
+    }
+
+    /**
+     * <p>Accepts connections and discards everything they send.</p>
+     * @param server    server socket
+     * @param context   context of TLS connections
+     * @param tls       mode of the next connections
+     */
+    private static void accept (ServerSocketChannel server, SSLContext context, boolean[] tls) {
+        try {
+            while (true) {
+                SocketChannel socket = server.accept();
+                boolean encrypted = tls[0];
+                Thread reader = new Thread(() -> {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+                    try (ByteChannel channel = encrypted ? TlsContext.handshake(socket, serverEngine(context)) : socket) {
+                        int read;
+                        while ((read = channel.read(buffer)) >= 0) {
+                            received.addAndGet(read);
+                            buffer.clear();
+                        }
+                    } catch (IOException e) {
+                        // closed by client
+                    }
+                });
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Benchmark server stopped.");
+        }
+    }
+
+    /**
+     * <p>Opens short connections like CONNECT does, sends
+     * one line and closes them.</p>
+     * @param count     number of connections
+     * @param peer      server
+     * @param context   context for TLS, null for plain connections
+     * @param resume    resume cached sessions
+     * @return  average time per connection in microseconds
+     * @throws IOException  when a connection fails
+     */
+    private static double connects (int count, Peer peer, SSLContext context, boolean resume) throws IOException {
+        ByteBuffer line = ByteBuffer.wrap(("POKE bench 127.0.0.1 " + peer.getPort() + "\n").getBytes());
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            SocketChannel socket = SocketChannel.open(new InetSocketAddress(peer.getHostName(), peer.getPort()));
+            ByteChannel channel = socket;
+            if (context != null) {
+                // engines without peer address never find a cached session
+                SSLEngine engine = resume ? context.createSSLEngine(peer.getHostName(), peer.getPort()) : context.createSSLEngine();
+                engine.setUseClientMode(true);
+                channel = TlsContext.handshake(socket, engine);
+            }
+
+            line.rewind();
+            channel.write(line);
+            channel.close();
+        }
+
+        return (System.nanoTime() - start) / 1000.0 / count;
+    }
+
+    /**
+     * <p>Sends lines over one connection, until the server
+     * received the given amount.</p>
+     * @param megabytes amount to send
+     * @param peer      server
+     * @param context   context for TLS, null for plain connections
+     * @return  throughput in megabytes per second
+     * @throws IOException  when the connection fails
+     */
+    private static double throughput (int megabytes, Peer peer, SSLContext context) throws IOException {
+        byte[] lines = new byte[64 * LINE];
+        Arrays.fill(lines, (byte) 'x');
+        for (int i = LINE - 1; i < lines.length; i += LINE) {
+            lines[i] = '\n';
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(lines.length);
+        buffer.put(lines);
+
+        long total = (long) megabytes << 20;
+        long before = received.get();
+
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(peer.getHostName(), peer.getPort()));
+        long start = System.nanoTime();
+        try (ByteChannel channel = context != null ? TlsContext.client(context, socket, peer) : socket) {
+            for (long sent = 0; sent < total; sent += lines.length) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                buffer.position(lines.length);
+            }
+
+            // wait for the server to read everything
+            while (received.get() - before < total) {
+                Thread.onSpinWait();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return megabytes / seconds;
+    }
+
+    /**
+     * <p>Creates an engine for the server side.</p>
+     * @param context   context
+     * @return  engine in server mode
+     */
+    private static SSLEngine serverEngine (SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(Configuration.getBoolean("tls.clientAuth", true));
+        return engine;
+    }
+}
@@ -0,0 +1,462 @@
+package com.messenger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>TLS on top of a {@link SocketChannel}, driven by an
+ * {@link SSLEngine}. The handshake is done completely in the
+ * constructor, afterwards the channel reads and writes plain
+ * bytes like the socket would. Reads follow the blocking mode
+ * of the socket, so a non-blocking read returns 0, when no
+ * complete record is available. One thread may read while
+ * another one writes.</p>
+ * <p>Record buffers are borrowed from the {@link BufferPool} for
+ * each read and write and returned, when they are empty, so an
+ * idle channel only holds a single byte to wait for the next
+ * record. A handshake, that takes longer than
+ * {@code tls.handshake.timeout} milliseconds, fails and closes
+ * the socket, 0 disables the timeout.</p>
+ * <p>The channel is closed without close_notify, so closing
+ * never waits for a peer, that does not read anymore. Messages
+ * are terminated lines, a truncated line is dropped anyway.</p>
+ */
+public class TlsChannel implements ByteChannel {
+
+    /**
+     * <p>Empty buffer to wrap handshake data.</p>
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * <p>Maximum time of a handshake in milliseconds.</p>
+     */
+    private static final int HANDSHAKE_TIMEOUT = Configuration.getInt("tls.handshake.timeout", 10000);
+
+    /**
+     * <p>Closes the sockets of handshakes, that
+     * are not finished in time.</p>
+     */
+    private static final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "tls-handshake");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * <p>Pool of the record buffers.</p>
+     */
+    private final BufferPool pool = BufferPool.shared();
+
+    /**
+     * <p>Underlying socket.</p>
+     */
+    private final SocketChannel socket;
+
+    /**
+     * <p>TLS state machine.</p>
+     */
+    private final SSLEngine engine;
+
+    /**
+     * <p>Waits for the first byte of the next record,
+     * before a buffer is borrowed.</p>
+     */
+    private final ByteBuffer probe = ByteBuffer.allocateDirect(1);
+
+    /**
+     * <p>Received records, that are not decrypted yet.
+     * Always in write mode. {@code null}, when empty.</p>
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * <p>Decrypted bytes, that were not read yet.
+     * Always in write mode. {@code null}, when empty.</p>
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * <p>Guards {@link TlsChannel#netIn} and {@link TlsChannel#appIn}.</p>
+     */
+    private final Object readLock = new Object();
+
+    /**
+     * <p>Keeps wrapped records of different
+     * threads from interleaving.</p>
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * <p>Session was resumed from the session cache
+     * instead of a full handshake.</p>
+     */
+    private final boolean resumed;
+
+    /**
+     * <p>Creates a channel and runs the handshake. The
+     * socket has to be connected and in blocking mode.</p>
+     * @param socket    connected socket
+     * @param engine    engine in client or server mode
+     * @throws IOException  when the handshake fails or times out
+     */
+    public TlsChannel (SocketChannel socket, SSLEngine engine) throws IOException {
+        this.socket = socket;
+        this.engine = engine;
+
+        long start = System.currentTimeMillis();
+        ScheduledFuture<?> deadline = null;
+        if (HANDSHAKE_TIMEOUT > 0) {
+            // a blocked read only returns, when the socket is closed
+            deadline = deadlines.schedule(() -> {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // closed anyway
+                }
+            }, HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            handshake();
+        } catch (IOException e) {
+            if (deadline != null && deadline.isDone()) {
+                throw new SSLException("Handshake timed out after " + HANDSHAKE_TIMEOUT + " ms.");
+            }
+            throw e;
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            synchronized (readLock) {
+                recycle();
+            }
+        }
+
+        // the deadline closed the socket just after the handshake
+        if (deadline != null && !deadline.isCancelled()) {
+            throw new SSLException("Handshake timed out after " + HANDSHAKE_TIMEOUT + " ms.");
+        }
+        // a resumed session keeps the creation time of its full handshake
+        resumed = engine.getSession().getCreationTime() < start;
+    }
+
+    /**
+     * <p>Runs the handshake in blocking mode.</p>
+     * @throws IOException  when the handshake fails
+     */
+    private void handshake () throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED &&
+                status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP: {
+                    synchronized (writeLock) {
+                        status = wrap(EMPTY).getHandshakeStatus();
+                    }
+                    break;
+                }
+
+                case NEED_TASK: {
+                    runTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                }
+
+                default: {
+                    // NEED_UNWRAP
+                    synchronized (readLock) {
+                        SSLEngineResult result = unwrap();
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            if (socket.read(ensure()) < 0) {
+                                throw new EOFException("Connection closed during handshake.");
+                            }
+                        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new EOFException("Connection closed during handshake.");
+                        }
+                        status = result.getHandshakeStatus();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Reads decrypted bytes. Returns 0, when the socket is
+     * non-blocking and no complete record is available.</p>
+     * @param dst   buffer to read into
+     * @return  number of bytes read or -1 at end of stream
+     * @throws IOException  when reading or decrypting fails
+     */
+    @Override
+    public int read (ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            try {
+                while (true) {
+                    if (appIn != null && appIn.position() > 0) {
+                        appIn.flip();
+                        int count = Math.min(appIn.remaining(), dst.remaining());
+                        int limit = appIn.limit();
+                        appIn.limit(appIn.position() + count);
+                        dst.put(appIn);
+                        appIn.limit(limit);
+                        appIn.compact();
+                        return count;
+                    }
+
+                    if (netIn != null && netIn.position() > 0) {
+                        SSLEngineResult result = unwrap();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            return -1;
+                        }
+
+                        if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            afterUnwrap(result);
+                            if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) {
+                                continue;
+                            }
+                        }
+                    } else {
+                        // nothing buffered, wait for the next record without a buffer
+                        probe.clear();
+                        int read = socket.read(probe);
+                        if (read <= 0) {
+                            return read;
+                        }
+                        probe.flip();
+                        ensure().put(probe);
+                    }
+
+                    int read = socket.read(ensure());
+                    if (read < 0) {
+                        return -1;
+                    } else if (read == 0) {
+                        return 0;
+                    }
+                }
+            } finally {
+                recycle();
+            }
+        }
+    }
+
+    /**
+     * <p>Answers post-handshake messages, like a key update,
+     * that need a response from the reading side.</p>
+     * @param result    result of an unwrap
+     * @throws IOException  when the response can not be sent
+     */
+    private void afterUnwrap (SSLEngineResult result) throws IOException {
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+            status = engine.getHandshakeStatus();
+        }
+
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            synchronized (writeLock) {
+                wrap(EMPTY);
+            }
+        }
+    }
+
+    /**
+     * <p>Encrypts and writes all bytes of the buffer.
+     * Blocks until they are written.</p>
+     * @param src   bytes to write
+     * @return  number of bytes written
+     * @throws IOException  when encrypting or writing fails
+     */
+    @Override
+    public int write (ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            int written = 0;
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                written += result.bytesConsumed();
+
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+            }
+
+            return written;
+        }
+    }
+
+    /**
+     * <p>Encrypts bytes into a borrowed buffer and writes
+     * them to the socket. Needs {@link TlsChannel#writeLock}.</p>
+     * @param src   bytes to encrypt, can be empty for handshake data
+     * @return  result of the wrap
+     * @throws IOException  when encrypting or writing fails
+     */
+    private SSLEngineResult wrap (ByteBuffer src) throws IOException {
+        ByteBuffer netOut = pool.acquire(engine.getSession().getPacketBufferSize());
+        try {
+            while (true) {
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    int capacity = netOut.capacity() * 2;
+                    pool.release(netOut);
+                    netOut = pool.acquire(capacity);
+                    continue;
+                }
+
+                netOut.flip();
+                while (netOut.hasRemaining()) {
+                    socket.write(netOut);
+                }
+                return result;
+            }
+        } finally {
+            pool.release(netOut);
+        }
+    }
+
+    /**
+     * <p>Decrypts records of {@link TlsChannel#netIn} into
+     * {@link TlsChannel#appIn}. Needs {@link TlsChannel#readLock}.</p>
+     * @return  result of the unwrap
+     * @throws SSLException when a record is invalid
+     */
+    private SSLEngineResult unwrap () throws SSLException {
+        ensure();
+        if (appIn == null) {
+            appIn = pool.acquire(engine.getSession().getApplicationBufferSize());
+        }
+
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                ByteBuffer larger = pool.acquire(appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                appIn.flip();
+                larger.put(appIn);
+                pool.release(appIn);
+                appIn = larger;
+                continue;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * <p>Borrows {@link TlsChannel#netIn} or makes room in
+     * it for at least one more record.</p>
+     * @return  {@link TlsChannel#netIn}
+     */
+    private ByteBuffer ensure () {
+        int packet = engine.getSession().getPacketBufferSize();
+        if (netIn == null) {
+            netIn = pool.acquire(packet);
+        } else if (netIn.remaining() < packet) {
+            ByteBuffer larger = pool.acquire(netIn.position() + packet);
+            netIn.flip();
+            larger.put(netIn);
+            pool.release(netIn);
+            netIn = larger;
+        }
+
+        return netIn;
+    }
+
+    /**
+     * <p>Returns empty read buffers to the pool.
+     * Needs {@link TlsChannel#readLock}.</p>
+     */
+    private void recycle () {
+        if (netIn != null && netIn.position() == 0) {
+            pool.release(netIn);
+            netIn = null;
+        }
+        if (appIn != null && appIn.position() == 0) {
+            pool.release(appIn);
+            appIn = null;
+        }
+    }
+
+    /**
+     * <p>Runs the delegated tasks of the engine, like
+     * certificate validation, in the current thread.</p>
+     */
+    private void runTasks () {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * <p>Gets the underlying socket, eg. to change
+     * its blocking mode.</p>
+     * @return  {@link TlsChannel#socket}
+     */
+    public SocketChannel getSocket () {
+        return socket;
+    }
+
+    /**
+     * <p>Gets {@link TlsChannel#resumed}.</p>
+     * @return  {@link TlsChannel#resumed}
+     */
+    public boolean isResumed () {
+        return resumed;
+    }
+
+    /**
+     * <p>Checks if the socket is open.</p>
+     * @return  is socket open
+     */
+    @Override
+    public boolean isOpen () {
+        return socket.isOpen();
+    }
+
+    /**
+     * <p>Closes the socket without close_notify. Bytes, that
+     * were not read, are dropped with their buffers.</p>
+     * @throws IOException  when closing fails
+     */
+    @Override
+    public void close () throws IOException {
+        // a blocked reader returns, when the socket is closed
+        socket.close();
+        synchronized (readLock) {
+            if (netIn != null) {
+                pool.release(netIn);
+                netIn = null;
+            }
+            if (appIn != null) {
+                pool.release(appIn);
+                appIn = null;
+            }
+        }
+    }
+}
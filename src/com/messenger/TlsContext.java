@@ -0,0 +1,247 @@
+package com.messenger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>TLS settings of the messenger. All connections share one
+ * {@link SSLContext}, so its session caches let a peer resume
+ * the session of an earlier connection to the same ip address
+ * and port instead of running a full handshake. That keeps the
+ * temporary connections of CONNECT, ACKs and suspended peers
+ * cheap. Enabled by {@code tls=true}, key and trust material is
+ * read from {@code tls.keystore} and {@code tls.truststore}.</p>
+ * <p>Peers are identified by ip address and port, so host names
+ * are not verified. Peers are trusted, when their certificate
+ * is signed by the trust store, and both sides of a connection
+ * have to present one ({@code tls.clientAuth}).</p>
+ */
+public final class TlsContext {
+
+    /**
+     * <p>TLS is enabled.</p>
+     */
+    private static final boolean enabled = Configuration.getBoolean("tls", false);
+
+    /**
+     * <p>Context shared by all connections, created
+     * on first use.</p>
+     */
+    private static SSLContext shared;
+
+    /**
+     * <p>Number of handshakes.</p>
+     */
+    private static final AtomicLong handshakes = new AtomicLong();
+
+    /**
+     * <p>Number of handshakes, that resumed a cached session.</p>
+     */
+    private static final AtomicLong resumed = new AtomicLong();
+
+    /**
+     * <p>Only static access.</p>
+     */
+    private TlsContext () {
+
+    }
+
+    /**
+     * <p>Checks if TLS is enabled.</p>
+     * @return  is TLS enabled
+     */
+    public static boolean isEnabled () {
+        return enabled;
+    }
+
+    /**
+     * <p>Gets the shared context, creates it on first use.</p>
+     * @return  shared context
+     * @throws IOException  when key or trust material can not be loaded
+     */
+    public static synchronized SSLContext shared () throws IOException {
+        if (shared == null) {
+            shared = create();
+        }
+
+        return shared;
+    }
+
+    /**
+     * <p>Creates a new context with an empty session cache
+     * from the configured key and trust stores.</p>
+     * @return  new context
+     * @throws IOException  when key or trust material can not be loaded
+     */
+    public static SSLContext create () throws IOException {
+        String keystore = Configuration.getString("tls.keystore", null);
+        if (keystore == null) {
+            throw new IOException("Setting messenger.tls.keystore is missing.");
+        }
+
+        char[] password = Configuration.getString("tls.password", "").toCharArray();
+        String truststore = Configuration.getString("tls.truststore", keystore);
+        char[] trustPassword = Configuration.getString("tls.truststore.password", new String(password)).toCharArray();
+
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keystore, password), password);
+
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(load(truststore, trustPassword));
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+
+            for (SSLSessionContext sessions : new SSLSessionContext[]{context.getClientSessionContext(), context.getServerSessionContext()}) {
+                sessions.setSessionCacheSize(Configuration.getInt("tls.session.cache", 4096));
+                sessions.setSessionTimeout(Configuration.getInt("tls.session.timeout", 86400));
+            }
+
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS context can not be created: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * <p>Loads a key store file, the type is detected
+     * from the file (PKCS12 or JKS).</p>
+     * @param path      path of key store
+     * @param password  password of key store
+     * @return  loaded key store
+     * @throws IOException  when the file can not be read
+     * @throws GeneralSecurityException when the file is no valid key store
+     */
+    private static KeyStore load (String path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(path)) {
+            store.load(in, password);
+        }
+
+        return store;
+    }
+
+    /**
+     * <p>Runs the client handshake on a connected socket.
+     * The engine is created for ip address and port of the peer,
+     * which is the key of the client session cache.</p>
+     * @param context   context to use
+     * @param socket    connected socket in blocking mode
+     * @param peer      peer the socket is connected to
+     * @return  encrypted channel
+     * @throws IOException  when the handshake fails, the socket is closed then
+     */
+    public static TlsChannel client (SSLContext context, SocketChannel socket, Peer peer) throws IOException {
+        SSLEngine engine = context.createSSLEngine(peer.getHostName(), peer.getPort());
+        engine.setUseClientMode(true);
+        return handshake(socket, engine);
+    }
+
+    /**
+     * <p>Runs the server handshake on an accepted socket.</p>
+     * @param context   context to use
+     * @param socket    accepted socket in blocking mode
+     * @return  encrypted channel
+     * @throws IOException  when the handshake fails, the socket is closed then
+     */
+    public static TlsChannel server (SSLContext context, SocketChannel socket) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(Configuration.getBoolean("tls.clientAuth", true));
+        return handshake(socket, engine);
+    }
+
+    /**
+     * <p>Applies the configured protocols and runs the handshake.</p>
+     * @param socket    socket in blocking mode
+     * @param engine    engine in client or server mode
+     * @return  encrypted channel
+     * @throws IOException  when the handshake fails, the socket is closed then
+     */
+    static TlsChannel handshake (SocketChannel socket, SSLEngine engine) throws IOException {
+        // TLS 1.3 sends session tickets after the handshake, but the
+        // client side of a connection never reads, so 1.2 is the default
+        engine.setEnabledProtocols(Configuration.getString("tls.protocols", "TLSv1.2").split(","));
+
+        try {
+            TlsChannel channel = new TlsChannel(socket, engine);
+            handshakes.incrementAndGet();
+            if (channel.isResumed()) {
+                resumed.incrementAndGet();
+            }
+            return channel;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Runs the client handshake on a connected socket,
+     * when TLS is enabled.</p>
+     * @param socket    connected socket in blocking mode
+     * @param peer      peer the socket is connected to
+     * @return  socket or encrypted channel
+     * @throws IOException  when the handshake fails, the socket is closed then
+     */
+    public static ByteChannel wrapClient (SocketChannel socket, Peer peer) throws IOException {
+        if (!enabled) {
+            return socket;
+        }
+
+        try {
+            return client(shared(), socket, peer);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Runs the server handshake on an accepted socket,
+     * when TLS is enabled.</p>
+     * @param socket    accepted socket in blocking mode
+     * @return  socket or encrypted channel
+     * @throws IOException  when the handshake fails, the socket is closed then
+     */
+    public static ByteChannel wrapServer (SocketChannel socket) throws IOException {
+        if (!enabled) {
+            return socket;
+        }
+
+        try {
+            return server(shared(), socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Gets {@link TlsContext#handshakes}.</p>
+     * @return  {@link TlsContext#handshakes}
+     */
+    public static long getHandshakes () {
+        return handshakes.get();
+    }
+
+    /**
+     * <p>Gets {@link TlsContext#resumed}.</p>
+     * @return  {@link TlsContext#resumed}
+     */
+    public static long getResumed () {
+        return resumed.get();
+    }
+}
@@ -0,0 +1,48 @@
+package com.messenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * <p>Opens the outgoing channels of {@link Connection}.
+ * Nodes use TCP sockets (with TLS, when enabled), a
+ * {@link SimulatedNetwork} replaces them with in-memory
+ * links.</p>
+ */
+public interface Transport {
+
+    /**
+     * <p>Time in milliseconds, a TCP connect may take,
+     * before the peer is seen as unreachable.</p>
+     */
+    int CONNECT_TIMEOUT = Configuration.getInt("connect.timeout", 5000);
+
+    /**
+     * <p>TCP sockets, encrypted when TLS is enabled. Connects
+     * fail after {@link Transport#CONNECT_TIMEOUT}, instead of
+     * the minutes the system retries a dead address.</p>
+     */
+    Transport SOCKET = peer -> {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.connect(new InetSocketAddress(peer.getHostName(), peer.getPort()), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return TlsContext.wrapClient(channel, peer);
+    };
+
+    /**
+     * <p>Opens a channel to a peer. Channels are simplex,
+     * they are only written to.</p>
+     * @param peer  peer to connect to
+     * @return  connected channel
+     * @throws IOException  when the peer can not be reached
+     */
+    ByteChannel connect (Peer peer) throws IOException;
+}
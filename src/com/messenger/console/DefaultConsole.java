@@ -1,21 +1,42 @@
 package com.messenger.console;
 
 import com.messenger.Application;
+import com.messenger.BufferPool;
+import com.messenger.Capture;
+import com.messenger.Configuration;
 import com.messenger.Connection;
+import com.messenger.ConnectionCache;
+import com.messenger.History;
+import com.messenger.LaneMetrics;
+import com.messenger.LatencyTracker;
 import com.messenger.Message;
 import com.messenger.Peer;
+import com.messenger.SearchIndex;
+import com.messenger.SendWatchdog;
+import com.messenger.TlsContext;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>Default console for rvs-messenger application.
  * We define the text interface methods right here, you
  * can use the following methods directly in the
  * unix/windows console: CONNECT, DISCONNECT, EXIT, M, MX,
- * HELP, PEERS.</p>
+ * HELP, PEERS, STATS, LATENCY, HISTORY, SEARCH.</p>
  */
 public class DefaultConsole extends Console {
 
+    /**
+     * <p>Maximum number of messages HISTORY prints.</p>
+     */
+    private static final int LINES = Configuration.getInt("history.lines", 100);
+
     /**
      * <p>Current application, the console
      * runs in.</p>
@@ -58,9 +79,7 @@ public class DefaultConsole extends Console {
                 int port = Integer.parseInt(args[1]);
 
                 // send a poke request to peer without adding it to peer list
-                Connection temp = new Connection(new Peer(ip, port));
-                temp.poke(application);
-                temp.close();
+                application.connect(new Peer(ip, port));
             } catch (NumberFormatException e) {
                 System.err.println("Error: Port must be a valid number.\n" +
                         "Example: CONNECT 127.0.0.1 6734");
@@ -101,6 +120,7 @@ public class DefaultConsole extends Console {
             application.exit();
 
             // close client
+            Renderer.flush();
             System.out.println("> [" + new Date().toString() + "] Closing messenger.");
             System.exit(0);
         } else {
@@ -161,8 +181,14 @@ public class DefaultConsole extends Console {
 
                 String message = stringBuilder.toString();
 
+                // use the known peer instance, if there is one
+                Peer peer = application.getPeerCache().lookup(ip, port);
+                if (peer == null) {
+                    peer = new Peer(ip, port);
+                }
+
                 // preparing message and sending it to peer
-                application.sendMessage(new Peer(ip, port), new Message("MESSAGE", application.me, message));
+                application.sendMessage(peer, new Message("MESSAGE", application.me, message));
             } catch (NumberFormatException e) {
                 System.err.println("Error: Port must be a valid number.\n" +
                         "Example: MX 127.0.0.1 6734 Hello World!");
@@ -190,7 +216,18 @@ public class DefaultConsole extends Console {
                             "* M <Name> <Text> - used to send messages to all peers with name\n" +
                             "* MX <IP> <Port> <Text> - used to send message to the peer with ip and port\n" +
                             "* HELP <?Command> - get informations about the selected command/get a command list\n" +
-                            "* PEERS <?Name> - list informations about the selected peer/print all peers"
+                            "* PEERS <?Name> - list informations about the selected peer/print all peers\n" +
+                            "* STATS - print runtime statistics of this node\n" +
+                            "* LATENCY <?Name> - print the latency of frames received from the selected peer/all peers\n" +
+                            "* HISTORY <Name|IP:Port> <?Since> - print the last messages with the selected peer\n" +
+                            "* SEARCH <Words> - print the last messages, that contain all words\n" +
+                            "Files:\n" +
+                            "* messenger-<Port>.peers - the current peer list, to rejoin after a restart\n" +
+                            "* messenger-<Port>.journal - messages to offline peers, until delivered,\n" +
+                            "  at most 24 hours (-Dmessenger.journal.ttl) and 64 MiB (-Dmessenger.journal.max)\n" +
+                            "* The history of messages is only written with -Dmessenger.history.dir, it keeps\n" +
+                            "  messages 30 days (-Dmessenger.history.age) and 1 GiB (-Dmessenger.history.max)\n" +
+                            "An empty file or directory name disables it."
             );
         } else if (args.length == 1 && args[0] != null) {
             // printing detailed informations to each command
@@ -256,12 +293,60 @@ public class DefaultConsole extends Console {
                     System.out.println(
                             "Usage: PEERS <?Name>\n" +
                             "PEERS can print all peers in peer list or all peers associated\n" +
-                            "with the given name.\n" +
+                            "with the given name. Peers, that sent more frames than the rate\n" +
+                            "limits allow in the last 10 seconds, are marked as throttled.\n" +
                             "Example: PEERS Tim"
                     );
                     break;
                 }
 
+                case "STATS": {
+                    System.out.println(
+                            "Usage: STATS\n" +
+                            "STATS prints runtime statistics of this node, like the usage\n" +
+                            "of the I/O buffer pool, the queue latency of control and data\n" +
+                            "frames and the number of open connections."
+                    );
+                    break;
+                }
+
+                case "LATENCY": {
+                    System.out.println(
+                            "Usage: LATENCY <?Name>\n" +
+                            "LATENCY prints percentiles of the time frames took from their\n" +
+                            "origin to this node, per origin peer and command. Needs tracing\n" +
+                            "to be enabled on all nodes with -Dmessenger.trace=true and\n" +
+                            "synchronized clocks.\n" +
+                            "Example: LATENCY Tim"
+                    );
+                    break;
+                }
+
+                case "HISTORY": {
+                    System.out.println(
+                            "Usage: HISTORY <Name|IP:Port> <?Since>\n" +
+                            "HISTORY prints the last received and sent messages with the peers\n" +
+                            "of the given name or with the peer of the given ip address and port.\n" +
+                            "Since limits the messages to the last seconds, minutes, hours or days\n" +
+                            "like 30m or 2d, or to the time after a date like 2024-05-01 or\n" +
+                            "2024-05-01T18:30. Messages are only recorded, when the node was\n" +
+                            "started with -Dmessenger.history.dir and kept for 30 days.\n" +
+                            "Example: HISTORY Tim 2d"
+                    );
+                    break;
+                }
+
+                case "SEARCH": {
+                    System.out.println(
+                            "Usage: SEARCH <Words>\n" +
+                            "SEARCH prints the last received and sent messages of the history,\n" +
+                            "that contain all given words, with the peer that sent or received\n" +
+                            "them. Case and punctuation do not matter.\n" +
+                            "Example: SEARCH release date"
+                    );
+                    break;
+                }
+
                 default: {
                     System.out.println("Command " + args[0].toUpperCase() + " not found.");
                 }
@@ -279,16 +364,19 @@ public class DefaultConsole extends Console {
      */
     @Method
     protected void peers (String[] args) {
+        Map<Peer, Long> throttled = application.getRateLimiter().getThrottled();
         if (args.length == 0) {
             int index = 1;
             for (Connection c : application.getConnections()) {
-                System.out.println((index++) + ": " + c.getPeer().toString());
+                System.out.println((index++) + ": " + c.getPeer().toString() + (c.isSuspended() ? " (idle)" : "") +
+                        (c.isDegraded() ? " (degraded)" : "") + (throttled.containsKey(c.getPeer()) ? " (throttled, " + throttled.get(c.getPeer()) + " frames dropped or delayed)" : ""));
             }
         } else if (args.length == 1) {
             int index = 1;
             for (Connection c : application.getConnections()) {
                 if (c.getPeer().getName().equals(args[0])) {
-                    System.out.println((index++) + ": " + c.getPeer().toString());
+                    System.out.println((index++) + ": " + c.getPeer().toString() + (c.isSuspended() ? " (idle)" : "") +
+                            (c.isDegraded() ? " (degraded)" : "") + (throttled.containsKey(c.getPeer()) ? " (throttled, " + throttled.get(c.getPeer()) + " frames dropped or delayed)" : ""));
                 }
             }
         } else {
@@ -296,4 +384,206 @@ public class DefaultConsole extends Console {
                     "Example: PEERS Tim");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * <p>Prints runtime statistics of this node.</p>
+     * @param args  expecting STATS null
+     */
+    @Method
+    protected void stats (String[] args) {
+        if (args.length == 0 || args[0] == null) {
+            BufferPool pool = BufferPool.shared();
+            System.out.println(String.format("Buffer pool: %d borrowed, %.1f%% hit rate, %d in use, %d peak, %d free",
+                    pool.getAcquired(), pool.getHitRate() * 100, pool.getInUse(), pool.getPeak(), pool.getRetained()));
+
+            int pending = 0;
+            int queued = 0;
+            for (Connection c : application.getConnections()) {
+                pending += c.getPending();
+                queued += c.getQueued();
+            }
+            System.out.println("Unacknowledged messages: " + pending);
+
+            System.out.println("Queued frames: " + queued);
+            for (LaneMetrics lane : new LaneMetrics[]{LaneMetrics.CONTROL, LaneMetrics.DATA}) {
+                System.out.println(String.format("  %s lane: %d queued frames, %.1f us avg wait, %.1f us max wait",
+                        lane.getName(), lane.getFrames(), lane.getAverageWaitMicros(), lane.getMaxWaitMicros()));
+            }
+
+            ConnectionCache cache = application.getConnectionCache();
+            System.out.println("Connections: " + application.getConnections().size() + " peers" + (cache != null ?
+                    ", " + cache.size() + "/" + cache.getCapacity() + " open, " + cache.getEvictions() + " evicted" : ""));
+
+            if (TlsContext.isEnabled()) {
+                System.out.println("TLS handshakes: " + TlsContext.getHandshakes() + ", " + TlsContext.getResumed() + " resumed");
+            }
+
+            System.out.println("Console: " + Renderer.getRendered() + " lines rendered, " + Renderer.getCollapsed() + " collapsed");
+
+            long dropped = 0;
+            for (long count : application.getRateLimiter().getDropped().values()) {
+                dropped += count;
+            }
+            System.out.println("Throttled: " + dropped + " frames dropped, " + application.getRateLimiter().getDelayed() + " delayed, " +
+                    application.getRateLimiter().getThrottled().size() + " peers throttled right now");
+
+            System.out.println("Slow peers: " + SendWatchdog.getDegraded() + " degraded, " +
+                    SendWatchdog.getAborted() + " closed at the send deadline");
+
+            Capture capture = application.getCapture();
+            if (capture != null) {
+                System.out.println(String.format("Capture: %s, %d records, %d KiB, %d dropped%s",
+                        capture.getPath(), capture.getRecords(), capture.getSize() >> 10, capture.getDropped(),
+                        capture.isRunning() ? "" : ", stopped"));
+            }
+
+            History history = application.getHistory();
+            if (history != null) {
+                System.out.println(String.format("History: %d messages, %d MiB, %d dropped",
+                        history.getCount(), history.getSize() >> 20, history.getDropped()));
+
+                SearchIndex index = history.getSearchIndex();
+                if (index != null) {
+                    System.out.println(String.format("Search index: %d words, %d KiB",
+                            index.getWords(), index.getBytes() >> 10));
+                }
+            }
+        } else {
+            System.err.println("Error: STATS does not expect arguments.\n" +
+                    "Example: STATS");
+        }
+    }
+
+    /**
+     * <p>Prints the latency percentiles of frames received from
+     * all peers or all peers with the given name.</p>
+     * @param args  expecting LATENCY [optional (String) name]
+     */
+    @Method
+    protected void latency (String[] args) {
+        if (args.length < 2) {
+            LatencyTracker tracker = application.getLatencyTracker();
+            if (tracker == null) {
+                System.err.println("Error: Tracing is disabled. Start all nodes with -Dmessenger.trace=true.");
+                return;
+            }
+
+            String name = args.length == 1 ? args[0] : null;
+            int index = 1;
+            for (String line : tracker.report(name)) {
+                System.out.println((index++) + ": " + line);
+            }
+
+            if (index == 1) {
+                System.out.println("No traced frames received" + (name != null ? " from " + name : "") + ".");
+            }
+        } else {
+            System.err.println("Error: LATENCY expects no or one argument.\n" +
+                    "Example: LATENCY Tim");
+        }
+    }
+
+    /**
+     * <p>Prints the last messages with all peers with the
+     * given name or with the peer of the given address.</p>
+     * @param args  expecting HISTORY (String) name or ip:port, [optional (String) since]
+     */
+    @Method
+    protected void history (String[] args) {
+        if (args.length < 1 || args.length > 2 || args[0] == null) {
+            System.err.println("Error: HISTORY expects a name or ip:port and optional a time.\n" +
+                    "Example: HISTORY Tim 2d");
+            return;
+        }
+
+        History history = application.getHistory();
+        if (history == null) {
+            System.err.println("Error: History is disabled. Start with a -Dmessenger.history.dir directory.");
+            return;
+        }
+
+        long since = Long.MIN_VALUE;
+        if (args.length == 2) {
+            since = since(args[1]);
+            if (since == Long.MAX_VALUE) {
+                System.err.println("Error: HISTORY expects a time like 30m, 2d, 2024-05-01 or 2024-05-01T18:30.\n" +
+                        "Example: HISTORY Tim 2d");
+                return;
+            }
+        }
+
+        List<String> lines = history.query(args[0], since, LINES);
+        for (String line : lines) {
+            System.out.println(line);
+        }
+
+        if (lines.isEmpty()) {
+            System.out.println("No messages with " + args[0] + " recorded.");
+        }
+    }
+
+    /**
+     * <p>Prints the last messages of the history, that
+     * contain all given words.</p>
+     * @param args  expecting SEARCH (String) words
+     */
+    @Method
+    protected void search (String[] args) {
+        if (args.length == 0 || args[0] == null) {
+            System.err.println("Error: SEARCH expects at least one word.\n" +
+                    "Example: SEARCH release date");
+            return;
+        }
+
+        History history = application.getHistory();
+        if (history == null) {
+            System.err.println("Error: History is disabled. Start with a -Dmessenger.history.dir directory.");
+            return;
+        }
+
+        if (history.getSearchIndex() == null) {
+            System.err.println("Error: Search is disabled. Start with -Dmessenger.history.search=true.");
+            return;
+        }
+
+        List<String> lines = history.search(String.join(" ", args), LINES);
+
+        for (String line : lines) {
+            System.out.println(line);
+        }
+
+        if (lines.isEmpty()) {
+            System.out.println("No messages with '" + String.join(" ", args) + "' found.");
+        }
+    }
+
+    /**
+     * <p>Parses the start time of HISTORY.</p>
+     * @param text  duration like 30m or date like 2024-05-01T18:30
+     * @return  time in milliseconds, {@link Long#MAX_VALUE} when malformed
+     */
+    private static long since (String text) {
+        long unit;
+        switch (text.charAt(text.length() - 1)) {
+            case 's': unit = 1000L; break;
+            case 'm': unit = 60000L; break;
+            case 'h': unit = 3600000L; break;
+            case 'd': unit = 86400000L; break;
+            default: unit = 0;
+        }
+
+        try {
+            if (unit > 0) {
+                return System.currentTimeMillis() - Long.parseLong(text.substring(0, text.length() - 1)) * unit;
+            }
+
+            if (text.contains("T")) {
+                return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+
+            return LocalDate.parse(text).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.messenger.console;
+
+import com.messenger.Configuration;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Output stage of the terminal. Threads, that receive messages,
+ * only add their lines to a buffer, a single thread writes the
+ * buffer to {@link System#out} in one write per frame, at most
+ * {@code console.fps} frames per second. So receiving threads
+ * never wait for the terminal or for each other on the lock of
+ * the {@link PrintStream}.</p>
+ * <p>A frame holds at most {@code console.lines} lines. Further
+ * lines of the same frame are counted instead and rendered as a
+ * summary like "+342 messages from Jon", so a flood of messages
+ * costs a counter per line and the terminal stays readable.
+ * Echoes of own messages are never collapsed.</p>
+ * <p>The renderer replaces {@link System#out} and {@link System#err}
+ * on first use with streams, that add everything printed directly,
+ * like errors of network threads, to the next frame, so lines keep
+ * their order and only the renderer thread writes to the terminal.
+ * Printed output is never collapsed. Pending output is rendered,
+ * when the JVM exits.</p>
+ */
+public final class Renderer extends Thread {
+
+    /**
+     * <p>Minimum time between two frames in milliseconds.</p>
+     */
+    private static final long FRAME = 1000 / Math.max(1, Configuration.getInt("console.fps", 20));
+
+    /**
+     * <p>Maximum number of lines of a frame.</p>
+     */
+    private static final int LINES = Configuration.getInt("console.lines", 200);
+
+    /**
+     * <p>Key of collapsed lines, that are no messages.</p>
+     */
+    private static final String STATUS = "";
+
+    /**
+     * <p>Renderer of the terminal, started on first use.</p>
+     */
+    private static Renderer shared;
+
+    /**
+     * <p>Lines of the next frame. Output printed to
+     * {@link System#out} and {@link System#err} is held
+     * as {@link Printed} in between.</p>
+     */
+    private ArrayList<Object> pending = new ArrayList<>();
+
+    /**
+     * <p>Number of lines of the next frame, printed
+     * output does not count.</p>
+     */
+    private int lines;
+
+    /**
+     * <p>Number of collapsed lines of the next
+     * frame by sender.</p>
+     */
+    private LinkedHashMap<String, Integer> collapsed = new LinkedHashMap<>();
+
+    /**
+     * <p>Guards the next frame and the counters.</p>
+     */
+    private final Object lock = new Object();
+
+    /**
+     * <p>Held while a frame is written, so frames
+     * of {@link Renderer#flush()} keep their order.</p>
+     */
+    private final Object output = new Object();
+
+    /**
+     * <p>Number of rendered lines.</p>
+     */
+    private long renderedLines;
+
+    /**
+     * <p>Number of collapsed lines.</p>
+     */
+    private long collapsedLines;
+
+    /**
+     * <p>Creates the renderer thread.</p>
+     */
+    private Renderer () {
+        super("renderer");
+        setDaemon(true);
+    }
+
+    /**
+     * <p>Gets the renderer, starts it and installs the
+     * ordered streams on first use.</p>
+     * @return  shared renderer
+     */
+    private static synchronized Renderer get () {
+        if (shared == null) {
+            shared = new Renderer();
+            System.setOut(new Ordered(System.out, shared));
+            System.setErr(new Ordered(System.err, shared));
+            shared.start();
+            // the last lines before System.exit
+            Runtime.getRuntime().addShutdownHook(new Thread(Renderer::flush, "renderer-exit"));
+        }
+
+        return shared;
+    }
+
+    /**
+     * <p>Renders a received message. Collapsed by sender,
+     * when the frame is full.</p>
+     * @param sender    name of sender
+     * @param line      complete line
+     */
+    public static void message (String sender, String line) {
+        get().add(sender != null ? sender : "unknown", line);
+    }
+
+    /**
+     * <p>Renders a status line like a peer going online or
+     * a delivery receipt. Collapsed, when the frame is full.</p>
+     * @param line  complete line
+     */
+    public static void status (String line) {
+        get().add(STATUS, line);
+    }
+
+    /**
+     * <p>Renders the echo of a message sent by the user.
+     * Never collapsed, even when the frame is full.</p>
+     * @param line  complete line
+     */
+    public static void echo (String line) {
+        get().add(null, line);
+    }
+
+    /**
+     * <p>Writes all pending lines at once in the calling
+     * thread, eg. before the streams are replaced.</p>
+     */
+    public static void flush () {
+        Renderer renderer;
+        synchronized (Renderer.class) {
+            renderer = shared;
+        }
+
+        if (renderer != null) {
+            renderer.render();
+        }
+    }
+
+    /**
+     * <p>Adds a line to the next frame or counts it,
+     * when the frame is full.</p>
+     * @param key   sender, {@link Renderer#STATUS} or null for a line, that is never collapsed
+     * @param line  complete line
+     */
+    private void add (String key, String line) {
+        synchronized (lock) {
+            if (key == null || lines < LINES) {
+                pending.add(line);
+                lines++;
+            } else {
+                collapsed.merge(key, 1, Integer::sum);
+            }
+
+            // lines are only collapsed, while the frame is not empty
+            if (pending.size() == 1) {
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * <p>Adds printed output to the next frame.
+     * Never collapsed.</p>
+     * @param printed   printed bytes
+     */
+    private void add (Printed printed) {
+        synchronized (lock) {
+            pending.add(printed);
+            if (pending.size() == 1) {
+                lock.notify();
+            }
+        }
+    }
+
+    /**
+     * <p>Renders a frame, whenever there are lines, and
+     * waits {@link Renderer#FRAME} milliseconds after it.</p>
+     */
+    @Override
+    public void run () {
+        while (true) {
+            try {
+                synchronized (lock) {
+                    while (pending.isEmpty() && collapsed.isEmpty()) {
+                        lock.wait();
+                    }
+                }
+
+                render();
+                sleep(FRAME);
+            } catch (InterruptedException e) {
+                System.err.println("> [" + new Date().toString() + "] Error: Renderer interrupted.");
+                return;
+            }
+        }
+    }
+
+    /**
+     * <p>Takes the pending lines and writes them with their
+     * summaries in one write.</p>
+     */
+    private void render () {
+        synchronized (output) {
+            ArrayList<Object> entries;
+            LinkedHashMap<String, Integer> counts;
+            int rendered;
+            synchronized (lock) {
+                if (pending.isEmpty() && collapsed.isEmpty()) {
+                    return;
+                }
+
+                entries = pending;
+                counts = collapsed;
+                rendered = lines;
+                pending = new ArrayList<>();
+                collapsed = new LinkedHashMap<>();
+                lines = 0;
+            }
+
+            // past the ordered stream, that would add the frame again
+            PrintStream out = System.out;
+            if (out instanceof Ordered) {
+                out = ((Ordered) out).raw;
+            }
+
+            StringBuilder frame = new StringBuilder();
+            for (Object entry : entries) {
+                if (entry instanceof Printed) {
+                    Printed printed = (Printed) entry;
+                    // lines before the printed output go first
+                    if (frame.length() > 0) {
+                        out.print(frame);
+                        frame.setLength(0);
+                    }
+                    printed.target.write(printed.bytes, 0, printed.bytes.length);
+                    printed.target.flush();
+                } else {
+                    frame.append(entry).append(System.lineSeparator());
+                }
+            }
+
+            long count = 0;
+            if (!counts.isEmpty()) {
+                String date = new Date().toString();
+                for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                    frame.append("> [").append(date).append("] +").append(entry.getValue())
+                            .append(entry.getKey().equals(STATUS) ? " status lines" : " messages from " + entry.getKey())
+                            .append(System.lineSeparator());
+                    count += entry.getValue();
+                }
+            }
+
+            out.print(frame);
+            out.flush();
+
+            synchronized (lock) {
+                renderedLines += rendered;
+                collapsedLines += count;
+            }
+        }
+    }
+
+    /**
+     * <p>Output printed to a stream, that waits for
+     * the next frame.</p>
+     */
+    private static final class Printed {
+
+        /**
+         * <p>Raw stream to write to.</p>
+         */
+        private final PrintStream target;
+
+        /**
+         * <p>Printed bytes.</p>
+         */
+        private final byte[] bytes;
+
+        /**
+         * <p>Creates printed output.</p>
+         * @param target    raw stream
+         * @param bytes     printed bytes
+         */
+        private Printed (PrintStream target, byte[] bytes) {
+            this.target = target;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * <p>Terminal stream, that adds everything printed to
+     * the next frame instead of writing it. The printing
+     * thread never waits for the terminal, the renderer
+     * writes to the raw stream.</p>
+     */
+    private static final class Ordered extends PrintStream {
+
+        /**
+         * <p>Stream, that is replaced.</p>
+         */
+        private final PrintStream raw;
+
+        /**
+         * <p>Renderer, that writes the output.</p>
+         */
+        private final Renderer renderer;
+
+        /**
+         * <p>Creates a stream, that writes to the given one.</p>
+         * @param raw       replaced stream
+         * @param renderer  renderer, that writes the output
+         */
+        private Ordered (PrintStream raw, Renderer renderer) {
+            super(raw, true);
+            this.raw = raw;
+            this.renderer = renderer;
+        }
+
+        /**
+         * <p>Adds a byte to the next frame.</p>
+         * @param b byte
+         */
+        @Override
+        public void write (int b) {
+            renderer.add(new Printed(raw, new byte[] { (byte) b }));
+        }
+
+        /**
+         * <p>Adds bytes to the next frame. All text
+         * printed to the stream ends up here.</p>
+         * @param buf   bytes
+         * @param off   first byte
+         * @param len   number of bytes
+         */
+        @Override
+        public void write (byte[] buf, int off, int len) {
+            if (len > 0) {
+                renderer.add(new Printed(raw, Arrays.copyOfRange(buf, off, off + len)));
+            }
+        }
+    }
+
+    /**
+     * <p>Gets the number of rendered lines.</p>
+     * @return  rendered lines
+     */
+    public static long getRendered () {
+        Renderer renderer = get();
+        synchronized (renderer.lock) {
+            return renderer.renderedLines;
+        }
+    }
+
+    /**
+     * <p>Gets the number of lines, that were collapsed
+     * into summaries.</p>
+     * @return  collapsed lines
+     */
+    public static long getCollapsed () {
+        Renderer renderer = get();
+        synchronized (renderer.lock) {
+            return renderer.collapsedLines;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Close or suspend of a connection.</p>
+ */
+@Name("com.messenger.ConnectionClose")
+@Label("Connection Close")
+public class ConnectionCloseEvent extends MessengerEvent {
+
+    /**
+     * <p>Connection was only suspended and can
+     * be opened again.</p>
+     */
+    @Label("Suspended")
+    public boolean suspended;
+
+    /**
+     * <p>Number of unacknowledged messages.</p>
+     */
+    @Label("Unacknowledged")
+    public int pending;
+}
@@ -0,0 +1,19 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Connect of a connection to its peer, including reconnects
+ * of suspended connections.</p>
+ */
+@Name("com.messenger.ConnectionOpen")
+@Label("Connection Open")
+public class ConnectionOpenEvent extends MessengerEvent {
+
+    /**
+     * <p>Socket could be opened.</p>
+     */
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,13 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Handling of a parsed message by its command, in
+ * {@code Application.receiveMessage}.</p>
+ */
+@Name("com.messenger.Dispatch")
+@Label("Message Dispatch")
+public class DispatchEvent extends MessengerEvent {
+}
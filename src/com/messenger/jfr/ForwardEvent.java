@@ -0,0 +1,19 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Forwarding of a message to other peers, by broadcast
+ * or as next hop of a ROUTE message.</p>
+ */
+@Name("com.messenger.Forward")
+@Label("Message Forward")
+public class ForwardEvent extends MessengerEvent {
+
+    /**
+     * <p>Number of connections the message was sent to.</p>
+     */
+    @Label("Targets")
+    public int targets;
+}
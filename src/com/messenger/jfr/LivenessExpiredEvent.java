@@ -0,0 +1,35 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import jdk.jfr.Timestamp;
+
+/**
+ * <p>A peer did not poke in time. Emitted when its connection is
+ * marked inactive and when it is removed from the peer list.</p>
+ */
+@Name("com.messenger.LivenessExpired")
+@Label("Liveness Expired")
+public class LivenessExpiredEvent extends MessengerEvent {
+
+    /**
+     * <p>Time of the last poke.</p>
+     */
+    @Label("Last Poke")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    public long lastPoke;
+
+    /**
+     * <p>Time since the last poke.</p>
+     */
+    @Label("Silence")
+    @Timespan(Timespan.MILLISECONDS)
+    public long silence;
+
+    /**
+     * <p>Peer was removed from the peer list.</p>
+     */
+    @Label("Removed")
+    public boolean removed;
+}
@@ -0,0 +1,59 @@
+package com.messenger.jfr;
+
+import com.messenger.Message;
+import com.messenger.Peer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Base of all Java Flight Recorder events of the messenger.
+ * Events are disabled unless a recording enables them, then
+ * creating and committing an event costs next to nothing.
+ * Fields are only filled in, when {@link Event#shouldCommit()}
+ * returns {@code true}.</p>
+ */
+@Category("Messenger")
+@StackTrace(false)
+public abstract class MessengerEvent extends Event {
+
+    /**
+     * <p>Peer as "name ip port".</p>
+     */
+    @Label("Peer")
+    @Description("Name, ip address and port of the peer")
+    public String peer;
+
+    /**
+     * <p>Command of the message.</p>
+     */
+    @Label("Command")
+    public String command;
+
+    /**
+     * <p>Size of the message on the wire.</p>
+     */
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    /**
+     * <p>Fills in peer and command of a message.</p>
+     * @param message   message
+     */
+    public void setMessage (Message message) {
+        setPeer(message.getPeer());
+        command = message.getCommand();
+    }
+
+    /**
+     * <p>Fills in the peer.</p>
+     * @param peer  peer, can be null
+     */
+    public void setPeer (Peer peer) {
+        this.peer = peer != null ? peer.toString() : null;
+    }
+}
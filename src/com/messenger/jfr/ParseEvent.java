@@ -0,0 +1,12 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Parsing of a received line into a message.</p>
+ */
+@Name("com.messenger.Parse")
+@Label("Message Parse")
+public class ParseEvent extends MessengerEvent {
+}
@@ -0,0 +1,42 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>One burst of data read by a client handler, from the first
+ * byte until the socket is drained, including the handling of
+ * all lines in it. The sender of a socket is only known by its
+ * address, so this event has no peer and command.</p>
+ */
+@Name("com.messenger.Receive")
+@Label("Message Receive")
+@Category("Messenger")
+@StackTrace(false)
+public class ReceiveEvent extends Event {
+
+    /**
+     * <p>Remote address of the socket.</p>
+     */
+    @Label("Remote Address")
+    public String remote;
+
+    /**
+     * <p>Number of bytes read.</p>
+     */
+    @Label("Size")
+    @DataAmount
+    public long bytes;
+
+    /**
+     * <p>Number of complete lines read.</p>
+     */
+    @Label("Lines")
+    @Description("Number of complete lines read")
+    public int lines;
+}
@@ -0,0 +1,26 @@
+package com.messenger.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Write of one frame to a socket.</p>
+ */
+@Name("com.messenger.Send")
+@Label("Message Send")
+public class SendEvent extends MessengerEvent {
+
+    /**
+     * <p>Frame was written completely.</p>
+     */
+    @Label("Written")
+    public boolean written;
+
+    /**
+     * <p>Frame was sent through a temporary socket.</p>
+     */
+    @Label("Transient")
+    @Description("Sent through a temporary socket, because the connection is suspended")
+    public boolean temporary;
+}